@@ -0,0 +1,175 @@
+package com.plasstech.lang.ssl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Compiles many files concurrently on a fixed number of threads, writing the code for each
+ * foo.ssl to foo.asm beside it. Each file gets its own Parser, so the output is the same as
+ * compiling it alone. If there is a cache, files whose code is in it are not compiled.
+ *
+ * <p>The code is written to a temporary file as it is generated, or copied there from the cache,
+ * and the file is renamed when done. So a .asm file is never seen partly written, and a file that
+ * does not compile leaves no output.
+ */
+public class BatchCompiler {
+  private static final String SOURCE_EXTENSION = ".ssl";
+  private static final String OUTPUT_EXTENSION = ".asm";
+  private static final String TEMPORARY_EXTENSION = ".tmp";
+
+  private final Set<Optimization> optimizations;
+  private final int threads;
+  private final CompileCache cache;
+  private final Map<Peephole.Rule, Integer> stats = new EnumMap<>(Peephole.Rule.class);
+
+  public BatchCompiler(Set<Optimization> optimizations, int threads) {
+    this(optimizations, threads, null);
+  }
+
+  public BatchCompiler(Set<Optimization> optimizations, int threads, CompileCache cache) {
+    this.optimizations = optimizations;
+    this.threads = threads;
+    this.cache = cache;
+  }
+
+  /**
+   * Compiles the given files, and the .ssl files anywhere under the given directories. Returns
+   * why each file that did not compile failed, in the order of the files.
+   */
+  public ImmutableMap<Path, String> compile(List<Path> paths) throws IOException {
+    ImmutableList<Path> files = sources(paths);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<String>> results = new ArrayList<>(files.size());
+      for (Path file : files) {
+        results.add(executor.submit(() -> tryCompile(file)));
+      }
+      ImmutableMap.Builder<Path, String> failures = ImmutableMap.builder();
+      for (int i = 0; i < files.size(); ++i) {
+        String failure = get(results.get(i));
+        if (failure != null) {
+          failures.put(files.get(i), failure);
+        }
+      }
+      return failures.build();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Returns the counts of the peephole rules that fired, summed over all files so far. */
+  public synchronized ImmutableMap<Peephole.Rule, Integer> stats() {
+    return ImmutableMap.copyOf(stats);
+  }
+
+  /** Returns the output file for the given source file. */
+  static Path output(Path source) {
+    String name = source.getFileName().toString();
+    if (name.endsWith(SOURCE_EXTENSION)) {
+      name = name.substring(0, name.length() - SOURCE_EXTENSION.length());
+    }
+    return source.resolveSibling(name + OUTPUT_EXTENSION);
+  }
+
+  private static ImmutableList<Path> sources(List<Path> paths) throws IOException {
+    ImmutableList.Builder<Path> files = ImmutableList.builder();
+    for (Path path : paths) {
+      if (!Files.isDirectory(path)) {
+        files.add(path);
+        continue;
+      }
+      try (Stream<Path> walk = Files.walk(path)) {
+        files.addAll(walk
+            .filter(file -> file.toString().endsWith(SOURCE_EXTENSION))
+            .filter(Files::isRegularFile)
+            .sorted()
+            .collect(Collectors.toList()));
+      }
+    }
+    return files.build();
+  }
+
+  /** Compiles one file, and returns why it failed, or null. Never stops the rest of the batch. */
+  private String tryCompile(Path file) {
+    try {
+      return compile(file);
+    } catch (IOException | RuntimeException e) {
+      return e.toString();
+    }
+  }
+
+  /** Compiles one file, and returns why it failed, or null. */
+  private String compile(Path file) throws IOException {
+    // Sources in a batch are usually small, so reading beats mapping them.
+    byte[] source = Files.readAllBytes(file);
+    String key = null;
+    byte[] cached = null;
+    if (cache != null) {
+      key = CompileCache.key(source, optimizations);
+      cached = cache.get(key);
+    }
+    Peephole peephole = new Peephole();
+    Path output = output(file);
+    Path temporary = output.resolveSibling(output.getFileName() + TEMPORARY_EXTENSION);
+    try {
+      if (cached != null) {
+        Files.write(temporary, cached);
+      } else {
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+          ByteCharSequence text = new ByteCharSequence(ByteBuffer.wrap(source));
+          new Parser(ParallelLexer.tokenize(text))
+              .parse(optimizations, peephole, new ChannelSink(channel));
+        } catch (IllegalStateException e) {
+          return e.getMessage();
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+      }
+      Files.move(temporary, output, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+    if (cached != null) {
+      return null;
+    }
+    if (cache != null) {
+      cache.put(key, Files.readAllBytes(output));
+    }
+    synchronized (this) {
+      peephole.stats().forEach((rule, count) -> stats.merge(rule, count, Integer::sum));
+    }
+    return null;
+  }
+
+  private static String get(Future<String> result) throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.plasstech.lang.ssl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A read-only view of single-byte (ASCII/Latin-1) text in a ByteBuffer, such as a memory-mapped
+ * source file. Characters are decoded on access, so the bytes are never copied.
+ *
+ * <p>The scanning methods read eight bytes at a time and test all of them at once (SWAR).
+ */
+public class ByteCharSequence implements CharSequence {
+  private static final long ONES = 0x0101010101010101L;
+  private static final long LOW7 = 0x7f7f7f7f7f7f7f7fL;
+  private static final long HIGH = 0x8080808080808080L;
+
+  private final ByteBuffer buffer;
+  // Little-endian, so the lowest byte of a word is the first character.
+  private final ByteBuffer words;
+  private final int offset;
+  private final int length;
+
+  public ByteCharSequence(ByteBuffer buffer) {
+    this(buffer, 0, buffer.limit());
+  }
+
+  private ByteCharSequence(ByteBuffer buffer, int offset, int length) {
+    this.buffer = buffer;
+    this.words = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /** Returns the index of the first character at or after index that is not whitespace. */
+  public int skipWhitespace(int index) {
+    int i = index;
+    for (; i + 8 <= length; i += 8) {
+      long word = words.getLong(offset + i);
+      long blanks = matches(word, ' ') | matches(word, '\t') | matches(word, '\n')
+          | matches(word, '\r');
+      long others = ~blanks & HIGH;
+      if (others != 0) {
+        return i + (Long.numberOfTrailingZeros(others) >>> 3);
+      }
+    }
+    for (; i < length; ++i) {
+      char c = charAt(i);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  /** Returns the index of the first newline, carriage return or NUL at or after index. */
+  public int indexOfLineEnd(int index) {
+    return indexOfAny(index, '\n', '\r', 0);
+  }
+
+  /** Returns the index of the first double quote or NUL at or after index. */
+  public int indexOfQuote(int index) {
+    return indexOfAny(index, '"', 0, 0);
+  }
+
+  private int indexOfAny(int index, int a, int b, int c) {
+    int i = index;
+    for (; i + 8 <= length; i += 8) {
+      long word = words.getLong(offset + i);
+      long found = matches(word, a) | matches(word, b) | matches(word, c);
+      if (found != 0) {
+        return i + (Long.numberOfTrailingZeros(found) >>> 3);
+      }
+    }
+    for (; i < length; ++i) {
+      char ch = charAt(i);
+      if (ch == a || ch == b || ch == c) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Returns a word with the high bit set in each byte of word that equals b, and all other bits
+   * clear. Unlike the usual "has zero byte" trick, no carry crosses bytes, so every flag is exact.
+   */
+  private static long matches(long word, int b) {
+    long x = word ^ (ONES * b);
+    return ~(((x & LOW7) + LOW7) | x | LOW7);
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return (char) (buffer.get(offset + index) & 0xff);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    if (start < 0 || end > length || start > end) {
+      throw new IndexOutOfBoundsException(
+          String.format("[%d, %d) out of bounds for length %d", start, end, length));
+    }
+    return new ByteCharSequence(buffer, offset + start, end - start);
+  }
+
+  @Override
+  public String toString() {
+    byte[] bytes = new byte[length];
+    buffer.get(offset, bytes);
+    return new String(bytes, StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,65 @@
+package com.plasstech.lang.ssl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes code to a channel, each line followed by the line separator, through a large buffer so
+ * that it takes a few large writes. Characters are written as ISO-8859-1, like the source is read.
+ * Since lines are added while the code is generated, failing to write throws
+ * UncheckedIOException.
+ */
+public class ChannelSink implements CodeSink {
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  private final WritableByteChannel channel;
+  private final String separator;
+  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+  public ChannelSink(WritableByteChannel channel) {
+    this(channel, System.lineSeparator());
+  }
+
+  public ChannelSink(WritableByteChannel channel, String separator) {
+    this.channel = channel;
+    this.separator = separator;
+  }
+
+  @Override
+  public void add(String line) {
+    put(line);
+    put(separator);
+  }
+
+  /** Writes out what is buffered. Does not close the channel. */
+  @Override
+  public void finish() {
+    write();
+  }
+
+  private void put(String text) {
+    for (int i = 0; i < text.length(); ) {
+      if (!buffer.hasRemaining()) {
+        write();
+      }
+      int end = Math.min(text.length(), i + buffer.remaining());
+      for (; i < end; ++i) {
+        buffer.put((byte) text.charAt(i));
+      }
+    }
+  }
+
+  private void write() {
+    buffer.flip();
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    buffer.clear();
+  }
+}
@@ -0,0 +1,907 @@
+package com.plasstech.lang.ssl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.plasstech.lang.ssl.Operand.Kind;
+
+/**
+ * Lowers an Ir to x64 assembly. Variables live in the registers picked by the RegisterAllocator,
+ * or else in .data slots. Values are computed in EAX, RAX or XMM0 unless they can be computed
+ * directly in the register of their variable; ECX, EDX and XMM1 are also scratch. Temps are
+ * always in EAX, RAX or XMM0, or AL for BOOL.
+ *
+ * <p>The data section only has what the generated code refers to: the slots of variables that are
+ * still read or written and not in registers, the constants that the code loads, and the formats
+ * of the prints that are left. It is assembled while the text section is generated, and added
+ * after it, so the code can be streamed to a CodeSink.
+ */
+public class CodeGenerator {
+  private static final Map<Symbol, String> INT_ARITH_OPCODES =
+      ImmutableMap.of(
+          Symbol.PLUS, "add",
+          Symbol.MULT, "imul",
+          Symbol.MINUS, "sub");
+  private static final Map<Symbol, String> FLOAT_ARITH_OPCODES =
+      ImmutableMap.of(
+          Symbol.PLUS, "addsd",
+          Symbol.MULT, "mulsd",
+          Symbol.DIV, "divsd",
+          Symbol.MINUS, "subsd");
+  private static final Map<VarType, Map<Symbol, String>> ARITH_OPCODES =
+      ImmutableMap.of(
+          VarType.INT, INT_ARITH_OPCODES,
+          VarType.FLOAT, FLOAT_ARITH_OPCODES);
+
+  // Condition codes for the flags set by comparing left to right
+  private static final Map<Symbol, String> INT_CONDITIONS =
+      ImmutableMap.of(
+          Symbol.EQEQ, "z",
+          Symbol.NEQ, "nz",
+          Symbol.LT, "l",
+          Symbol.GT, "g",
+          Symbol.GEQ, "ge",
+          Symbol.LEQ, "le");
+  private static final Map<Symbol, String> FLOAT_CONDITIONS =
+      ImmutableMap.of(
+          Symbol.EQEQ, "z",
+          Symbol.NEQ, "nz",
+          Symbol.LT, "b",
+          Symbol.GT, "a",
+          Symbol.LEQ, "be",
+          Symbol.GEQ, "ae");
+  private static final Map<VarType, Map<Symbol, String>> CONDITIONS =
+      ImmutableMap.of(
+          VarType.INT, INT_CONDITIONS,
+          VarType.FLOAT, FLOAT_CONDITIONS);
+
+  // The registers of the second to fourth arguments of a call, by their 64 and 32 bit names
+  private static final ImmutableList<String[]> ARGUMENT_REGISTERS = ImmutableList.of(
+      new String[] {"RDX", "EDX"},
+      new String[] {"R8", "R8D"},
+      new String[] {"R9", "R9D"});
+  private static final String[] RAX = {"RAX", "EAX"};
+  private static final String[] RCX = {"RCX", "ECX"};
+  private static final Map<VarType, String> PRINT_CONVERSIONS =
+      ImmutableMap.of(
+          VarType.INT, "%d",
+          VarType.FLOAT, "%.16g",
+          VarType.STR, "%s");
+  private static final String FLOAT_FMT = "FLOAT_FMT: db '%.16g', 0";
+  // The most prints coalesced into one call
+  private static final int MAX_PRINTS = 16;
+
+  private final Ir ir;
+  private final Register[] registers;
+  private final List<Register> zeroOnEntry = new ArrayList<>();
+  // Labels that a later instruction jumps back to
+  private final boolean[] loopHeaders;
+  private CodeSink sink;
+  // Formats used by prints, in the order they are first used so that the code is the same
+  // every time
+  private final Set<String> formats = new LinkedHashSet<>();
+  // Float and string constants that the code refers to
+  private final Set<Long> usedConstants = new HashSet<>();
+  // Names of the formats of coalesced prints, by their text
+  private final Map<String, String> printFormats = new HashMap<>();
+  // Names of the constant text appended by buffered prints, by the text
+  private final Map<String, String> texts = new HashMap<>();
+  private final boolean strengthReduction;
+  private final boolean printCoalescing;
+  private final boolean bufferedOutput;
+  // Whether the output runtime needs its routines for INTs and FLOATs
+  private boolean appendsInts;
+  private boolean appendsFloats;
+
+  public CodeGenerator(Ir ir) {
+    this(ir, Optimization.ALL);
+  }
+
+  public CodeGenerator(Ir ir, Set<Optimization> optimizations) {
+    this.ir = ir;
+    this.strengthReduction = optimizations.contains(Optimization.STRENGTH_REDUCTION);
+    this.printCoalescing = optimizations.contains(Optimization.PRINT_COALESCING);
+    boolean prints = false;
+    for (int i = 0; i < ir.size(); ++i) {
+      prints |= isPrint(i);
+    }
+    this.bufferedOutput = prints && optimizations.contains(Optimization.BUFFERED_OUTPUT);
+    this.loopHeaders = new boolean[ir.labelCount()];
+    boolean[] defined = new boolean[ir.labelCount()];
+    for (int i = 0; i < ir.size(); ++i) {
+      int label = Operand.value(ir.dst(i));
+      if (ir.op(i) == Opcode.LABEL) {
+        defined[label] = true;
+      } else if (ir.op(i).isJump() && defined[label]) {
+        loopHeaders[label] = true;
+      }
+    }
+    this.registers = new Register[ir.varCount()];
+    if (optimizations.contains(Optimization.REGISTER_ALLOCATION)) {
+      RegisterAllocator allocator = RegisterAllocator.allocate(ir);
+      for (int i = 0; i < registers.length; ++i) {
+        registers[i] = allocator.register(Operand.of(Kind.VAR, i));
+        if (registers[i] != null && allocator.isLiveOnEntry(Operand.of(Kind.VAR, i))) {
+          // Memory slots start out as zero; so must registers.
+          zeroOnEntry.add(registers[i]);
+        }
+      }
+    }
+  }
+
+  public ImmutableList<String> generate() {
+    List<String> code = new ArrayList<>();
+    generate(code::add);
+    return ImmutableList.copyOf(code);
+  }
+
+  /** Adds the code to the sink, as it is generated. Does not finish the sink. */
+  public void generate(CodeSink sink) {
+    this.sink = sink;
+    emit0("; java");
+    emit0("global main");
+    emit0("section .text");
+    emit0("main:");
+    if (bufferedOutput) {
+      OutputRuntime.startup().forEach(this::emit);
+    }
+    for (Register register : zeroOnEntry) {
+      if (register.isXmm()) {
+        emit(String.format("xorpd %s, %s", register.name64, register.name64));
+      } else {
+        emit(String.format("xor %s, %s", register.name32, register.name32));
+      }
+    }
+    for (int i = 0; i < ir.size(); ++i) {
+      int end = printCoalescing ? printsEnd(i) : i;
+      if (bufferedOutput && isPrint(i)) {
+        end = Math.max(end, i + 1);
+        appendAll(i, end);
+        i = end - 1;
+      } else if (end > i + 1 || (end == i + 1 && ir.op(i) == Opcode.PRINTLN)) {
+        printAll(i, end);
+        i = end - 1;
+      } else {
+        generate(i);
+      }
+    }
+    if (bufferedOutput) {
+      emit("call " + OutputRuntime.FLUSH);
+    }
+    emit("extern exit");
+    emit("call exit\n");
+    Set<String> data = new LinkedHashSet<>(formats);
+    if (bufferedOutput) {
+      for (String line : OutputRuntime.text(appendsInts, appendsFloats)) {
+        if (line.endsWith(":")) {
+          emit0(line);
+        } else {
+          emit(line);
+        }
+      }
+      if (appendsFloats) {
+        data.add(FLOAT_FMT);
+      }
+      data.addAll(OutputRuntime.data(appendsInts, appendsFloats));
+    }
+    for (int i = 0; i < ir.floatCount(); ++i) {
+      long constant = Operand.of(Kind.FLOAT, i);
+      if (!usedConstants.contains(constant)) {
+        continue;
+      }
+      long bits = ir.floatBits(constant);
+      double value = Double.longBitsToDouble(bits);
+      if (Double.isFinite(value)) {
+        // Double.toString round-trips exactly.
+        data.add(String.format("%s: dq %s", ir.floatName(constant), value));
+      } else {
+        data.add(String.format("%s: dq 0x%016x", ir.floatName(constant), bits));
+      }
+    }
+    for (int i = 0; i < ir.stringCount(); ++i) {
+      long constant = Operand.of(Kind.STRING, i);
+      if (!usedConstants.contains(constant)) {
+        continue;
+      }
+      data.add(String.format(
+          "%s: db \"%s\", 0", ir.stringName(constant), ir.stringValue(constant)));
+    }
+    boolean[] used = usedVars();
+    for (int i = 0; i < registers.length; ++i) {
+      if (registers[i] == null && used[i]) {
+        long var = Operand.of(Kind.VAR, i);
+        data.add(String.format("_%s: %s 0", ir.varName(var), ir.typeOf(var).dataSize));
+      }
+    }
+    if (!data.isEmpty()) {
+      emit0("section .data");
+      data.forEach(entry -> {
+        emit(entry);
+      });
+    }
+    if (bufferedOutput) {
+      emit0("section .bss");
+      OutputRuntime.bss().forEach(this::emit);
+    }
+  }
+
+  /** Returns which variables the Ir reads or writes, by number. */
+  private boolean[] usedVars() {
+    boolean[] used = new boolean[ir.varCount()];
+    for (int i = 0; i < ir.size(); ++i) {
+      for (long operand : new long[] {ir.dst(i), ir.src1(i), ir.src2(i)}) {
+        if (Operand.isVar(operand)) {
+          used[Operand.value(operand)] = true;
+        }
+      }
+    }
+    return used;
+  }
+
+  private void generate(int i) {
+    long dst = ir.dst(i);
+    long src1 = ir.src1(i);
+    switch (ir.op(i)) {
+      case COPY:
+        copy(ir.type(i), dst, src1);
+        break;
+
+      case BINARY:
+        binary(ir.symbol(i), ir.type(i), dst, src1, ir.src2(i));
+        break;
+
+      case PRINT:
+      case PRINTLN:
+        print(ir.type(i), src1, ir.op(i) == Opcode.PRINTLN);
+        break;
+
+      case LABEL:
+        if (loopHeaders[Operand.value(dst)]) {
+          emit("align 16");
+        }
+        emitLabel(ir.labelName(dst));
+        break;
+
+      case JUMP:
+        emit("jmp " + ir.labelName(dst));
+        break;
+
+      case JUMP_IF_FALSE:
+        // The condition is a temp, in AL
+        emit("cmp AL, 0");
+        emit("jz " + ir.labelName(dst));
+        break;
+
+      case BRANCH:
+        compare(ir.type(i), src1, ir.src2(i));
+        emit("j" + condition(ir.symbol(i), ir.type(i)) + " " + ir.labelName(dst));
+        break;
+
+      case COMPARE:
+        if (minMax(i + 1) == null) {
+          compare(ir.type(i), src1, ir.src2(i));
+        }
+        break;
+
+      case SELECT:
+        select(i);
+        break;
+
+      case NOP:
+        break;
+
+      case INC:
+        if (inRegister(dst)) {
+          emit("inc " + location(dst));
+        } else {
+          emit("inc DWORD " + location(dst));
+        }
+        break;
+
+      default:
+        fail("Cannot generate " + ir.toString(i));
+        break;
+    }
+  }
+
+  private void copy(VarType type, long dst, long src) {
+    if (inRegister(dst)) {
+      load(type, src, location(dst));
+      return;
+    }
+    if (type == VarType.INT && Operand.kind(src) == Kind.INT) {
+      emit(String.format("mov DWORD %s, %s", location(dst), source(src)));
+      return;
+    }
+    store(dst, inRegister(src) ? location(src) : load(type, src, scratch(type)));
+  }
+
+  private void binary(Symbol symbol, VarType type, long dst, long left, long right) {
+    if (CONDITIONS.get(type).containsKey(symbol)) {
+      compare(type, left, right);
+      emit("set" + condition(symbol, type) + " AL");
+      return;
+    }
+    if (type == VarType.INT && symbol == Symbol.DIV) {
+      if (strengthReduction && Operand.kind(right) == Kind.INT
+          && divideByConstant(left, Operand.value(right))) {
+        storeResult(dst, "EAX");
+        return;
+      }
+      load(type, left, "EAX");
+      emit("cdq");
+      if (Operand.kind(right) == Kind.INT) {
+        emit("mov ECX, " + source(right));
+        emit("idiv ECX");
+      } else {
+        emit("idiv " + (inRegister(right) ? location(right) : "DWORD " + location(right)));
+      }
+      storeResult(dst, "EAX");
+      return;
+    }
+    boolean commutative = symbol == Symbol.PLUS || symbol == Symbol.MULT;
+    if (commutative && Operand.kind(left) == Kind.INT && Operand.kind(right) != Kind.INT) {
+      // Constants go on the right.
+      long swap = left;
+      left = right;
+      right = swap;
+    }
+    if (commutative && dst == right && dst != left) {
+      long swap = left;
+      left = right;
+      right = swap;
+    }
+    // Compute directly in the variable's register when that does not clobber the right operand.
+    String target = scratch(type);
+    if (inRegister(dst) && dst != right) {
+      target = location(dst);
+    }
+    load(type, left, target);
+    if (strengthReduction && symbol == Symbol.MULT && Operand.kind(right) == Kind.INT) {
+      String wide = target.equals("EAX") ? "RAX" : registers[Operand.value(dst)].name64;
+      multiplyByConstant(target, wide, Operand.value(right));
+    } else {
+      emit(String.format("%s %s, %s", ARITH_OPCODES.get(type).get(symbol), target, source(right)));
+    }
+    storeResult(dst, target);
+  }
+
+  /**
+   * Multiplies the register by the constant with shifts, lea and neg where they are as fast as
+   * imul. The wide name is the 64-bit name of the register, for lea addressing.
+   */
+  private void multiplyByConstant(String register, String wide, int constant) {
+    if (constant == 0) {
+      emit(String.format("xor %s, %s", register, register));
+    } else if (constant == 1) {
+      return;
+    } else if (constant == -1) {
+      emit("neg " + register);
+    } else if (!shiftAndAdd(register, wide, constant)) {
+      // Integer.MIN_VALUE is a power of two, and handled above.
+      if (constant < 0 && isPowerOfTwo(-constant)) {
+        shiftAndAdd(register, wide, -constant);
+        emit("neg " + register);
+      } else {
+        emit(String.format("imul %s, %d", register, constant));
+      }
+    }
+  }
+
+  /** Multiplies by 2^k, or by 3, 5 or 9 times 2^k, if the constant is one of those. */
+  private boolean shiftAndAdd(String register, String wide, int constant) {
+    if (isPowerOfTwo(constant)) {
+      emit(String.format("shl %s, %d", register, Integer.numberOfTrailingZeros(constant)));
+      return true;
+    }
+    for (int factor : new int[] {9, 5, 3}) {
+      if (constant > 0 && constant % factor == 0 && isPowerOfTwo(constant / factor)) {
+        emit(String.format("lea %s, [%s+%s*%d]", register, wide, wide, factor - 1));
+        if (constant != factor) {
+          emit(String.format("shl %s, %d",
+              register, Integer.numberOfTrailingZeros(constant / factor)));
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isPowerOfTwo(int constant) {
+    return Integer.bitCount(constant) == 1;
+  }
+
+  /**
+   * Divides the left operand by the constant into EAX, rounding toward zero like idiv, without
+   * idiv. Returns false for 0 and -1, which must keep idiv so they fault like it.
+   */
+  private boolean divideByConstant(long left, int divisor) {
+    if (divisor == 0 || divisor == -1) {
+      return false;
+    }
+    if (divisor == 1) {
+      load(VarType.INT, left, "EAX");
+      return true;
+    }
+    // Integer.MIN_VALUE is its own negation, and a power of two.
+    int magnitude = Math.abs(divisor);
+    if (isPowerOfTwo(magnitude)) {
+      // Add 2^k - 1 to negative dividends, so the shift rounds toward zero.
+      int k = Integer.numberOfTrailingZeros(magnitude);
+      load(VarType.INT, left, "EAX");
+      emit("mov ECX, EAX");
+      if (k > 1) {
+        emit("sar ECX, 31");
+      }
+      emit("shr ECX, " + (32 - k));
+      emit("add EAX, ECX");
+      emit("sar EAX, " + k);
+    } else {
+      DivisionMagic magic = DivisionMagic.of(magnitude);
+      if (Operand.isVar(left)) {
+        emit("movsxd RAX, " + (inRegister(left) ? location(left) : "DWORD " + location(left)));
+      } else {
+        emit("movsxd RAX, " + load(VarType.INT, left, "EAX"));
+      }
+      emit("mov ECX, " + magic.multiplier);
+      emit("imul RAX, RCX");
+      emit("sar RAX, " + (32 + magic.shift));
+      // The floor is one less than the truncation for negative dividends.
+      emit("mov ECX, EAX");
+      emit("shr ECX, 31");
+      emit("add EAX, ECX");
+    }
+    if (divisor < 0) {
+      emit("neg EAX");
+    }
+    return true;
+  }
+
+  /** Sets the flags by comparing left to right. The right operand may be a temp. */
+  private void compare(VarType type, long left, long right) {
+    switch (type) {
+      case INT:
+        if (inRegister(left)) {
+          emit(String.format("cmp %s, %s", location(left), source(right)));
+        } else if (Operand.isVar(left) && Operand.kind(right) == Kind.INT) {
+          emit(String.format("cmp DWORD %s, %s", location(left), source(right)));
+        } else if (Operand.isVar(left) && (!Operand.isVar(right) || inRegister(right))) {
+          // Memory against a register or temp
+          emit(String.format("cmp %s, %s", location(left), source(right)));
+        } else {
+          emit(String.format("cmp %s, %s", load(type, left, "ECX"), source(right)));
+        }
+        return;
+
+      case FLOAT:
+        String register = inRegister(left) ? location(left) : load(type, left, "XMM1");
+        emit(String.format("comisd %s, %s", register, source(right)));
+        return;
+
+      default:
+        fail("Cannot compare " + type);
+        break;
+    }
+  }
+
+  /**
+   * Moves src1 into dst if the condition held for the preceding COMPARE, or else src2, without
+   * branching. The moves in between leave the flags alone.
+   */
+  private void select(int i) {
+    long dst = ir.dst(i);
+    long thenValue = ir.src1(i);
+    long elseValue = ir.src2(i);
+    Symbol symbol = ir.symbol(i);
+    if (thenValue == dst) {
+      // Only move when it would change dst.
+      thenValue = elseValue;
+      elseValue = dst;
+      symbol = symbol.negated();
+    }
+    if (thenValue == dst) {
+      return;
+    }
+    String condition = condition(symbol, ir.type(i));
+    VarType type = ir.typeOf(dst);
+    if (type == VarType.INT) {
+      String target = inRegister(dst) ? location(dst) : "EAX";
+      load(type, elseValue, target);
+      String source = source(thenValue);
+      if (!Operand.isVar(thenValue)) {
+        // cmov does not take immediates.
+        source = load(type, thenValue, "EDX");
+      }
+      emit(String.format("cmov%s %s, %s", condition, target, source));
+      storeResult(dst, target);
+      return;
+    }
+    String minMax = minMax(i);
+    if (minMax != null) {
+      // Computes min(right, left) or max(left, right), by the operands of the COMPARE.
+      long first = minMax.equals("maxsd") ? ir.src1(i - 1) : ir.src2(i - 1);
+      long second = minMax.equals("maxsd") ? ir.src2(i - 1) : ir.src1(i - 1);
+      String target = inRegister(dst) && dst != second ? location(dst) : "XMM0";
+      load(type, first, target);
+      emit(String.format("%s %s, %s", minMax, target, source(second)));
+      storeResult(dst, target);
+      return;
+    }
+    // Selects the bits in general purpose registers.
+    emit(String.format("%s RAX, %s", inRegister(elseValue) ? "movq" : "mov", source(elseValue)));
+    emit(String.format("%s RDX, %s", inRegister(thenValue) ? "movq" : "mov", source(thenValue)));
+    emit(String.format("cmov%s RAX, RDX", condition));
+    if (inRegister(dst)) {
+      emit(String.format("movq %s, RAX", location(dst)));
+    } else {
+      emit(String.format("mov %s, RAX", location(dst)));
+    }
+  }
+
+  /**
+   * Returns maxsd or minsd if the SELECT at the index picks the larger or smaller of the two
+   * FLOATs just compared, exactly like that instruction does, or else null. maxsd and minsd
+   * return the second operand when either is NaN, and so does a GT select of the first operand.
+   */
+  private String minMax(int i) {
+    if (i >= ir.size() || ir.op(i) != Opcode.SELECT || ir.type(i) != VarType.FLOAT
+        || ir.symbol(i) != Symbol.GT) {
+      return null;
+    }
+    long left = ir.src1(i - 1);
+    long right = ir.src2(i - 1);
+    if (ir.src1(i) == left && ir.src2(i) == right) {
+      return "maxsd";
+    }
+    if (ir.src1(i) == right && ir.src2(i) == left) {
+      return "minsd";
+    }
+    return null;
+  }
+
+  private static String condition(Symbol symbol, VarType type) {
+    String condition = CONDITIONS.get(type).get(symbol);
+    if (condition == null) {
+      throw new IllegalStateException("Cannot emit opcode for " + symbol);
+    }
+    return condition;
+  }
+
+  private void print(VarType type, long value, boolean isPrintln) {
+    switch (type) {
+      case INT:
+        formats.add("INT_FMT: db '%d', 0");
+        emit("mov RCX, INT_FMT");
+        emit("mov EDX, " + source(value));
+        break;
+
+      case STR:
+        emit("mov RCX, " + source(value));
+        break;
+
+      case BOOL:
+        formats.add("TRUE: db 'true', 0");
+        formats.add("FALSE: db 'false', 0");
+        if (Operand.kind(value) == Kind.BOOL) {
+          emit("mov RCX, " + (Operand.value(value) != 0 ? "TRUE" : "FALSE"));
+          break;
+        }
+        // The value is a temp, in AL
+        emit("cmp AL, 1");
+        emit("mov RCX, FALSE");
+        emit("mov RDX, TRUE");
+        emit("cmovz RCX, RDX");
+        break;
+
+      case FLOAT:
+        formats.add(FLOAT_FMT);
+        emit("mov RCX, FLOAT_FMT");
+        if (inRegister(value) || Operand.isTemp(value)) {
+          emit("movq RDX, " + source(value));
+        } else {
+          emit("mov RDX, " + source(value));
+        }
+        break;
+
+      default:
+        fail("Cannot print " + type);
+        break;
+    }
+    emit("sub RSP, 0x20");
+    emit("extern printf");
+    emit("call printf");
+    if (isPrintln) {
+      emit("extern putchar");
+      emit("mov rcx, 10");
+      emit("call putchar");
+    }
+    emit("add RSP, 0x20");
+  }
+
+  /**
+   * Returns the index just past the run of prints starting at the index that printAll can print
+   * together, or the index itself if there is none. Only the first print in a run may print a
+   * temp, which was computed right before it; BOOL temps are always printed on their own.
+   */
+  private int printsEnd(int start) {
+    int end = start;
+    while (end < ir.size() && end - start < MAX_PRINTS && isPrint(end)) {
+      long value = ir.src1(end);
+      if (Operand.isTemp(value) && (end > start || ir.typeOf(value) == VarType.BOOL)) {
+        break;
+      }
+      end++;
+    }
+    return end;
+  }
+
+  /**
+   * Prints the values of the PRINTs and PRINTLNs from start to end with one call to printf.
+   * Constants other than floats, and the newlines, are part of the format.
+   */
+  private void printAll(int start, int end) {
+    StringBuilder format = new StringBuilder();
+    List<Long> arguments = new ArrayList<>();
+    for (int i = start; i < end; ++i) {
+      long value = ir.src1(i);
+      switch (Operand.kind(value)) {
+        case INT:
+          format.append(Operand.value(value));
+          break;
+
+        case BOOL:
+          format.append(Operand.value(value) != 0 ? "true" : "false");
+          break;
+
+        case STRING:
+          format.append(ir.stringValue(value).replace("%", "%%"));
+          break;
+
+        default:
+          format.append(PRINT_CONVERSIONS.get(ir.typeOf(value)));
+          arguments.add(value);
+          break;
+      }
+      if (ir.op(i) == Opcode.PRINTLN) {
+        format.append('\n');
+      }
+    }
+    emit("mov RCX, " + textData(printFormats, "FMT_", format.toString()));
+    for (int a = 0; a < arguments.size() && a < ARGUMENT_REGISTERS.size(); ++a) {
+      moveArgument(arguments.get(a), ARGUMENT_REGISTERS.get(a));
+    }
+    // Room for the four home slots of the registers, and the rest of the arguments
+    int frame = 8 * Math.max(4, arguments.size() + 1);
+    frame = (frame + 15) & ~15;
+    emit(String.format("sub RSP, 0x%x", frame));
+    for (int a = ARGUMENT_REGISTERS.size(); a < arguments.size(); ++a) {
+      moveArgument(arguments.get(a), RAX);
+      emit(String.format("mov [RSP+0x%x], RAX", 8 * (a + 1)));
+    }
+    emit("extern printf");
+    emit("call printf");
+    emit(String.format("add RSP, 0x%x", frame));
+  }
+
+  /** Moves a value to print into the register, given by its 64 and 32 bit names. */
+  private void moveArgument(long value, String[] register) {
+    VarType type = ir.typeOf(value);
+    if (type == VarType.INT) {
+      emit(String.format("mov %s, %s", register[1], source(value)));
+    } else if (type == VarType.FLOAT && (inRegister(value) || Operand.isTemp(value))) {
+      emit(String.format("movq %s, %s", register[0], source(value)));
+    } else {
+      emit(String.format("mov %s, %s", register[0], source(value)));
+    }
+  }
+
+  /**
+   * Returns the name of the data entry for the NUL-terminated text, adding it with a name that
+   * starts with the prefix if needed.
+   */
+  private String textData(Map<String, String> names, String prefix, String text) {
+    String name = names.get(text);
+    if (name == null) {
+      name = prefix + names.size();
+      names.put(text, name);
+      // NASM does not expand escapes in double quotes, so newlines are separate bytes.
+      List<String> bytes = new ArrayList<>();
+      String[] lines = text.split("\n", -1);
+      for (int i = 0; i < lines.length; ++i) {
+        if (i > 0) {
+          bytes.add("10");
+        }
+        if (!lines[i].isEmpty()) {
+          bytes.add('"' + lines[i] + '"');
+        }
+      }
+      bytes.add("0");
+      formats.add(String.format("%s: db %s", name, String.join(", ", bytes)));
+    }
+    return name;
+  }
+
+  /**
+   * Appends the values of the PRINTs and PRINTLNs from start to end to the output buffer.
+   * Constants other than floats, and the newlines, are appended as one text where they are
+   * next to each other.
+   */
+  private void appendAll(int start, int end) {
+    StringBuilder text = new StringBuilder();
+    for (int i = start; i < end; ++i) {
+      long value = ir.src1(i);
+      switch (Operand.kind(value)) {
+        case INT:
+          text.append(Operand.value(value));
+          break;
+
+        case BOOL:
+          text.append(Operand.value(value) != 0 ? "true" : "false");
+          break;
+
+        case STRING:
+          text.append(ir.stringValue(value));
+          break;
+
+        default:
+          appendText(text);
+          appendValue(value);
+          break;
+      }
+      if (ir.op(i) == Opcode.PRINTLN) {
+        text.append('\n');
+      }
+    }
+    appendText(text);
+  }
+
+  /** Appends the text, if any, and clears it. */
+  private void appendText(StringBuilder text) {
+    if (text.length() == 0) {
+      return;
+    }
+    emit("mov RCX, " + textData(texts, "TEXT_", text.toString()));
+    emit("call " + OutputRuntime.APPEND_STRING);
+    text.setLength(0);
+  }
+
+  private void appendValue(long value) {
+    VarType type = ir.typeOf(value);
+    switch (type) {
+      case INT:
+        emit("mov ECX, " + source(value));
+        emit("call " + OutputRuntime.APPEND_INT);
+        appendsInts = true;
+        break;
+
+      case FLOAT:
+        moveArgument(value, RCX);
+        emit("call " + OutputRuntime.APPEND_FLOAT);
+        appendsFloats = true;
+        break;
+
+      case STR:
+        emit("mov RCX, " + source(value));
+        emit("call " + OutputRuntime.APPEND_STRING);
+        break;
+
+      case BOOL:
+        // The value is a temp, in AL
+        formats.add("TRUE: db 'true', 0");
+        formats.add("FALSE: db 'false', 0");
+        emit("cmp AL, 1");
+        emit("mov RCX, FALSE");
+        emit("mov RDX, TRUE");
+        emit("cmovz RCX, RDX");
+        emit("call " + OutputRuntime.APPEND_STRING);
+        break;
+
+      default:
+        fail("Cannot print " + type);
+        break;
+    }
+  }
+
+  private boolean isPrint(int i) {
+    return ir.op(i) == Opcode.PRINT || ir.op(i) == Opcode.PRINTLN;
+  }
+
+  /** Moves the operand into the register, unless it is already there, and returns the register. */
+  private String load(VarType type, long operand, String register) {
+    String source = source(operand);
+    if (!source.equals(register)) {
+      emit(String.format("%s %s, %s", type == VarType.FLOAT ? "movq" : "mov", register, source));
+    }
+    return register;
+  }
+
+  /** Stores the result of a BINARY from the register into its destination, if needed. */
+  private void storeResult(long dst, String register) {
+    if (Operand.isVar(dst) && !location(dst).equals(register)) {
+      store(dst, register);
+    }
+  }
+
+  private void store(long var, String register) {
+    emit(String.format("%s %s, %s",
+        ir.typeOf(var) == VarType.FLOAT ? "movq" : "mov", location(var), register));
+  }
+
+  private static String scratch(VarType type) {
+    switch (type) {
+      case INT:
+        return "EAX";
+
+      case FLOAT:
+        return "XMM0";
+
+      default:
+        return "RAX";
+    }
+  }
+
+  private boolean inRegister(long operand) {
+    return Operand.isVar(operand) && registers[Operand.value(operand)] != null;
+  }
+
+  /** Returns the register or memory slot of the variable. */
+  private String location(long var) {
+    Register register = registers[Operand.value(var)];
+    if (register != null) {
+      return register.name(ir.typeOf(var));
+    }
+    return "[_" + ir.varName(var) + "]";
+  }
+
+  /**
+   * Returns the operand as an instruction source: an immediate, a register or a memory
+   * reference. Temps are in the scratch register of their type.
+   */
+  private String source(long operand) {
+    switch (Operand.kind(operand)) {
+      case TEMP:
+        return scratch(ir.typeOf(operand));
+
+      case INT:
+      case BOOL:
+        return String.valueOf(Operand.value(operand));
+
+      case STRING:
+        usedConstants.add(operand);
+        return ir.stringName(operand);
+
+      case FLOAT:
+        usedConstants.add(operand);
+        return "[" + ir.floatName(operand) + "]";
+
+      case VAR:
+        return location(operand);
+
+      default:
+        throw new IllegalStateException("Cannot use " + operand + " as a source");
+    }
+  }
+
+  private void emit(String line) {
+    emit0("  " + line);
+  }
+
+  private void emitLabel(String label) {
+    emit0(label + ":");
+  }
+
+  private void emit0(String line) {
+    sink.add(line);
+  }
+
+  private void fail(String message) {
+    throw new IllegalStateException(message);
+  }
+}
@@ -0,0 +1,9 @@
+package com.plasstech.lang.ssl;
+
+/** Takes generated code a line at a time, as it is generated. */
+public interface CodeSink {
+  void add(String line);
+
+  /** Called after the last line, to pass on or write out what the sink still holds. */
+  default void finish() {}
+}
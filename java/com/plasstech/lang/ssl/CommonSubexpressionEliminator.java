@@ -0,0 +1,254 @@
+package com.plasstech.lang.ssl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.plasstech.lang.ssl.Operand.Kind;
+
+/**
+ * Removes recomputed expressions and propagates copies, by local value numbering: within each
+ * basic block, every value gets a number, and an expression of the same operator and numbered
+ * operands has the same value. A BINARY whose value a variable already holds becomes a copy of
+ * that variable, and reads of a variable are replaced by the variable that first got its value,
+ * so that copies like "j = k" become dead. Nothing is assumed at the start of a block, since
+ * another path may reach it, so IFs and FORs start over.
+ *
+ * <p>Programs have many blocks and many variables, so a variable only gets its number in a block
+ * when the block first uses it, and each value number keeps the variables that got it.
+ */
+public class CommonSubexpressionEliminator {
+  // Value numbers are packed into 26 bits of the expression keys.
+  private static final int MAX_NUMBERS = 1 << 26;
+
+  private final Ir ir;
+  // Value number of each variable, if its stamp is the current block
+  private final int[] numbers;
+  private final int[] stamps;
+  private int block;
+  // For each value number, the variable that first got it, if any
+  private int[] homes = new int[64];
+  // For each value number, the first of a list of variables that got it, linked through
+  // nextHolders; they may since have gotten another
+  private int[] firstHolders = new int[64];
+  private int[] holderVars = new int[64];
+  private int[] nextHolders = new int[64];
+  private int holderCount;
+  private final Map<Long, Integer> constants = new HashMap<>();
+  private final Map<Long, Integer> expressions = new HashMap<>();
+  private int next;
+
+  // A temp whose BINARY was removed, and the variable to read instead
+  private long removedTemp;
+  private long replacement;
+
+  private CommonSubexpressionEliminator(Ir ir) {
+    this.ir = ir;
+    this.numbers = new int[ir.varCount()];
+    this.stamps = new int[ir.varCount()];
+  }
+
+  /** Rewrites the Ir in place. */
+  public static void eliminate(Ir ir) {
+    CommonSubexpressionEliminator eliminator = new CommonSubexpressionEliminator(ir);
+    ControlFlowGraph cfg = ControlFlowGraph.of(ir);
+    for (int b = 0; b < cfg.size(); ++b) {
+      eliminator.run(cfg.start(b), cfg.end(b));
+    }
+    ir.compact();
+  }
+
+  private void run(int start, int end) {
+    next = 0;
+    holderCount = 0;
+    block++;
+    constants.clear();
+    expressions.clear();
+    removedTemp = Operand.NONE;
+    for (int i = start; i < end; ++i) {
+      Opcode op = ir.op(i);
+      VarType type = ir.type(i);
+      Symbol symbol = ir.symbol(i);
+      long dst = ir.dst(i);
+      long src1 = substitute(ir.src1(i));
+      long src2 = substitute(ir.src2(i));
+      switch (op) {
+        case COPY: {
+          int number = numberOf(src1);
+          if (Operand.isVar(dst) && number(Operand.value(dst)) == number) {
+            // Already holds the value
+            ir.remove(i);
+            break;
+          }
+          ir.set(i, op, type, symbol, dst, src1, src2);
+          define(dst, number);
+          break;
+        }
+
+        case BINARY: {
+          long key = key(symbol, type, numberOf(src1), numberOf(src2));
+          Integer number = expressions.get(key);
+          long holder = number == null ? Operand.NONE : holder(number);
+          if (holder == Operand.NONE) {
+            ir.set(i, op, type, symbol, dst, src1, src2);
+            if (number == null) {
+              number = newNumber(-1);
+              expressions.put(key, number);
+            }
+          } else if (Operand.isTemp(dst)) {
+            // The temp is only read by the next instruction.
+            ir.remove(i);
+            removedTemp = dst;
+            replacement = holder;
+            break;
+          } else if (number(Operand.value(dst)) == number) {
+            ir.remove(i);
+            break;
+          } else {
+            ir.set(i, Opcode.COPY, ir.typeOf(dst), null, dst, holder, Operand.NONE);
+          }
+          define(dst, number);
+          break;
+        }
+
+        case INC: {
+          // The same as dst = dst + 1
+          long one = Operand.intConstant(1);
+          long key = key(Symbol.PLUS, VarType.INT, numberOf(dst), numberOf(one));
+          Integer number = expressions.get(key);
+          if (number == null) {
+            number = newNumber(-1);
+            expressions.put(key, number);
+          }
+          define(dst, number);
+          break;
+        }
+
+        case SELECT:
+          ir.set(i, op, type, symbol, dst, src1, src2);
+          define(dst, newNumber(-1));
+          break;
+
+        case PRINT:
+        case PRINTLN:
+        case JUMP_IF_FALSE:
+        case BRANCH:
+        case COMPARE:
+          ir.set(i, op, type, symbol, dst, src1, src2);
+          break;
+
+        default:
+          break;
+      }
+    }
+  }
+
+  /** Returns the variable to read instead of the operand, or the operand itself. */
+  private long substitute(long operand) {
+    if (operand == removedTemp && operand != Operand.NONE) {
+      removedTemp = Operand.NONE;
+      return replacement;
+    }
+    if (Operand.isVar(operand)) {
+      return holder(number(Operand.value(operand)));
+    }
+    return operand;
+  }
+
+  private void define(long dst, int number) {
+    if (!Operand.isVar(dst)) {
+      return;
+    }
+    int var = Operand.value(dst);
+    numbers[var] = number;
+    stamps[var] = block;
+    if (homes[number] < 0) {
+      homes[number] = var;
+    }
+    addHolder(number, var);
+  }
+
+  /** Returns the value number of the variable, giving it a new one if the block has not yet. */
+  private int number(int var) {
+    if (stamps[var] != block) {
+      stamps[var] = block;
+      numbers[var] = newNumber(var);
+      addHolder(numbers[var], var);
+    }
+    return numbers[var];
+  }
+
+  private void addHolder(int number, int var) {
+    if (holderCount == holderVars.length) {
+      holderVars = Arrays.copyOf(holderVars, holderCount * 2);
+      nextHolders = Arrays.copyOf(nextHolders, holderCount * 2);
+    }
+    holderVars[holderCount] = var;
+    nextHolders[holderCount] = firstHolders[number];
+    firstHolders[number] = holderCount++;
+  }
+
+  /** Returns a variable that holds the value, preferring the one that got it first, or NONE. */
+  private long holder(int number) {
+    int home = homes[number];
+    if (home < 0 || !holds(home, number)) {
+      // The lowest numbered variable that still holds it
+      home = -1;
+      for (int h = firstHolders[number]; h >= 0; h = nextHolders[h]) {
+        int var = holderVars[h];
+        if ((home < 0 || var < home) && holds(var, number)) {
+          home = var;
+        }
+      }
+      homes[number] = home;
+    }
+    return home < 0 ? Operand.NONE : Operand.of(Kind.VAR, home);
+  }
+
+  private boolean holds(int var, int number) {
+    return stamps[var] == block && numbers[var] == number;
+  }
+
+  private int numberOf(long operand) {
+    if (Operand.isVar(operand)) {
+      return number(Operand.value(operand));
+    }
+    // Constants are interned, so equal constants are the same operand.
+    Integer number = constants.get(operand);
+    if (number == null) {
+      number = newNumber(-1);
+      constants.put(operand, number);
+    }
+    return number;
+  }
+
+  private int newNumber(int home) {
+    if (next == MAX_NUMBERS) {
+      // Expression keys would collide, and one expression take the value of another.
+      throw new IllegalStateException("Basic block too large for value numbering");
+    }
+    if (next == homes.length) {
+      homes = Arrays.copyOf(homes, next * 2);
+      firstHolders = Arrays.copyOf(firstHolders, next * 2);
+    }
+    homes[next] = home;
+    firstHolders[next] = -1;
+    return next++;
+  }
+
+  private static long key(Symbol symbol, VarType type, int left, int right) {
+    if (type == VarType.INT && left > right && isCommutative(symbol)) {
+      int swap = left;
+      left = right;
+      right = swap;
+    }
+    // Value numbers are below MAX_NUMBERS, so each fits in 26 bits.
+    return ((long) symbol.ordinal() << 58) | ((long) type.ordinal() << 52)
+        | ((long) left << 26) | right;
+  }
+
+  private static boolean isCommutative(Symbol symbol) {
+    return symbol == Symbol.PLUS || symbol == Symbol.MULT || symbol == Symbol.EQEQ
+        || symbol == Symbol.NEQ;
+  }
+}
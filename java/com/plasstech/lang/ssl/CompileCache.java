@@ -0,0 +1,182 @@
+package com.plasstech.lang.ssl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Code compiled before, in a directory, by the SHA-256 of the source, the compiler and the
+ * optimizations. Since the code generator is deterministic, a hit is the same code compiling would
+ * give.
+ *
+ * <p>Entries are written to a temporary file and renamed, so several compilers can share the
+ * directory. Reading an entry updates its modification time, and when the entries take more than
+ * maxBytes, the least recently used are removed.
+ */
+public class CompileCache {
+  private static final String EXTENSION = ".asm";
+  private static final String TEMPORARY_EXTENSION = ".tmp";
+
+  // Hashes the classes the compiler was loaded from, once.
+  private static final Supplier<byte[]> COMPILER =
+      Suppliers.memoize(CompileCache::hashCompiler);
+
+  private final Path directory;
+  private final long maxBytes;
+  // What the entries take, as of the last scan plus what was added since.
+  private final AtomicLong size = new AtomicLong();
+
+  public CompileCache(Path directory, long maxBytes) throws IOException {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    Files.createDirectories(directory);
+    size.set(entries().stream().mapToLong(entry -> entry.size).sum());
+  }
+
+  /** Returns the code as it is written to a file: each line, then the line separator. */
+  public static byte[] text(List<String> code) {
+    StringBuilder text = new StringBuilder();
+    code.forEach(line -> text.append(line).append(System.lineSeparator()));
+    return text.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  /** Returns the key of the code for the source, compiled with the optimizations. */
+  public static String key(byte[] source, Set<Optimization> optimizations) {
+    MessageDigest digest = sha256();
+    digest.update(COMPILER.get());
+    // In the order of the enum, whatever the order of the set.
+    for (Optimization optimization : Optimization.values()) {
+      digest.update((byte) (optimizations.contains(optimization) ? 1 : 0));
+    }
+    digest.update(source);
+    return BaseEncoding.base16().lowerCase().encode(digest.digest());
+  }
+
+  /** Returns the code for the key, or null if it is not cached. */
+  public byte[] get(String key) throws IOException {
+    Path entry = directory.resolve(key + EXTENSION);
+    try {
+      byte[] code = Files.readAllBytes(entry);
+      Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+      return code;
+    } catch (NoSuchFileException e) {
+      // Not cached, or removed by another compiler after we looked.
+      return null;
+    }
+  }
+
+  /** Caches the code for the key, then removes the least recently used entries if too large. */
+  public void put(String key, byte[] code) throws IOException {
+    Path temporary = Files.createTempFile(directory, key, TEMPORARY_EXTENSION);
+    try {
+      Files.write(temporary, code);
+      try {
+        Files.move(temporary, directory.resolve(key + EXTENSION),
+            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temporary, directory.resolve(key + EXTENSION),
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+    if (size.addAndGet(code.length) > maxBytes) {
+      evict();
+    }
+  }
+
+  private synchronized void evict() throws IOException {
+    List<Entry> entries = entries();
+    entries.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+    long total = entries.stream().mapToLong(entry -> entry.size).sum();
+    for (int i = 0; i < entries.size() && total > maxBytes; ++i) {
+      Files.deleteIfExists(entries.get(i).path);
+      total -= entries.get(i).size;
+    }
+    size.set(total);
+  }
+
+  private List<Entry> entries() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      List<Entry> entries = new ArrayList<>();
+      for (Path file : files.filter(file -> file.toString().endsWith(EXTENSION))
+          .collect(Collectors.toList())) {
+        try {
+          entries.add(
+              new Entry(file, Files.size(file), Files.getLastModifiedTime(file).toMillis()));
+        } catch (NoSuchFileException e) {
+          // Removed by another compiler.
+        }
+      }
+      return entries;
+    }
+  }
+
+  private static class Entry {
+    final Path path;
+    final long size;
+    final long lastUsed;
+
+    Entry(Path path, long size, long lastUsed) {
+      this.path = path;
+      this.size = size;
+      this.lastUsed = lastUsed;
+    }
+  }
+
+  /**
+   * Hashes the jar or the directory of classes that this class was loaded from, so that a
+   * different compiler does not get code cached by this one.
+   */
+  private static byte[] hashCompiler() {
+    MessageDigest digest = sha256();
+    try {
+      Path location = Path.of(
+          CompileCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+      if (Files.isDirectory(location)) {
+        try (Stream<Path> files = Files.walk(location)) {
+          for (Path file : files.filter(Files::isRegularFile).sorted()
+              .collect(Collectors.toList())) {
+            digest.update(location.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+            digest.update(Files.readAllBytes(file));
+          }
+        }
+      } else {
+        digest.update(Files.readAllBytes(location));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+    return digest.digest();
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
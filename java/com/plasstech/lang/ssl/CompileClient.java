@@ -0,0 +1,40 @@
+package com.plasstech.lang.ssl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+/** Sends programs to a CompileServer. */
+public class CompileClient {
+  private CompileClient() {}
+
+  /**
+   * Sends the flags and the source read from in to the server at the socket. Writes the code to
+   * out, or why it did not compile to err, and returns whether it compiled.
+   */
+  public static boolean compile(Path socket, List<String> flags, InputStream in, OutputStream out,
+      OutputStream err) throws IOException {
+    try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+      // Not closed, since closing them would close the channel.
+      OutputStream request = Channels.newOutputStream(channel);
+      request.write((String.join(" ", flags) + "\n").getBytes(StandardCharsets.ISO_8859_1));
+      in.transferTo(request);
+      channel.shutdownOutput();
+
+      InputStream response = Channels.newInputStream(channel);
+      StringBuilder status = new StringBuilder();
+      for (int c = response.read(); c >= 0 && c != '\n'; c = response.read()) {
+        status.append((char) c);
+      }
+      boolean ok = status.toString().equals(CompileServer.OK);
+      response.transferTo(ok ? out : err);
+      return ok;
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package com.plasstech.lang.ssl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiles programs sent over a Unix domain socket, so that each compile does not pay for starting
+ * and warming up a JVM. A request is a line of flags, as for Sslc, then the source, ended by
+ * shutting down output. The response is a line "OK" then the code, or "ERROR" then why.
+ *
+ * <p>Connections are handled on a fixed number of threads, and up to queueSize more wait in a
+ * bounded queue. While that is full the server does not accept, so clients wait in the listen
+ * backlog instead of piling up in memory. Requests larger than maxRequestSize are read to the end
+ * but not kept, and get an error.
+ */
+public class CompileServer implements Closeable {
+  static final String OK = "OK";
+  static final String ERROR = "ERROR";
+
+  private static final int INITIAL_REQUEST_SIZE = 8192;
+  private static final int DEFAULT_MAX_REQUEST_SIZE = 64 << 20;
+
+  private final Path socket;
+  private final ServerSocketChannel channel;
+  private final ThreadPoolExecutor executor;
+  private final int maxRequestSize;
+
+  public CompileServer(Path socket, int threads, int queueSize) throws IOException {
+    this(socket, threads, queueSize, DEFAULT_MAX_REQUEST_SIZE);
+  }
+
+  public CompileServer(Path socket, int threads, int queueSize, int maxRequestSize)
+      throws IOException {
+    this.socket = socket;
+    this.maxRequestSize = maxRequestSize;
+    this.channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    channel.bind(UnixDomainSocketAddress.of(socket));
+    // Instead of rejecting when the queue is full, waits for room, which is the backpressure.
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueSize), (task, executor) -> {
+          try {
+            executor.getQueue().put(task);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+          }
+        });
+  }
+
+  /**
+   * Accepts and handles connections until the server is closed, then returns once the accepted
+   * ones are done.
+   */
+  public void serve() throws IOException {
+    try {
+      while (true) {
+        SocketChannel client;
+        try {
+          client = channel.accept();
+        } catch (ClosedChannelException e) {
+          return;
+        }
+        executor.execute(() -> handle(client));
+      }
+    } finally {
+      // Only this thread adds work, so nothing is queued after this.
+      executor.shutdown();
+      try {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Stops accepting and removes the socket. */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+    Files.deleteIfExists(socket);
+  }
+
+  private void handle(SocketChannel client) {
+    try (client) {
+      ByteBuffer request = read(client, maxRequestSize);
+      ByteBuffer response = ByteBuffer.wrap(request == null
+          ? error("Request larger than " + maxRequestSize + " bytes")
+          : compile(request));
+      while (response.hasRemaining()) {
+        client.write(response);
+      }
+    } catch (IOException e) {
+      // The client went away; there is no one to tell.
+    }
+  }
+
+  /** Reads the request, or returns null if it is larger than maxSize. */
+  private static ByteBuffer read(SocketChannel client, int maxSize) throws IOException {
+    ByteBuffer request = ByteBuffer.allocate(Math.min(INITIAL_REQUEST_SIZE, maxSize));
+    while (true) {
+      if (!request.hasRemaining()) {
+        if (request.capacity() == maxSize) {
+          return hasMore(client) ? null : request.flip();
+        }
+        ByteBuffer larger = ByteBuffer.allocate((int) Math.min(request.capacity() * 2L, maxSize));
+        larger.put(request.flip());
+        request = larger;
+      }
+      if (client.read(request) < 0) {
+        return request.flip();
+      }
+    }
+  }
+
+  /**
+   * Reads the rest of the request without keeping it, so that the client gets the response instead
+   * of a broken pipe, and returns whether there was any.
+   */
+  private static boolean hasMore(SocketChannel client) throws IOException {
+    ByteBuffer rest = ByteBuffer.allocate(INITIAL_REQUEST_SIZE);
+    boolean more = false;
+    while (client.read(rest.clear()) >= 0) {
+      more |= rest.position() > 0;
+    }
+    return more;
+  }
+
+  /** Returns the response to a request. */
+  static byte[] compile(ByteBuffer request) {
+    int newline = 0;
+    while (newline < request.limit() && request.get(newline) != '\n') {
+      newline++;
+    }
+    String flags = StandardCharsets.ISO_8859_1
+        .decode(request.duplicate().limit(newline)).toString().trim();
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    try {
+      Set<Optimization> optimizations = EnumSet.copyOf(Optimization.ALL);
+      for (String flag : flags.isEmpty() ? new String[0] : flags.split("\\s+")) {
+        if (!Optimization.parseFlag(flag, optimizations)) {
+          throw new IllegalArgumentException("Unknown flag " + flag);
+        }
+      }
+      ByteBuffer source = request.duplicate().position(Math.min(newline + 1, request.limit()));
+      response.writeBytes((OK + "\n").getBytes(StandardCharsets.ISO_8859_1));
+      CodeSink sink = new ChannelSink(Channels.newChannel(response), "\n");
+      new Parser(ParallelLexer.tokenize(new ByteCharSequence(source.slice())))
+          .parse(optimizations, new Peephole(), sink);
+    } catch (IllegalStateException | IllegalArgumentException e) {
+      return error(e.getMessage());
+    } catch (RuntimeException e) {
+      // A bug in the compiler, but the client should still hear why.
+      return error(e.toString());
+    }
+    return response.toByteArray();
+  }
+
+  private static byte[] error(String message) {
+    return (ERROR + "\n" + message + "\n").getBytes(StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,472 @@
+package com.plasstech.lang.ssl;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import com.plasstech.lang.ssl.Operand.Kind;
+
+/**
+ * Folds constant expressions and propagates constant values of variables, using conditional
+ * constant propagation (Wegman and Zadeck): a block is only analyzed once a branch that can
+ * actually be taken reaches it, so code behind a condition that is known to be false does not
+ * spoil what is known after it. Branches with known conditions become jumps or disappear, and
+ * unreachable code is removed.
+ *
+ * <p>Folding follows what the generated code would do at run time: INT arithmetic wraps around
+ * at 32 bits, division truncates toward zero, and float comparisons follow the flags set by
+ * comisd, which make EQEQ, LT and LEQ true for NaN. Divisions that would fault (by zero, or
+ * Integer.MIN_VALUE by -1) and float operations that produce a NaN are left for run time.
+ */
+public class ConstantFolder {
+  // What is known about a variable or temp
+  private static final byte UNDEFINED = 0;
+  private static final byte CONSTANT = 1;
+  private static final byte VARYING = 2;
+
+  private final Ir ir;
+  private final ControlFlowGraph cfg;
+  private final State[] outs;
+  // Parallel to cfg.successors
+  private final boolean[][] executable;
+  private final boolean[] reachable;
+
+  // Value of the temp defined by the previous instruction
+  private byte tempKind;
+  private long tempBits;
+
+  private ConstantFolder(Ir ir) {
+    this.ir = ir;
+    this.cfg = ControlFlowGraph.of(ir);
+    this.outs = new State[cfg.size()];
+    this.executable = new boolean[cfg.size()][];
+    for (int b = 0; b < cfg.size(); ++b) {
+      executable[b] = new boolean[cfg.successors(b).length];
+    }
+    this.reachable = new boolean[cfg.size()];
+  }
+
+  /** Rewrites the Ir in place. */
+  public static void fold(Ir ir) {
+    if (ir.size() == 0) {
+      return;
+    }
+    ConstantFolder folder = new ConstantFolder(ir);
+    folder.analyze();
+    folder.rewrite();
+    removeRedundantJumps(ir);
+  }
+
+  private void analyze() {
+    Deque<Integer> worklist = new ArrayDeque<>();
+    reachable[0] = true;
+    worklist.add(0);
+    while (!worklist.isEmpty()) {
+      int b = worklist.poll();
+      State state = in(b);
+      boolean[] edges = new boolean[executable[b].length];
+      run(b, state, edges, false);
+      if (state.equals(outs[b]) && Arrays.equals(edges, executable[b])) {
+        continue;
+      }
+      outs[b] = state;
+      executable[b] = edges;
+      int[] successors = cfg.successors(b);
+      for (int s = 0; s < successors.length; ++s) {
+        if (edges[s]) {
+          reachable[successors[s]] = true;
+          worklist.add(successors[s]);
+        }
+      }
+    }
+  }
+
+  private void rewrite() {
+    for (int b = 0; b < cfg.size(); ++b) {
+      if (!reachable[b]) {
+        for (int i = cfg.start(b); i < cfg.end(b); ++i) {
+          ir.remove(i);
+        }
+        continue;
+      }
+      run(b, in(b), new boolean[executable[b].length], true);
+    }
+    ir.compact();
+  }
+
+  /** Returns what is known on entry to the block, from the edges that can be taken into it. */
+  private State in(int block) {
+    State state = new State(ir.varCount());
+    if (block == 0) {
+      // Variables start out as zero, except strings, which start out as null pointers.
+      for (int var = 0; var < ir.varCount(); ++var) {
+        switch (ir.typeOf(Operand.of(Kind.VAR, var))) {
+          case INT:
+          case FLOAT:
+            state.kinds[var] = CONSTANT;
+            break;
+
+          default:
+            state.kinds[var] = VARYING;
+            break;
+        }
+      }
+    }
+    for (int predecessor : cfg.predecessors(block)) {
+      int[] successors = cfg.successors(predecessor);
+      for (int s = 0; s < successors.length; ++s) {
+        if (successors[s] == block && executable[predecessor][s] && outs[predecessor] != null) {
+          state.meet(outs[predecessor]);
+        }
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Runs through the block, updating the state, and marks which edges out of it can be taken.
+   * If rewrite is set, also replaces known operands by constants and folds instructions.
+   */
+  private void run(int block, State state, boolean[] edges, boolean rewrite) {
+    tempKind = UNDEFINED;
+    int last = cfg.end(block) - 1;
+    // Unless the block ends with a jump whose condition is known, all edges can be taken.
+    boolean taken = true;
+    boolean notTaken = true;
+    for (int i = cfg.start(block); i <= last; ++i) {
+      Opcode op = ir.op(i);
+      VarType type = ir.type(i);
+      Symbol symbol = ir.symbol(i);
+      long dst = ir.dst(i);
+      long src1 = substitute(ir.src1(i), state);
+      long src2 = substitute(ir.src2(i), state);
+      tempKind = UNDEFINED;
+      switch (op) {
+        case COPY:
+          setVar(state, dst, src1);
+          if (rewrite) {
+            ir.set(i, op, type, symbol, dst, src1, src2);
+          }
+          break;
+
+        case BINARY: {
+          long result = evaluate(type, symbol, src1, src2);
+          VarType resultType = ir.typeOf(dst);
+          if (result == Operand.NONE) {
+            if (Operand.isVar(dst)) {
+              setVar(state, dst, Operand.NONE);
+            } else {
+              tempKind = VARYING;
+            }
+            if (rewrite) {
+              ir.set(i, op, type, symbol, dst, src1, src2);
+            }
+          } else if (Operand.isVar(dst)) {
+            setVar(state, dst, result);
+            if (rewrite) {
+              ir.set(i, Opcode.COPY, resultType, null, dst, result, Operand.NONE);
+            }
+          } else {
+            tempKind = CONSTANT;
+            tempBits = result;
+            if (rewrite) {
+              ir.remove(i);
+            }
+          }
+          break;
+        }
+
+        case INC: {
+          int var = Operand.value(dst);
+          if (state.kinds[var] == CONSTANT) {
+            state.bits[var] = (int) state.bits[var] + 1;
+          }
+          break;
+        }
+
+        case PRINT:
+        case PRINTLN:
+          if (rewrite) {
+            ir.set(i, op, type, symbol, dst, src1, src2);
+          }
+          break;
+
+        case JUMP_IF_FALSE:
+        case BRANCH: {
+          long condition = op == Opcode.BRANCH ? evaluate(type, symbol, src1, src2) : src1;
+          if (Operand.kind(condition) == Kind.BOOL) {
+            boolean jumps = (Operand.value(condition) != 0) == (op == Opcode.BRANCH);
+            taken = jumps;
+            notTaken = !jumps;
+            if (rewrite) {
+              if (jumps) {
+                ir.set(i, Opcode.JUMP, VarType.NONE, null, dst, Operand.NONE, Operand.NONE);
+              } else {
+                ir.remove(i);
+              }
+            }
+          } else if (rewrite) {
+            ir.set(i, op, type, symbol, dst, src1, src2);
+          }
+          break;
+        }
+
+        default:
+          break;
+      }
+    }
+
+    int[] successors = cfg.successors(block);
+    Opcode op = ir.op(last);
+    for (int s = 0; s < successors.length; ++s) {
+      if (op == Opcode.JUMP_IF_FALSE || op == Opcode.BRANCH) {
+        // The target of the jump is the last successor; falling through is the first.
+        boolean isTarget = s == successors.length - 1;
+        boolean isNext = s == 0 && successors.length == 2;
+        edges[s] = (isTarget && taken) || (isNext && notTaken);
+      } else {
+        edges[s] = true;
+      }
+    }
+  }
+
+  /** Replaces the operand by its constant value, if it is known. */
+  private long substitute(long operand, State state) {
+    switch (Operand.kind(operand)) {
+      case VAR: {
+        int var = Operand.value(operand);
+        if (state.kinds[var] == CONSTANT) {
+          return constant(ir.typeOf(operand), state.bits[var]);
+        }
+        return operand;
+      }
+
+      case TEMP:
+        if (tempKind == CONSTANT) {
+          return tempBits;
+        }
+        return operand;
+
+      default:
+        return operand;
+    }
+  }
+
+  private void setVar(State state, long var, long value) {
+    int index = Operand.value(var);
+    if (Operand.isConstant(value)) {
+      state.kinds[index] = CONSTANT;
+      state.bits[index] = bits(value);
+    } else {
+      state.kinds[index] = VARYING;
+      state.bits[index] = 0;
+    }
+  }
+
+  /** Returns the constant operand for the value, given as bits in the form kept in State. */
+  private long constant(VarType type, long bits) {
+    switch (type) {
+      case INT:
+        return Operand.intConstant((int) bits);
+
+      case FLOAT:
+        return ir.floatConstant(bits);
+
+      default:
+        // Strings are kept as their operand
+        return bits;
+    }
+  }
+
+  private long bits(long constant) {
+    switch (Operand.kind(constant)) {
+      case FLOAT:
+        return ir.floatBits(constant);
+
+      case STRING:
+        return constant;
+
+      default:
+        return Operand.value(constant);
+    }
+  }
+
+  /**
+   * Returns the constant result of the operation, or NONE if the operands are not both constant
+   * or the result is left for run time.
+   */
+  private long evaluate(VarType type, Symbol symbol, long left, long right) {
+    if (!Operand.isConstant(left) || !Operand.isConstant(right)) {
+      return Operand.NONE;
+    }
+    switch (type) {
+      case INT:
+        return evaluateInt(symbol, Operand.value(left), Operand.value(right));
+
+      case FLOAT:
+        return evaluateFloat(symbol,
+            Double.longBitsToDouble(ir.floatBits(left)),
+            Double.longBitsToDouble(ir.floatBits(right)));
+
+      default:
+        return Operand.NONE;
+    }
+  }
+
+  private static long evaluateInt(Symbol symbol, int left, int right) {
+    switch (symbol) {
+      case PLUS:
+        return Operand.intConstant(left + right);
+
+      case MINUS:
+        return Operand.intConstant(left - right);
+
+      case MULT:
+        return Operand.intConstant(left * right);
+
+      case DIV:
+        if (right == 0 || (left == Integer.MIN_VALUE && right == -1)) {
+          // idiv faults
+          return Operand.NONE;
+        }
+        return Operand.intConstant(left / right);
+
+      case EQEQ:
+        return Operand.boolConstant(left == right);
+
+      case NEQ:
+        return Operand.boolConstant(left != right);
+
+      case LT:
+        return Operand.boolConstant(left < right);
+
+      case GT:
+        return Operand.boolConstant(left > right);
+
+      case LEQ:
+        return Operand.boolConstant(left <= right);
+
+      case GEQ:
+        return Operand.boolConstant(left >= right);
+
+      default:
+        return Operand.NONE;
+    }
+  }
+
+  private long evaluateFloat(Symbol symbol, double left, double right) {
+    // comisd sets ZF, PF and CF when either operand is NaN
+    boolean unordered = Double.isNaN(left) || Double.isNaN(right);
+    double result;
+    switch (symbol) {
+      case PLUS:
+        result = left + right;
+        break;
+
+      case MINUS:
+        result = left - right;
+        break;
+
+      case MULT:
+        result = left * right;
+        break;
+
+      case DIV:
+        result = left / right;
+        break;
+
+      case EQEQ:
+        return Operand.boolConstant(unordered || left == right);
+
+      case NEQ:
+        return Operand.boolConstant(!unordered && left != right);
+
+      case LT:
+        return Operand.boolConstant(unordered || left < right);
+
+      case GT:
+        return Operand.boolConstant(!unordered && left > right);
+
+      case LEQ:
+        return Operand.boolConstant(unordered || left <= right);
+
+      case GEQ:
+        return Operand.boolConstant(!unordered && left >= right);
+
+      default:
+        return Operand.NONE;
+    }
+    if (Double.isNaN(result)) {
+      // The sign and payload of a NaN computed by the FPU may differ from Java's.
+      return Operand.NONE;
+    }
+    return ir.floatConstant(Double.doubleToRawLongBits(result));
+  }
+
+  /** Removes jumps to the next instruction, and then labels that nothing jumps to. */
+  private static void removeRedundantJumps(Ir ir) {
+    for (int i = 0; i < ir.size(); ++i) {
+      if (ir.op(i) != Opcode.JUMP) {
+        continue;
+      }
+      for (int j = i + 1; j < ir.size() && ir.op(j) == Opcode.LABEL; ++j) {
+        if (ir.dst(j) == ir.dst(i)) {
+          ir.remove(i);
+          break;
+        }
+      }
+    }
+    boolean[] targets = new boolean[ir.labelCount()];
+    for (int i = 0; i < ir.size(); ++i) {
+      if (ir.op(i).isJump()) {
+        targets[Operand.value(ir.dst(i))] = true;
+      }
+    }
+    for (int i = 0; i < ir.size(); ++i) {
+      if (ir.op(i) == Opcode.LABEL && !targets[Operand.value(ir.dst(i))]) {
+        ir.remove(i);
+      }
+    }
+    ir.compact();
+  }
+
+  /** What is known about each variable at some point. */
+  private static class State {
+    final byte[] kinds;
+    final long[] bits;
+
+    State(int vars) {
+      kinds = new byte[vars];
+      bits = new long[vars];
+    }
+
+    void meet(State other) {
+      for (int var = 0; var < kinds.length; ++var) {
+        if (other.kinds[var] == UNDEFINED || kinds[var] == VARYING) {
+          continue;
+        }
+        if (kinds[var] == UNDEFINED || other.kinds[var] == VARYING) {
+          kinds[var] = other.kinds[var];
+          bits[var] = other.bits[var];
+        } else if (bits[var] != other.bits[var]) {
+          kinds[var] = VARYING;
+          bits[var] = 0;
+        }
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof State)) {
+        return false;
+      }
+      State that = (State) o;
+      return Arrays.equals(kinds, that.kinds) && Arrays.equals(bits, that.bits);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(kinds) * 31 + Arrays.hashCode(bits);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package com.plasstech.lang.ssl;
+
+import java.util.Arrays;
+
+/**
+ * The basic blocks of an Ir and the edges between them. A block starts at the first instruction,
+ * at each LABEL, and after each jump.
+ */
+public class ControlFlowGraph {
+  private final int[] starts;
+  private final int[] ends;
+  private final int[][] successors;
+  private final int[][] predecessors;
+  private final int[] blockOfInstruction;
+
+  private ControlFlowGraph(Ir ir) {
+    int size = ir.size();
+    boolean[] leader = new boolean[size + 1];
+    leader[0] = true;
+    for (int i = 0; i < size; ++i) {
+      Opcode op = ir.op(i);
+      if (op == Opcode.LABEL) {
+        leader[i] = true;
+      } else if (op.isJump()) {
+        leader[i + 1] = true;
+      }
+    }
+    int count = 0;
+    for (int i = 0; i < size; ++i) {
+      if (leader[i]) {
+        count++;
+      }
+    }
+
+    starts = new int[count];
+    ends = new int[count];
+    blockOfInstruction = new int[size];
+    int[] blockOfLabel = new int[ir.labelCount()];
+    int block = -1;
+    for (int i = 0; i < size; ++i) {
+      if (leader[i]) {
+        block++;
+        starts[block] = i;
+      }
+      ends[block] = i + 1;
+      blockOfInstruction[i] = block;
+      if (ir.op(i) == Opcode.LABEL) {
+        blockOfLabel[Operand.value(ir.dst(i))] = block;
+      }
+    }
+
+    successors = new int[count][];
+    int[] predecessorCounts = new int[count];
+    for (int b = 0; b < count; ++b) {
+      int last = ends[b] - 1;
+      Opcode op = ir.op(last);
+      boolean hasNext = b + 1 < count;
+      if (op == Opcode.JUMP) {
+        successors[b] = new int[] {blockOfLabel[Operand.value(ir.dst(last))]};
+      } else if (op.isJump()) {
+        int target = blockOfLabel[Operand.value(ir.dst(last))];
+        successors[b] = hasNext ? new int[] {b + 1, target} : new int[] {target};
+      } else {
+        successors[b] = hasNext ? new int[] {b + 1} : new int[0];
+      }
+      for (int successor : successors[b]) {
+        predecessorCounts[successor]++;
+      }
+    }
+    predecessors = new int[count][];
+    for (int b = 0; b < count; ++b) {
+      predecessors[b] = new int[predecessorCounts[b]];
+      predecessorCounts[b] = 0;
+    }
+    for (int b = 0; b < count; ++b) {
+      for (int successor : successors[b]) {
+        predecessors[successor][predecessorCounts[successor]++] = b;
+      }
+    }
+  }
+
+  public static ControlFlowGraph of(Ir ir) {
+    return new ControlFlowGraph(ir);
+  }
+
+  public int size() {
+    return starts.length;
+  }
+
+  /** Returns the index of the first instruction of the block. */
+  public int start(int block) {
+    return starts[block];
+  }
+
+  /** Returns the index just past the last instruction of the block. */
+  public int end(int block) {
+    return ends[block];
+  }
+
+  public int[] successors(int block) {
+    return successors[block];
+  }
+
+  public int[] predecessors(int block) {
+    return predecessors[block];
+  }
+
+  public int blockOf(int instruction) {
+    return blockOfInstruction[instruction];
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int b = 0; b < size(); ++b) {
+      sb.append(String.format("B%d [%d, %d) -> %s%n", b, starts[b], ends[b],
+          Arrays.toString(successors[b])));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,52 @@
+package com.plasstech.lang.ssl;
+
+import java.util.BitSet;
+
+/**
+ * Removes writes to variables that are not read before they are written again or the program
+ * ends. Removing one store can leave the stores that fed it dead, on this or another path, so
+ * liveness is computed again until nothing changes. Divisions that may fault are kept, since
+ * the fault is what the program does.
+ */
+public class DeadStoreEliminator {
+  private DeadStoreEliminator() {}
+
+  /** Rewrites the Ir in place. */
+  public static void eliminate(Ir ir) {
+    boolean changed = ir.size() > 0;
+    while (changed) {
+      changed = false;
+      ControlFlowGraph cfg = ControlFlowGraph.of(ir);
+      Liveness liveness = Liveness.of(ir, cfg);
+      for (int b = 0; b < cfg.size(); ++b) {
+        BitSet live = (BitSet) liveness.liveOut(b).clone();
+        for (int i = cfg.end(b) - 1; i >= cfg.start(b); --i) {
+          long def = Liveness.def(ir, i);
+          if (def != Operand.NONE && !live.get(Operand.value(def)) && !mayFault(ir, i)) {
+            if (ir.op(i) == Opcode.SELECT) {
+              // The COMPARE was only for the SELECT.
+              ir.remove(i - 1);
+            }
+            ir.remove(i);
+            changed = true;
+            continue;
+          }
+          if (def != Operand.NONE) {
+            live.clear(Operand.value(def));
+          }
+          Liveness.addUses(ir, i, live);
+        }
+      }
+      ir.compact();
+    }
+  }
+
+  private static boolean mayFault(Ir ir, int i) {
+    if (ir.op(i) != Opcode.BINARY || ir.type(i) != VarType.INT || ir.symbol(i) != Symbol.DIV) {
+      return false;
+    }
+    long divisor = ir.src2(i);
+    return Operand.kind(divisor) != Operand.Kind.INT
+        || Operand.value(divisor) == 0 || Operand.value(divisor) == -1;
+  }
+}
@@ -0,0 +1,51 @@
+package com.plasstech.lang.ssl;
+
+/**
+ * The multiplier and shift that turn signed 32-bit division by a constant into a multiplication,
+ * from Hacker's Delight, section 10-4. For a dividend x, (x * multiplier) >> (32 + shift) computed
+ * in 64 bits is the floor of x / divisor; adding 1 when that is negative truncates toward zero.
+ */
+class DivisionMagic {
+  /** Unsigned, less than 2^32. */
+  final long multiplier;
+  final int shift;
+
+  private DivisionMagic(long multiplier, int shift) {
+    this.multiplier = multiplier;
+    this.shift = shift;
+  }
+
+  /** Returns the magic numbers for dividing by the divisor, which must be at least 2. */
+  static DivisionMagic of(int divisor) {
+    if (divisor < 2) {
+      throw new IllegalArgumentException("Divisor must be at least 2: " + divisor);
+    }
+    long two31 = 1L << 31;
+    long d = divisor;
+    // The largest dividend that leaves remainder d - 1
+    long anc = two31 - 1 - two31 % d;
+    int p = 31;
+    long q1 = two31 / anc;
+    long r1 = two31 - q1 * anc;
+    long q2 = two31 / d;
+    long r2 = two31 - q2 * d;
+    long delta;
+    do {
+      p++;
+      q1 = 2 * q1;
+      r1 = 2 * r1;
+      if (r1 >= anc) {
+        q1++;
+        r1 -= anc;
+      }
+      q2 = 2 * q2;
+      r2 = 2 * r2;
+      if (r2 >= d) {
+        q2++;
+        r2 -= d;
+      }
+      delta = d - r2;
+    } while (q1 < delta || (q1 == delta && r1 == 0));
+    return new DivisionMagic(q2 + 1, p - 32);
+  }
+}
@@ -0,0 +1,14 @@
+package com.plasstech.lang.ssl;
+
+public class FloatConstToken extends ConstToken {
+  private final double value;
+
+  public FloatConstToken(double value) {
+    super(Double.toString(value), VarType.FLOAT);
+    this.value = value;
+  }
+
+  public double value() {
+    return value;
+  }
+}
@@ -0,0 +1,101 @@
+package com.plasstech.lang.ssl;
+
+/**
+ * Turns IFs whose arms just assign a value to the same INT or FLOAT variable into a COMPARE and a
+ * SELECT, which the code generator compiles to cmov (or minsd and maxsd) instead of branches:
+ *
+ * <pre>
+ * BRANCH x >= y, else       COMPARE x, y
+ * m = x                     m = < ? x : y
+ * JUMP endIf
+ * else:
+ * m = y
+ * endIf:
+ * </pre>
+ *
+ * An IF without ELSE selects between the new value and the variable itself.
+ *
+ * <p>A branch costs nothing when it is predicted, and a select computes both arms, so only arms
+ * that are a single copy of a value that is already computed (a variable or a constant) are
+ * converted: then the select costs about as much as one arm. Anything longer, or that prints,
+ * divides or branches again, keeps its branch.
+ */
+public class IfConverter {
+  private final Ir ir;
+  // How many jumps target each label
+  private final int[] references;
+
+  private IfConverter(Ir ir) {
+    this.ir = ir;
+    this.references = new int[ir.labelCount()];
+    for (int i = 0; i < ir.size(); ++i) {
+      if (ir.op(i).isJump()) {
+        references[Operand.value(ir.dst(i))]++;
+      }
+    }
+  }
+
+  /** Rewrites the Ir in place. */
+  public static void convert(Ir ir) {
+    IfConverter converter = new IfConverter(ir);
+    for (int i = 0; i < ir.size(); ++i) {
+      if (ir.op(i) == Opcode.BRANCH) {
+        converter.convert(i);
+      }
+    }
+    ir.compact();
+  }
+
+  private void convert(int branch) {
+    long elseLabel = ir.dst(branch);
+    int then = branch + 1;
+    if (!isLabel(then + 1, elseLabel) && !isJump(then + 1)) {
+      return;
+    }
+    if (!isSimpleCopy(then) || references[Operand.value(elseLabel)] != 1) {
+      return;
+    }
+    long var = ir.dst(then);
+    long thenValue = ir.src1(then);
+    long elseValue = var;
+    int end = then + 1;
+    if (isJump(then + 1)) {
+      // then: JUMP endIf; else: copy; endIf:
+      long endLabel = ir.dst(then + 1);
+      int otherwise = then + 3;
+      if (!isLabel(then + 2, elseLabel) || !isSimpleCopy(otherwise)
+          || ir.dst(otherwise) != var || !isLabel(otherwise + 1, endLabel)
+          || references[Operand.value(endLabel)] != 1) {
+        return;
+      }
+      elseValue = ir.src1(otherwise);
+      end = otherwise + 1;
+    }
+    // The branch skips the then arm when its condition holds.
+    ir.set(then, Opcode.SELECT, ir.type(branch), ir.symbol(branch).negated(),
+        var, thenValue, elseValue);
+    ir.set(branch, Opcode.COMPARE, ir.type(branch), null,
+        Operand.NONE, ir.src1(branch), ir.src2(branch));
+    for (int i = then + 1; i <= end; ++i) {
+      ir.remove(i);
+    }
+  }
+
+  private boolean isSimpleCopy(int index) {
+    if (index >= ir.size() || ir.op(index) != Opcode.COPY || !Operand.isVar(ir.dst(index))) {
+      return false;
+    }
+    VarType type = ir.type(index);
+    long src = ir.src1(index);
+    return (type == VarType.INT || type == VarType.FLOAT)
+        && (Operand.isVar(src) || Operand.isConstant(src));
+  }
+
+  private boolean isJump(int index) {
+    return index < ir.size() && ir.op(index) == Opcode.JUMP;
+  }
+
+  private boolean isLabel(int index, long label) {
+    return index < ir.size() && ir.op(index) == Opcode.LABEL && ir.dst(index) == label;
+  }
+}
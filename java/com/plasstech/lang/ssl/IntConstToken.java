@@ -0,0 +1,14 @@
+package com.plasstech.lang.ssl;
+
+public class IntConstToken extends ConstToken {
+  private final int value;
+
+  public IntConstToken(int value) {
+    super(Integer.toString(value), VarType.INT);
+    this.value = value;
+  }
+
+  public int value() {
+    return value;
+  }
+}
@@ -0,0 +1,303 @@
+package com.plasstech.lang.ssl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.plasstech.lang.ssl.Operand.Kind;
+
+/**
+ * A typed three-address intermediate representation of an SSL program, built by the Parser and
+ * lowered to x64 by the CodeGenerator. Instructions are stored in parallel arrays; operands are
+ * longs encoded by {@link Operand}.
+ *
+ * <p>Every temp is defined once and used once, by the instruction immediately after its
+ * definition.
+ */
+public class Ir {
+  private static final Opcode[] OPCODES = Opcode.values();
+  private static final VarType[] VAR_TYPES = VarType.values();
+  private static final Symbol[] SYMBOLS = Symbol.values();
+
+  private byte[] ops = new byte[64];
+  private byte[] types = new byte[64];
+  private byte[] symbols = new byte[64];
+  private long[] dsts = new long[64];
+  private long[] srcs1 = new long[64];
+  private long[] srcs2 = new long[64];
+  private int size;
+
+  private final List<VarType> tempTypes = new ArrayList<>();
+  private final List<String> varNames = new ArrayList<>();
+  private final List<VarType> varTypes = new ArrayList<>();
+  private final Map<String, Long> vars = new HashMap<>();
+  private final List<String> labels = new ArrayList<>();
+  private final List<Long> floatValues = new ArrayList<>();
+  // Keyed by the exact bit pattern of the value
+  private final Map<Long, Long> floats = new HashMap<>();
+  private final List<String> stringValues = new ArrayList<>();
+  private final Map<String, Long> strings = new HashMap<>();
+
+  public int size() {
+    return size;
+  }
+
+  public void add(Opcode op, VarType type, Symbol symbol, long dst, long src1, long src2) {
+    if (size == ops.length) {
+      int capacity = size * 2;
+      ops = Arrays.copyOf(ops, capacity);
+      types = Arrays.copyOf(types, capacity);
+      symbols = Arrays.copyOf(symbols, capacity);
+      dsts = Arrays.copyOf(dsts, capacity);
+      srcs1 = Arrays.copyOf(srcs1, capacity);
+      srcs2 = Arrays.copyOf(srcs2, capacity);
+    }
+    size++;
+    set(size - 1, op, type, symbol, dst, src1, src2);
+  }
+
+  /** Replaces the instruction at the index. */
+  public void set(int index, Opcode op, VarType type, Symbol symbol, long dst, long src1,
+      long src2) {
+    ops[index] = (byte) op.ordinal();
+    types[index] = (byte) type.ordinal();
+    symbols[index] = (byte) (symbol == null ? -1 : symbol.ordinal());
+    dsts[index] = dst;
+    srcs1[index] = src1;
+    srcs2[index] = src2;
+  }
+
+  /** Replaces the instruction at the index with a NOP. */
+  public void remove(int index) {
+    set(index, Opcode.NOP, VarType.NONE, null, Operand.NONE, Operand.NONE, Operand.NONE);
+  }
+
+  /** Removes all NOPs. */
+  public void compact() {
+    int to = 0;
+    for (int from = 0; from < size; ++from) {
+      if (ops[from] != Opcode.NOP.ordinal()) {
+        ops[to] = ops[from];
+        types[to] = types[from];
+        symbols[to] = symbols[from];
+        dsts[to] = dsts[from];
+        srcs1[to] = srcs1[from];
+        srcs2[to] = srcs2[from];
+        to++;
+      }
+    }
+    size = to;
+  }
+
+  public Opcode op(int index) {
+    return OPCODES[ops[index]];
+  }
+
+  public VarType type(int index) {
+    return VAR_TYPES[types[index]];
+  }
+
+  /** Returns the operator of a BINARY, BRANCH or SELECT, or null. */
+  public Symbol symbol(int index) {
+    int symbol = symbols[index];
+    return symbol < 0 ? null : SYMBOLS[symbol];
+  }
+
+  public long dst(int index) {
+    return dsts[index];
+  }
+
+  public long src1(int index) {
+    return srcs1[index];
+  }
+
+  public long src2(int index) {
+    return srcs2[index];
+  }
+
+  public long newTemp(VarType type) {
+    tempTypes.add(type);
+    return Operand.of(Kind.TEMP, tempTypes.size() - 1);
+  }
+
+  /** Returns the operand for the named variable, creating it if needed. */
+  public long var(String name, VarType type) {
+    Long var = vars.get(name);
+    if (var == null) {
+      varNames.add(name);
+      varTypes.add(type);
+      var = Operand.of(Kind.VAR, varNames.size() - 1);
+      vars.put(name, var);
+    }
+    return var;
+  }
+
+  public long newLabel(String name) {
+    labels.add(name);
+    return Operand.of(Kind.LABEL, labels.size() - 1);
+  }
+
+  /** Returns the operand for the float constant with the given bits, creating it if needed. */
+  public long floatConstant(long bits) {
+    Long constant = floats.get(bits);
+    if (constant == null) {
+      floatValues.add(bits);
+      constant = Operand.of(Kind.FLOAT, floatValues.size() - 1);
+      floats.put(bits, constant);
+    }
+    return constant;
+  }
+
+  /** Returns the operand for the string constant, creating it if needed. */
+  public long stringConstant(String value) {
+    Long constant = strings.get(value);
+    if (constant == null) {
+      stringValues.add(value);
+      constant = Operand.of(Kind.STRING, stringValues.size() - 1);
+      strings.put(value, constant);
+    }
+    return constant;
+  }
+
+  public int varCount() {
+    return varNames.size();
+  }
+
+  public int labelCount() {
+    return labels.size();
+  }
+
+  public int floatCount() {
+    return floatValues.size();
+  }
+
+  public int stringCount() {
+    return stringValues.size();
+  }
+
+  public String varName(long var) {
+    return varNames.get(Operand.value(var));
+  }
+
+  public String labelName(long label) {
+    return labels.get(Operand.value(label));
+  }
+
+  public String floatName(long constant) {
+    return "FLOAT_" + Operand.value(constant);
+  }
+
+  public long floatBits(long constant) {
+    return floatValues.get(Operand.value(constant));
+  }
+
+  public String stringName(long constant) {
+    return "CONST_" + Operand.value(constant);
+  }
+
+  public String stringValue(long constant) {
+    return stringValues.get(Operand.value(constant));
+  }
+
+  public VarType typeOf(long operand) {
+    switch (Operand.kind(operand)) {
+      case TEMP:
+        return tempTypes.get(Operand.value(operand));
+
+      case VAR:
+        return varTypes.get(Operand.value(operand));
+
+      case INT:
+        return VarType.INT;
+
+      case BOOL:
+        return VarType.BOOL;
+
+      case FLOAT:
+        return VarType.FLOAT;
+
+      case STRING:
+        return VarType.STR;
+
+      default:
+        return VarType.NONE;
+    }
+  }
+
+  /** Returns a readable form of the instruction, for debugging and tests. */
+  public String toString(int index) {
+    Opcode op = op(index);
+    switch (op) {
+      case COPY:
+        return String.format("%s = %s", operand(dst(index)), operand(src1(index)));
+
+      case BINARY:
+        return String.format("%s = %s %s %s", operand(dst(index)), operand(src1(index)),
+            symbol(index).value, operand(src2(index)));
+
+      case SELECT:
+        return String.format("%s = %s ? %s : %s", operand(dst(index)), symbol(index).value,
+            operand(src1(index)), operand(src2(index)));
+
+      case LABEL:
+        return operand(dst(index)) + ":";
+
+      case JUMP:
+      case INC:
+        return String.format("%s %s", op, operand(dst(index)));
+
+      case JUMP_IF_FALSE:
+        return String.format("%s %s, %s", op, operand(src1(index)), operand(dst(index)));
+
+      case COMPARE:
+        return String.format("%s %s, %s", op, operand(src1(index)), operand(src2(index)));
+
+      case BRANCH:
+        return String.format("%s %s %s %s, %s", op, operand(src1(index)), symbol(index).value,
+            operand(src2(index)), operand(dst(index)));
+
+      default:
+        return String.format("%s %s", op, operand(src1(index)));
+    }
+  }
+
+  private String operand(long operand) {
+    int value = Operand.value(operand);
+    switch (Operand.kind(operand)) {
+      case TEMP:
+        return "t" + value;
+
+      case VAR:
+        return varName(operand);
+
+      case INT:
+        return String.valueOf(value);
+
+      case BOOL:
+        return String.valueOf(value != 0);
+
+      case FLOAT:
+        return String.valueOf(Double.longBitsToDouble(floatBits(operand)));
+
+      case STRING:
+        return '"' + stringValue(operand) + '"';
+
+      case LABEL:
+        return labelName(operand);
+
+      default:
+        return "";
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < size; ++i) {
+      sb.append(toString(i)).append('\n');
+    }
+    return sb.toString();
+  }
+}
@@ -2,4 +2,50 @@ package com.plasstech.lang.ssl;
 
 public enum Keyword {
   IF, THEN, ELSE, ENDIF, FOR, TO, ENDFOR, PRINT, PRINTLN, STEP;
+
+  private static final int MAX_LENGTH = 7;
+
+  // Perfect hash on (length, first letter): no two keywords share both.
+  private static final Keyword[] TABLE = new Keyword[(MAX_LENGTH + 1) * 26];
+
+  static {
+    for (Keyword kw : values()) {
+      String name = kw.name();
+      int index = index(name.length(), name.charAt(0));
+      if (name.length() > MAX_LENGTH || TABLE[index] != null) {
+        throw new IllegalStateException("Keyword table collision for " + name);
+      }
+      TABLE[index] = kw;
+    }
+  }
+
+  private static int index(int length, char upperFirst) {
+    return length * 26 + (upperFirst - 'A');
+  }
+
+  private static char toUpper(char c) {
+    return (c >= 'a' && c <= 'z') ? (char) (c - ('a' - 'A')) : c;
+  }
+
+  /**
+   * Returns the keyword spelled (case-insensitively) by text[start, end), or null if there is none.
+   */
+  public static Keyword lookup(CharSequence text, int start, int end) {
+    int length = end - start;
+    char first = toUpper(text.charAt(start));
+    if (length > MAX_LENGTH || first < 'A' || first > 'Z') {
+      return null;
+    }
+    Keyword candidate = TABLE[index(length, first)];
+    if (candidate == null) {
+      return null;
+    }
+    String name = candidate.name();
+    for (int i = 1; i < length; ++i) {
+      if (toUpper(text.charAt(start + i)) != name.charAt(i)) {
+        return null;
+      }
+    }
+    return candidate;
+  }
 }
@@ -1,20 +1,82 @@
 package com.plasstech.lang.ssl;
 
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
 public class Lexer {
-  private final String text;
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  // Doubles up to 2^53 are exact, as are powers of ten up to 10^22.
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+  private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+  private static final Keyword[] KEYWORDS = Keyword.values();
+  private static final Symbol[] SYMBOLS = Symbol.values();
+
+  private final CharSequence text;
+  // Only set when streaming; then text is the same object.
+  private final ReaderWindow window;
+  // Only set when the text is single-byte; then text is the same object.
+  private final ByteCharSequence bytes;
+  private int length;
 
   private int loc;
   private char cc; // current character
+  private boolean skipping; // true while skipping whitespace and comments
+
+  // The most recently scanned token
+  private TokenType type;
+  private VarType varType;
+  private int start;
+  private long payload;
 
-  public Lexer(String text) {
+  public Lexer(CharSequence text) {
+    this(text, 0, text.length());
+  }
+
+  /**
+   * Creates a lexer for text[begin, end). Token offsets are still relative to the start of text.
+   */
+  public Lexer(CharSequence text, int begin, int end) {
     this.text = text;
+    this.window = null;
+    this.bytes = (text instanceof ByteCharSequence) ? (ByteCharSequence) text : null;
+    this.length = end;
+    this.loc = begin;
+    this.cc = 0;
+    this.advance();
+  }
+
+  /** Creates a lexer that reads the text incrementally, using a fixed-size buffer. */
+  public Lexer(Reader reader) {
+    this(reader, DEFAULT_BUFFER_SIZE);
+  }
+
+  public Lexer(Reader reader, int bufferSize) {
+    this.window = new ReaderWindow(reader, bufferSize);
+    this.text = window;
+    this.bytes = null;
+    this.length = 0;
     this.loc = 0;
     this.cc = 0;
     this.advance();
   }
 
+  /** Creates a lexer that reads single-byte text incrementally from the channel. */
+  public Lexer(ReadableByteChannel channel) {
+    this(Channels.newReader(channel, StandardCharsets.ISO_8859_1));
+  }
+
   private void advance() {
-    if (loc < text.length()) {
+    if (loc >= length && window != null) {
+      // Keep the current token, if any, for slicing.
+      length = window.fill(skipping ? loc : start);
+    }
+    if (loc < length) {
       cc = text.charAt(loc);
     } else {
       // Indicates no more characters
@@ -23,69 +85,152 @@ public class Lexer {
     loc++;
   }
 
+  /** Returns the offset of the current character. */
+  private int position() {
+    return loc - 1;
+  }
+
+  /** Makes the character at the given offset current. */
+  private void skipTo(int offset) {
+    loc = Math.min(offset, length);
+    advance();
+  }
+
+  /** Returns the offset of the most recently scanned token, even if it failed to scan. */
+  int tokenStart() {
+    return start;
+  }
+
   public Token nextToken() {
+    scan();
+    int end = position();
+    switch (type) {
+      case KEYWORD:
+        return new KeywordToken(KEYWORDS[(int) payload]);
+
+      case SYMBOL:
+        return new SymbolToken(SYMBOLS[(int) payload]);
+
+      case VAR:
+        return new VarToken(String.valueOf((char) payload), varType);
+
+      case CONST:
+        switch (varType) {
+          case INT:
+            return new IntConstToken((int) payload);
+
+          case FLOAT:
+            return new FloatConstToken(Double.longBitsToDouble(payload));
+
+          default:
+            return new StringConstToken(stringValue());
+        }
+
+      default:
+        return new Token(TokenType.EOF, "");
+    }
+  }
+
+  /** Scans the rest of the text into the given stream, including the final EOF token. */
+  public TokenStream tokenize(TokenStream tokens) {
+    return tokenize(tokens, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Scans at most maxTokens more tokens into the given stream, stopping after the EOF token.
+   */
+  public TokenStream tokenize(TokenStream tokens, int maxTokens) {
+    for (int i = 0; i < maxTokens; ++i) {
+      scan();
+      if (type == TokenType.CONST && varType == VarType.STR) {
+        payload = tokens.addString(stringValue());
+      }
+      tokens.add(type, varType, start, position() - start, payload);
+      if (type == TokenType.EOF) {
+        break;
+      }
+    }
+    return tokens;
+  }
+
+  /** Returns the value of the string constant just scanned, without its quotes. */
+  private String stringValue() {
+    return text.subSequence(start + 1, position() - 1).toString();
+  }
+
+  private void scan() {
     // skip unwanted whitespace
+    skipping = true;
     while (true) {
+      if (bytes != null) {
+        skipTo(bytes.skipWhitespace(position()));
+      }
       while (cc == ' ' || cc == '\n' || cc == '\t' || cc == '\r') {
         advance();
       }
       if (cc != '#') { // # comment
         break;
       }
+      if (bytes != null) {
+        skipTo(bytes.indexOfLineEnd(position()));
+      }
       while (cc != '\n' && cc != '\r' && cc != 0) {
         advance();
       }
     }
 
+    skipping = false;
+    start = position();
+    varType = VarType.NONE;
+    payload = 0;
     if (cc == 0) {
-      return new Token(TokenType.EOF, "");
+      type = TokenType.EOF;
+      return;
     }
 
-    if (Character.isDigit(cc)) {
-      return makeNumber();
+    if (isDigit(cc)) {
+      makeNumber();
     } else if (Character.isAlphabetic(cc)) {
-      return makeText();
+      makeText();
     } else if (cc == '"') {
-      return makeString();
-    }
-    return makeSymbol();
-  }
-
-  private Symbol toSymbol(String symbolString) {
-    for (Symbol symbolEnum : Symbol.values()) {
-      if (symbolEnum.value.equals(symbolString)) {
-        return symbolEnum;
-      }
+      makeString();
+    } else {
+      makeSymbol();
     }
-    return null;
   }
 
-  private Token makeSymbol() {
-    var symbolString = String.valueOf(cc);
+  private void makeSymbol() {
+    char first = cc;
     advance(); // eat the first
 
-    var maybeTwoCharSymbolString = symbolString + cc;
-    var maybeTwoCharSymbol = toSymbol(maybeTwoCharSymbolString);
-    if (maybeTwoCharSymbol != null) {
+    Symbol symbol = Symbol.of(first, cc);
+    if (symbol != null) {
       advance(); // eat the second
-      return new SymbolToken(maybeTwoCharSymbol);
+      setSymbol(symbol);
+      return;
     }
 
-    var symbol = toSymbol(symbolString);
+    symbol = Symbol.of(first);
     if (symbol != null) {
       // NO ADVANCE HERE - we already advanced
-      return new SymbolToken(symbol);
+      setSymbol(symbol);
+      return;
     }
 
-    fail("Unknown symbol " + symbolString);
-    return null;
+    fail("Unknown symbol " + first);
+  }
+
+  private void setSymbol(Symbol symbol) {
+    type = TokenType.SYMBOL;
+    payload = symbol.ordinal();
   }
 
-  private Token makeString() {
+  private void makeString() {
     advance(); // eat the "
-    String value = "";
+    if (bytes != null) {
+      skipTo(bytes.indexOfQuote(position()));
+    }
     while (cc != '"' && cc != 0) {
-      value = value + cc;
       advance();
     }
     if (cc == '"') {
@@ -93,58 +238,86 @@ public class Lexer {
     } else {
       fail("Expected closing double quote, found EOF");
     }
-    return new ConstToken<String>(value, VarType.STR);
+    type = TokenType.CONST;
+    varType = VarType.STR;
   }
 
   private void fail(String message) {
     throw new IllegalStateException(message);
   }
 
-  private Token makeText() {
+  private void makeText() {
     var first = cc;
     advance();
     if (!Character.isAlphabetic(cc)) {
-      String var = String.valueOf(first);
+      type = TokenType.VAR;
+      payload = first;
       if (first >= 'a' && first <= 'h') {
-        return new VarToken(var, VarType.FLOAT);
+        varType = VarType.FLOAT;
       } else if (first >= 'i' && first <= 'n') {
-        return new VarToken(var, VarType.INT);
+        varType = VarType.INT;
       } else {
-        return new VarToken(var, VarType.STR);
+        varType = VarType.STR;
       }
+      return;
     }
-    String keyword = String.valueOf(first);
-    try {
-      while (Character.isAlphabetic(cc)) {
-        keyword += cc;
-        advance();
-      }
-      // look up the keyword
-      var kw = Keyword.valueOf(keyword.toUpperCase());
-      return new KeywordToken(kw);
-    } catch (IllegalArgumentException e) {
-      fail("Unknown keyword " + keyword);
-      return null;
+    while (Character.isAlphabetic(cc)) {
+      advance();
+    }
+    var kw = Keyword.lookup(text, start, position());
+    if (kw == null) {
+      fail("Unknown keyword " + text.subSequence(start, position()));
+      return;
     }
+    type = TokenType.KEYWORD;
+    payload = kw.ordinal();
   }
 
-  private Token makeNumber() {
-    var first = cc;
-    advance();
-    String num = String.valueOf(first);
-    while (Character.isDigit(cc)) {
-      num += cc;
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private void makeNumber() {
+    // Accumulate the digits as we go; for a float, the decimal point is skipped and the digits
+    // after it are counted.
+    long mantissa = 0;
+    boolean exact = true;
+    while (isDigit(cc)) {
+      mantissa = mantissa * 10 + (cc - '0');
+      if (mantissa > MAX_EXACT_MANTISSA) {
+        exact = false;
+        mantissa = MAX_EXACT_MANTISSA + 1; // saturate
+      }
       advance();
     }
+    type = TokenType.CONST;
     if (cc == '.') {
-      num += cc;
       advance();
-      while (Character.isDigit(cc)) {
-        num += cc;
+      int fractionDigits = 0;
+      while (isDigit(cc)) {
+        mantissa = mantissa * 10 + (cc - '0');
+        if (mantissa > MAX_EXACT_MANTISSA) {
+          exact = false;
+          mantissa = MAX_EXACT_MANTISSA + 1;
+        }
+        fractionDigits++;
         advance();
       }
-      return new ConstToken<Float>(Float.parseFloat(num), VarType.FLOAT);
+      varType = VarType.FLOAT;
+      double value;
+      if (exact && fractionDigits < POWERS_OF_TEN.length) {
+        // Both operands are exact, so the quotient is correctly rounded.
+        value = mantissa / POWERS_OF_TEN[fractionDigits];
+      } else {
+        value = Double.parseDouble(text.subSequence(start, position()).toString());
+      }
+      payload = Double.doubleToRawLongBits(value);
+      return;
+    }
+    if (mantissa > Integer.MAX_VALUE) {
+      fail("Integer constant too large: " + text.subSequence(start, position()));
     }
-    return new ConstToken<Integer>(Integer.parseInt(num), VarType.INT);
+    varType = VarType.INT;
+    payload = mantissa;
   }
 }
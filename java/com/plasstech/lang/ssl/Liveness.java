@@ -0,0 +1,94 @@
+package com.plasstech.lang.ssl;
+
+import java.util.BitSet;
+
+/**
+ * Which variables are live on entry to and exit from each basic block. Temps are not tracked:
+ * they never live across instructions, let alone blocks.
+ */
+public class Liveness {
+  private final BitSet[] liveIn;
+  private final BitSet[] liveOut;
+
+  private Liveness(Ir ir, ControlFlowGraph cfg) {
+    int blocks = cfg.size();
+    BitSet[] uses = new BitSet[blocks];
+    BitSet[] defs = new BitSet[blocks];
+    liveIn = new BitSet[blocks];
+    liveOut = new BitSet[blocks];
+    for (int b = 0; b < blocks; ++b) {
+      uses[b] = new BitSet();
+      defs[b] = new BitSet();
+      for (int i = cfg.end(b) - 1; i >= cfg.start(b); --i) {
+        long def = def(ir, i);
+        if (def != Operand.NONE) {
+          uses[b].clear(Operand.value(def));
+          defs[b].set(Operand.value(def));
+        }
+        addUses(ir, i, uses[b]);
+      }
+      liveIn[b] = (BitSet) uses[b].clone();
+      liveOut[b] = new BitSet();
+    }
+
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int b = blocks - 1; b >= 0; --b) {
+        BitSet out = liveOut[b];
+        for (int successor : cfg.successors(b)) {
+          out.or(liveIn[successor]);
+        }
+        BitSet in = (BitSet) out.clone();
+        in.andNot(defs[b]);
+        in.or(uses[b]);
+        if (!in.equals(liveIn[b])) {
+          liveIn[b] = in;
+          changed = true;
+        }
+      }
+    }
+  }
+
+  public static Liveness of(Ir ir, ControlFlowGraph cfg) {
+    return new Liveness(ir, cfg);
+  }
+
+  /** Returns the numbers of the variables live on entry to the block. Do not modify. */
+  public BitSet liveIn(int block) {
+    return liveIn[block];
+  }
+
+  /** Returns the numbers of the variables live on exit from the block. Do not modify. */
+  public BitSet liveOut(int block) {
+    return liveOut[block];
+  }
+
+  /** Returns the variable written by the instruction, or NONE. */
+  public static long def(Ir ir, int i) {
+    switch (ir.op(i)) {
+      case COPY:
+      case BINARY:
+      case SELECT:
+      case INC:
+        return Operand.isVar(ir.dst(i)) ? ir.dst(i) : Operand.NONE;
+
+      default:
+        return Operand.NONE;
+    }
+  }
+
+  /** Adds the numbers of the variables read by the instruction to the set. */
+  public static void addUses(Ir ir, int i, BitSet uses) {
+    if (ir.op(i) == Opcode.INC) {
+      uses.set(Operand.value(ir.dst(i)));
+      return;
+    }
+    if (Operand.isVar(ir.src1(i))) {
+      uses.set(Operand.value(ir.src1(i)));
+    }
+    if (Operand.isVar(ir.src2(i))) {
+      uses.set(Operand.value(ir.src2(i)));
+    }
+  }
+}
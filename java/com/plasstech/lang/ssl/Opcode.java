@@ -0,0 +1,36 @@
+package com.plasstech.lang.ssl;
+
+/** Instructions of the intermediate representation. */
+public enum Opcode {
+  /** dst = src1 */
+  COPY,
+  /** dst = src1 symbol src2. The type is that of the operands; comparisons produce a BOOL. */
+  BINARY,
+  /** Prints src1. */
+  PRINT,
+  /** Prints src1 and a newline. */
+  PRINTLN,
+  /** Defines the label dst. */
+  LABEL,
+  /** Jumps to dst. */
+  JUMP,
+  /** Jumps to dst if the BOOL src1 is false. */
+  JUMP_IF_FALSE,
+  /** Jumps to dst if src1 symbol src2 is true. */
+  BRANCH,
+  /** Compares src1 to src2, for the SELECT right after it. The type is that of the operands. */
+  COMPARE,
+  /**
+   * dst = src1 if symbol holds for the preceding COMPARE, else src2. The type is that of the
+   * compared operands.
+   */
+  SELECT,
+  /** Increments the INT variable dst. */
+  INC,
+  /** Does nothing. Left behind by optimizations until the Ir is compacted. */
+  NOP;
+
+  public boolean isJump() {
+    return this == JUMP || this == JUMP_IF_FALSE || this == BRANCH;
+  }
+}
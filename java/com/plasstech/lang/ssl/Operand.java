@@ -0,0 +1,59 @@
+package com.plasstech.lang.ssl;
+
+/**
+ * Encodes an IR operand as a long: the kind in the high word and its value in the low word. The
+ * value is an index into the Ir's tables for temps, variables, labels and float and string
+ * constants, and the value itself for INT and BOOL constants.
+ */
+public final class Operand {
+  public enum Kind {
+    NONE, TEMP, VAR, INT, BOOL, FLOAT, STRING, LABEL
+  }
+
+  private static final Kind[] KINDS = Kind.values();
+
+  public static final long NONE = 0;
+
+  private Operand() {}
+
+  public static long of(Kind kind, int value) {
+    return ((long) kind.ordinal() << 32) | (value & 0xffffffffL);
+  }
+
+  public static long intConstant(int value) {
+    return of(Kind.INT, value);
+  }
+
+  public static long boolConstant(boolean value) {
+    return of(Kind.BOOL, value ? 1 : 0);
+  }
+
+  public static Kind kind(long operand) {
+    return KINDS[(int) (operand >>> 32)];
+  }
+
+  public static int value(long operand) {
+    return (int) operand;
+  }
+
+  public static boolean isTemp(long operand) {
+    return kind(operand) == Kind.TEMP;
+  }
+
+  public static boolean isVar(long operand) {
+    return kind(operand) == Kind.VAR;
+  }
+
+  public static boolean isConstant(long operand) {
+    switch (kind(operand)) {
+      case INT:
+      case BOOL:
+      case FLOAT:
+      case STRING:
+        return true;
+
+      default:
+        return false;
+    }
+  }
+}
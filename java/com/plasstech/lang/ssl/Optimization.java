@@ -0,0 +1,56 @@
+package com.plasstech.lang.ssl;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+/** Optional passes of the code generator. All of them are on by default. */
+public enum Optimization {
+  /** Folds constant expressions and branches and propagates constant values of variables. */
+  CONSTANT_FOLDING,
+  /** Reuses values that are already computed, and reads variables instead of their copies. */
+  COMMON_SUBEXPRESSIONS,
+  /** Removes writes to variables that are never read afterwards. */
+  DEAD_STORE_ELIMINATION,
+  /** Compiles IFs that only pick a value for one variable to cmov instead of branches. */
+  IF_CONVERSION,
+  /** Keeps variables in callee-saved registers instead of .data slots. */
+  REGISTER_ALLOCATION,
+  /** Multiplies and divides by constants with shifts, lea and multiplication instead of idiv. */
+  STRENGTH_REDUCTION,
+  /** Prints runs of consecutive PRINTs and PRINTLNs with one call to printf. */
+  PRINT_COALESCING,
+  /** Appends printed text to a buffer that is written out when full and at exit. */
+  BUFFERED_OUTPUT,
+  /** Rewrites short sequences of the generated instructions into cheaper ones. */
+  PEEPHOLE;
+
+  public static final ImmutableSet<Optimization> ALL =
+      Sets.immutableEnumSet(EnumSet.allOf(Optimization.class));
+  public static final ImmutableSet<Optimization> NONE = ImmutableSet.of();
+
+  /**
+   * Removes what a flag turns off from optimizations: -O0 turns off all of them, -fno-<name> one,
+   * e.g. -fno-peephole. Returns false if it is not such a flag.
+   *
+   * @throws IllegalArgumentException if -fno- names no optimization
+   */
+  public static boolean parseFlag(String flag, Set<Optimization> optimizations) {
+    if (flag.equals("-O0")) {
+      optimizations.clear();
+      return true;
+    }
+    if (flag.startsWith("-fno-")) {
+      String name = flag.substring(5);
+      try {
+        optimizations.remove(valueOf(name.replace('-', '_').toUpperCase()));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Unknown optimization " + name, e);
+      }
+      return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,386 @@
+package com.plasstech.lang.ssl;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Routines that generated code calls to print when BUFFERED_OUTPUT is on. They append text to a
+ * buffer in .bss, and write it out with one call to _write when it is full and before exit. If
+ * the environment variable SSL_UNBUFFERED is set when the program starts, the buffer is written
+ * out after every append instead, for interactive use.
+ *
+ * <p>The routines take their argument in RCX and may change RAX, RCX, RDX and R8 to R11, like C
+ * functions, but need no home area. Labels end with a colon and are not indented.
+ */
+class OutputRuntime {
+  static final int BUFFER_SIZE = 1 << 16;
+  static final String UNBUFFERED_VARIABLE = "SSL_UNBUFFERED";
+
+  /** Appends the NUL-terminated string at RCX. */
+  static final String APPEND_STRING = "ssl_append_string";
+  /** Appends the INT in ECX, in decimal. */
+  static final String APPEND_INT = "ssl_append_int";
+  /**
+   * Appends the FLOAT whose bits are in RCX, like printf's %.16g. Numbers from 1e-12 to 1e16 are
+   * formatted here, exactly; others go to sprintf.
+   */
+  static final String APPEND_FLOAT = "ssl_append_float";
+  /** Writes out the buffer. */
+  static final String FLUSH = "ssl_flush";
+
+  private static final String DIGIT_PAIRS = "ssl_digit_pairs";
+  private static final String POWERS_OF_5 = "ssl_powers_of_5";
+  private static final int LARGEST_POWER_OF_5 = 27;
+  private static final long DIVIDE_BY_100 = (1L << 37) / 100 + 1;
+  /** Where the 16 digits of a FLOAT go before they are laid out, in ssl_digits. */
+  private static final int FLOAT_DIGITS = 40;
+
+  private OutputRuntime() {}
+
+  /** Remembers whether to buffer. Runs first thing in main. */
+  static ImmutableList<String> startup() {
+    return ImmutableList.of(
+        "mov RCX, UNBUFFERED_NAME",
+        "sub RSP, 0x20",
+        "extern getenv",
+        "call getenv",
+        "add RSP, 0x20",
+        "mov [ssl_unbuffered], RAX");
+  }
+
+  /** The routines, after the code of main. Those for INTs and FLOATs are only there if asked. */
+  static ImmutableList<String> text(boolean ints, boolean floats) {
+    ImmutableList.Builder<String> text = ImmutableList.builder();
+    if (ints) {
+      text.add(
+          APPEND_INT + ":",
+          // Digits go backwards from the end of ssl_digits, two at a time, from the magnitude as
+          // unsigned.
+          "mov R9, ssl_digits",
+          "add R9, 11",
+          "mov BYTE [R9], 0",
+          "mov R10, " + DIGIT_PAIRS,
+          "mov EAX, ECX",
+          "test ECX, ECX",
+          "jns ssl_append_int_pairs",
+          "neg EAX",
+          "ssl_append_int_pairs:",
+          "cmp EAX, 100",
+          "jb ssl_append_int_last",
+          // EAX / 100, by multiplying by 2^37 / 100, rounded up.
+          "mov EDX, EAX",
+          "imul RDX, RDX, " + DIVIDE_BY_100,
+          "shr RDX, 37",
+          "imul R8D, EDX, 100",
+          "sub EAX, R8D",
+          "movzx EAX, WORD [R10+RAX*2]",
+          "sub R9, 2",
+          "mov [R9], AX",
+          "mov EAX, EDX",
+          "jmp ssl_append_int_pairs",
+          "ssl_append_int_last:",
+          "cmp EAX, 10",
+          "jb ssl_append_int_digit",
+          "movzx EAX, WORD [R10+RAX*2]",
+          "sub R9, 2",
+          "mov [R9], AX",
+          "jmp ssl_append_int_sign",
+          "ssl_append_int_digit:",
+          "add EAX, 48",
+          "dec R9",
+          "mov [R9], AL",
+          "ssl_append_int_sign:",
+          "test ECX, ECX",
+          "jns ssl_append_int_string",
+          "dec R9",
+          "mov BYTE [R9], 45",
+          "ssl_append_int_string:",
+          "mov RCX, R9",
+          "jmp " + APPEND_STRING);
+    }
+    if (floats) {
+      text.addAll(appendFloat());
+    }
+    text.add(
+        APPEND_STRING + ":",
+        "mov RDX, [ssl_length]",
+        "mov R8, ssl_buffer",
+        "ssl_append_string_loop:",
+        "movzx EAX, BYTE [RCX]",
+        "test EAX, EAX",
+        "jz ssl_append_string_done",
+        "cmp RDX, " + BUFFER_SIZE,
+        "jb ssl_append_string_store",
+        // Full: write it out and start over.
+        "mov [ssl_length], RDX",
+        "push RCX",
+        "call " + FLUSH,
+        "pop RCX",
+        "movzx EAX, BYTE [RCX]",
+        "xor EDX, EDX",
+        "mov R8, ssl_buffer",
+        "ssl_append_string_store:",
+        "mov [R8+RDX], AL",
+        "inc RDX",
+        "inc RCX",
+        "jmp ssl_append_string_loop",
+        "ssl_append_string_done:",
+        "mov [ssl_length], RDX",
+        "cmp QWORD [ssl_unbuffered], 0",
+        "jnz " + FLUSH,
+        "ret",
+
+        FLUSH + ":",
+        // Realigns the stack for _write, since callers may not have.
+        "push RBP",
+        "mov RBP, RSP",
+        "and RSP, -16",
+        "sub RSP, 0x20",
+        "mov ECX, 1",
+        "mov RDX, ssl_buffer",
+        "mov R8, [ssl_length]",
+        "mov QWORD [ssl_length], 0",
+        "extern _write",
+        "call _write",
+        "mov RSP, RBP",
+        "pop RBP",
+        "ret");
+    return text.build();
+  }
+
+  /**
+   * Scales the magnitude, m * 2^e, by 10^s so it has 16 digits before the point, as the integer
+   * (m * 5^s) / 2^-(e + s), rounded half to even. The 128-bit product keeps it exact.
+   */
+  private static ImmutableList<String> appendFloat() {
+    ImmutableList.Builder<String> text = ImmutableList.builder();
+    text.add(
+        APPEND_FLOAT + ":",
+        // The bits, for the sign and for sprintf.
+        "push RCX",
+        "mov RAX, RCX",
+        "shl RAX, 1",
+        "jz ssl_append_float_zero",
+        "shr RAX, 53",
+        "jz ssl_append_float_sprintf",
+        "cmp EAX, 0x7ff",
+        "je ssl_append_float_sprintf",
+        // R10 = -e, R11 = s = 15 - floor(log10(2^(exponent))), which is one too many or right.
+        "mov R10, 1075",
+        "sub R10, RAX",
+        "sub EAX, 1023",
+        "imul EAX, EAX, 78913",
+        "sar EAX, 18",
+        "movsxd RAX, EAX",
+        "mov R11, 15",
+        "sub R11, RAX",
+        "ssl_append_float_scale:",
+        "cmp R11, " + LARGEST_POWER_OF_5,
+        "ja ssl_append_float_sprintf",
+        "mov RCX, R10",
+        "sub RCX, R11",
+        "jle ssl_append_float_sprintf",
+        "mov RAX, 0xfffffffffffff",
+        "and RAX, [RSP]",
+        "mov RDX, 0x10000000000000",
+        "or RAX, RDX",
+        "mov R8, " + POWERS_OF_5,
+        "mul QWORD [R8+R11*8]",
+        // Shifts right by one less than -(e + s), keeping the rounding bit at the bottom, and
+        // whether any bits below it were set in R9.
+        "xor R9, R9",
+        "dec RCX",
+        "cmp RCX, 64",
+        "jb ssl_append_float_shift",
+        "mov R9, RAX",
+        "mov RAX, RDX",
+        "xor EDX, EDX",
+        "sub ECX, 64",
+        "ssl_append_float_shift:",
+        "mov R8, 1",
+        "shl R8, CL",
+        "dec R8",
+        "and R8, RAX",
+        "or R9, R8",
+        "shrd RAX, RDX, CL",
+        "mov RDX, 20000000000000000",
+        "cmp RAX, RDX",
+        "jb ssl_append_float_round",
+        "dec R11",
+        "jmp ssl_append_float_scale",
+        "ssl_append_float_round:",
+        "shr RAX, 1",
+        "jnc ssl_append_float_digits",
+        "test R9, R9",
+        "jnz ssl_append_float_up",
+        "test AL, 1",
+        "jz ssl_append_float_digits",
+        "ssl_append_float_up:",
+        "inc RAX",
+        "mov RDX, 10000000000000000",
+        "cmp RAX, RDX",
+        "jb ssl_append_float_digits",
+        "mov RAX, 1000000000000000",
+        "dec R11",
+        // 1e16 and up have an exponent.
+        "js ssl_append_float_sprintf",
+        "ssl_append_float_digits:",
+        "mov R8, ssl_digits",
+        "add R8, " + FLOAT_DIGITS,
+        "mov R10, " + DIGIT_PAIRS,
+        "mov ECX, 100000000",
+        "xor EDX, EDX",
+        "div RCX",
+        "mov R9, RDX",
+        "call ssl_eight_digits",
+        "add R8, 8",
+        "mov EAX, R9D",
+        "call ssl_eight_digits",
+        "sub R8, 8",
+        // R8 = the first digit, R10 = after the last one that is not 0, RCX = the exponent.
+        "lea R10, [R8+16]",
+        "ssl_append_float_trim:",
+        "cmp BYTE [R10-1], 48",
+        "jne ssl_append_float_layout",
+        "dec R10",
+        "jmp ssl_append_float_trim",
+        "ssl_append_float_zero:",
+        "mov R8, ssl_digits",
+        "add R8, " + FLOAT_DIGITS,
+        "mov BYTE [R8], 48",
+        "lea R10, [R8+1]",
+        "mov R11, 15",
+        "ssl_append_float_layout:",
+        "mov R9, ssl_digits",
+        "cmp QWORD [RSP], 0",
+        "jge ssl_append_float_positive",
+        "mov BYTE [R9], 45",
+        "inc R9",
+        "ssl_append_float_positive:",
+        "mov RCX, 15",
+        "sub RCX, R11",
+        "cmp RCX, -4",
+        "jl ssl_append_float_exponential",
+        "test RCX, RCX",
+        "jns ssl_append_float_whole",
+        // 0.000ddd
+        "mov BYTE [R9], 48",
+        "mov BYTE [R9+1], 46",
+        "add R9, 2",
+        "ssl_append_float_zeros:",
+        "inc RCX",
+        "jz ssl_append_float_fraction",
+        "mov BYTE [R9], 48",
+        "inc R9",
+        "jmp ssl_append_float_zeros",
+        "ssl_append_float_whole:",
+        "mov AL, [R8]",
+        "mov [R9], AL",
+        "inc R8",
+        "inc R9",
+        "dec RCX",
+        "jns ssl_append_float_whole",
+        "cmp R8, R10",
+        "jae ssl_append_float_done",
+        "mov BYTE [R9], 46",
+        "inc R9",
+        "ssl_append_float_fraction:",
+        "mov AL, [R8]",
+        "mov [R9], AL",
+        "inc R8",
+        "inc R9",
+        "cmp R8, R10",
+        "jb ssl_append_float_fraction",
+        "jmp ssl_append_float_done",
+        // d.ddde-XX, where XX is 5 to 12.
+        "ssl_append_float_exponential:",
+        "mov AL, [R8]",
+        "mov [R9], AL",
+        "inc R8",
+        "inc R9",
+        "cmp R8, R10",
+        "jae ssl_append_float_exponent",
+        "mov BYTE [R9], 46",
+        "inc R9",
+        "ssl_append_float_mantissa:",
+        "mov AL, [R8]",
+        "mov [R9], AL",
+        "inc R8",
+        "inc R9",
+        "cmp R8, R10",
+        "jb ssl_append_float_mantissa",
+        "ssl_append_float_exponent:",
+        "mov BYTE [R9], 101",
+        "mov BYTE [R9+1], 45",
+        "neg RCX",
+        "mov RAX, " + DIGIT_PAIRS,
+        "movzx EAX, WORD [RAX+RCX*2]",
+        "mov [R9+2], AX",
+        "add R9, 4",
+        "ssl_append_float_done:",
+        "mov BYTE [R9], 0",
+        "add RSP, 8",
+        "mov RCX, ssl_digits",
+        "jmp " + APPEND_STRING,
+
+        "ssl_append_float_sprintf:",
+        "pop R8",
+        "push RBP",
+        "mov RBP, RSP",
+        "and RSP, -16",
+        "sub RSP, 0x20",
+        "mov RCX, ssl_digits",
+        "mov RDX, FLOAT_FMT",
+        "extern sprintf",
+        "call sprintf",
+        "mov RSP, RBP",
+        "pop RBP",
+        "mov RCX, ssl_digits",
+        "jmp " + APPEND_STRING,
+
+        // Writes EAX, less than 10^8, as eight digits at R8, with the pairs at R10.
+        "ssl_eight_digits:");
+    for (int offset = 6; offset >= 0; offset -= 2) {
+      text.add(
+          "mov EDX, EAX",
+          "imul RDX, RDX, " + DIVIDE_BY_100,
+          "shr RDX, 37",
+          "imul ECX, EDX, 100",
+          "sub EAX, ECX",
+          "movzx ECX, WORD [R10+RAX*2]",
+          "mov [R8+" + offset + "], CX",
+          "mov EAX, EDX");
+    }
+    return text.add("ret").build();
+  }
+
+  /** Data the routines use. */
+  static ImmutableList<String> data(boolean ints, boolean floats) {
+    ImmutableList.Builder<String> data = ImmutableList.builder();
+    data.add("UNBUFFERED_NAME: db \"" + UNBUFFERED_VARIABLE + "\", 0");
+    if (ints || floats) {
+      StringBuilder pairs = new StringBuilder();
+      for (int i = 0; i < 100; ++i) {
+        pairs.append(i / 10).append(i % 10);
+      }
+      data.add(DIGIT_PAIRS + ": db \"" + pairs + "\"");
+    }
+    if (floats) {
+      StringBuilder powers = new StringBuilder();
+      long power = 1;
+      for (int i = 0; i <= LARGEST_POWER_OF_5; ++i, power *= 5) {
+        powers.append(i == 0 ? "" : ", ").append(power);
+      }
+      data.add(POWERS_OF_5 + ": dq " + powers);
+    }
+    return data.build();
+  }
+
+  /** The buffer and the state of the routines. */
+  static ImmutableList<String> bss() {
+    return ImmutableList.of(
+        "ssl_buffer: resb " + BUFFER_SIZE,
+        "ssl_length: resq 1",
+        "ssl_unbuffered: resq 1",
+        "ssl_digits: resb 64");
+  }
+}
@@ -0,0 +1,133 @@
+package com.plasstech.lang.ssl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Lexes large sources by splitting them into chunks at newlines and lexing the chunks
+ * concurrently.
+ *
+ * <p>Every token except a string literal ends before a newline, and comments end at one, so a
+ * chunk can be lexed on its own unless a string literal crosses its start. Each chunk is lexed
+ * speculatively as if it started between tokens. While stitching, a chunk whose lexer failed
+ * (for example, on a string still open at the end of the chunk) is re-lexed sequentially from the
+ * failing token until the sequential lexer is again between tokens at a chunk start. The
+ * speculative results of the chunks it passed over are discarded.
+ */
+public class ParallelLexer {
+  // Below this size, lexing sequentially is faster than coordinating threads.
+  private static final int MIN_PARALLEL_LENGTH = 1 << 20;
+  private static final int MIN_CHUNK_LENGTH = 64 * 1024;
+
+  private static class Chunk {
+    final int begin;
+    final int end;
+    final TokenStream tokens = new TokenStream();
+    // Offset of the token that failed to scan, or -1 if the whole chunk scanned.
+    int failedAt = -1;
+
+    Chunk(int begin, int end) {
+      this.begin = begin;
+      this.end = end;
+    }
+  }
+
+  /** Tokenizes text on the common pool, if it is large enough to benefit. */
+  public static TokenStream tokenize(CharSequence text) {
+    if (text.length() < MIN_PARALLEL_LENGTH) {
+      return new Lexer(text).tokenize(new TokenStream());
+    }
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    int chunkLength =
+        Math.max(MIN_CHUNK_LENGTH, text.length() / (4 * pool.getParallelism()));
+    return tokenize(text, pool, chunkLength);
+  }
+
+  public static TokenStream tokenize(CharSequence text, ForkJoinPool pool, int chunkLength) {
+    List<Chunk> chunks = split(text, chunkLength);
+    List<ForkJoinTask<Chunk>> tasks = new ArrayList<>(chunks.size());
+    for (Chunk chunk : chunks) {
+      tasks.add(pool.submit(() -> lex(text, chunk)));
+    }
+    for (ForkJoinTask<Chunk> task : tasks) {
+      task.join();
+    }
+    return stitch(text, chunks);
+  }
+
+  /** Splits text into chunks of about chunkLength, each starting just after a newline. */
+  private static List<Chunk> split(CharSequence text, int chunkLength) {
+    List<Chunk> chunks = new ArrayList<>();
+    int length = text.length();
+    int begin = 0;
+    while (begin < length) {
+      int end = Math.min(length, begin + chunkLength);
+      while (end < length && text.charAt(end - 1) != '\n') {
+        end++;
+      }
+      chunks.add(new Chunk(begin, end));
+      begin = end;
+    }
+    return chunks;
+  }
+
+  private static Chunk lex(CharSequence text, Chunk chunk) {
+    Lexer lexer = new Lexer(text, chunk.begin, chunk.end);
+    try {
+      lexer.tokenize(chunk.tokens);
+    } catch (IllegalStateException e) {
+      // Possibly just a string that continues into the next chunk; sorted out when stitching.
+      chunk.failedAt = lexer.tokenStart();
+    }
+    return chunk;
+  }
+
+  private static TokenStream stitch(CharSequence text, List<Chunk> chunks) {
+    TokenStream result = new TokenStream();
+    TokenStream one = new TokenStream(1);
+    int next = 0;
+    while (next < chunks.size()) {
+      Chunk chunk = chunks.get(next++);
+      // Everything but the chunk's EOF
+      int count = chunk.failedAt < 0 ? chunk.tokens.size() - 1 : chunk.tokens.size();
+      for (int i = 0; i < count; ++i) {
+        result.add(chunk.tokens, i);
+      }
+      if (chunk.failedAt < 0) {
+        continue;
+      }
+
+      // Re-lex from the failure until we are between tokens at the start of a later chunk.
+      // A genuine error is thrown from here.
+      Lexer lexer = new Lexer(text, chunk.failedAt, text.length());
+      int lastEnd = chunk.failedAt;
+      boolean resynced = false;
+      while (!resynced) {
+        one.clear();
+        lexer.tokenize(one, 1);
+        int start = one.start(0);
+        while (next < chunks.size() && chunks.get(next).begin <= start) {
+          if (lastEnd <= chunks.get(next).begin) {
+            // The speculative lexing of this chunk started in the right state.
+            resynced = true;
+            break;
+          }
+          next++;
+        }
+        if (resynced) {
+          break;
+        }
+        if (one.type(0) == TokenType.EOF) {
+          result.add(one, 0);
+          return result;
+        }
+        result.add(one, 0);
+        lastEnd = start + one.length(0);
+      }
+    }
+    result.add(TokenType.EOF, VarType.NONE, text.length(), 0, 0);
+    return result;
+  }
+}
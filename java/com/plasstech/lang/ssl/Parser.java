@@ -1,86 +1,93 @@
 package com.plasstech.lang.ssl;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 public class Parser {
-  private static final Map<Symbol, String> INT_ARITH_OPCODES =
-      ImmutableMap.of(
-          Symbol.PLUS, "add EAX, EBX",
-          Symbol.MULT, "imul EAX, EBX",
-          Symbol.DIV, "xchg EAX, EBX\n  cdq\n  idiv EBX",
-          Symbol.MINUS, "xchg EAX, EBX\n  sub EAX, EBX");
-  private static final Map<Symbol, String> FLOAT_ARITH_OPCODES =
-      ImmutableMap.of(
-          Symbol.PLUS, "addsd XMM0, XMM1",
-          Symbol.MULT, "mulsd XMM0, XMM1",
-          Symbol.DIV, "divsd XMM1, XMM0\n  movq XMM0, XMM1",
-          Symbol.MINUS, "subsd XMM1, XMM0\n  movq XMM0, XMM1");
-  private static final Map<VarType, Map<Symbol, String>> ARITH_OPCODES =
-      ImmutableMap.of(
-          VarType.INT, INT_ARITH_OPCODES,
-          VarType.FLOAT, FLOAT_ARITH_OPCODES);
-
-  private static final Map<Symbol, String> INT_CMP_OPCODES =
-      ImmutableMap.of(
-          Symbol.EQEQ, "cmp EBX, EAX\n  setz AL",
-          Symbol.NEQ, "cmp EBX, EAX\n  setnz AL",
-          Symbol.LT, "cmp EBX, EAX\n  setl AL",
-          Symbol.GT, "cmp EBX, EAX\n  setg AL",
-          Symbol.GEQ, "cmp EBX, EAX\n  setge AL",
-          Symbol.LEQ, "cmp EBX, EAX\n  setle AL");
-  private static final Map<Symbol, String> FLOAT_CMP_OPCODES =
-      ImmutableMap.of(
-          Symbol.EQEQ, "comisd XMM1, XMM0\n  setz AL",
-          Symbol.NEQ, "comisd XMM1, XMM0\n  setnz AL",
-          Symbol.LT, "comisd XMM1, XMM0\n  setb AL",
-          Symbol.GT, "comisd XMM1, XMM0\n  seta AL",
-          Symbol.LEQ, "comisd XMM1, XMM0\n  setbe AL",
-          Symbol.GEQ, "comisd XMM1, XMM0\n  setae AL");
-  private static final Map<VarType, Map<Symbol, String>> CMP_OPCODES =
-      ImmutableMap.of(
-          VarType.INT, INT_CMP_OPCODES,
-          VarType.FLOAT, FLOAT_CMP_OPCODES);
+  private static final ImmutableSet<Symbol> ARITH_SYMBOLS =
+      ImmutableSet.of(Symbol.PLUS, Symbol.MINUS, Symbol.MULT, Symbol.DIV);
+  private static final ImmutableSet<Symbol> CMP_SYMBOLS =
+      ImmutableSet.of(Symbol.EQEQ, Symbol.NEQ, Symbol.LT, Symbol.GT, Symbol.LEQ, Symbol.GEQ);
 
+  private static final Keyword[] KEYWORDS = Keyword.values();
+  private static final Symbol[] SYMBOLS = Symbol.values();
+
+  // Tokens are read from the lexer in batches of this many.
+  private static final int TOKEN_BATCH_SIZE = 4096;
+
+  // Null if the tokens were all lexed up front.
   private final Lexer lexer;
-  private final List<String> code = new LinkedList<>();
-  private Token token;
-  private Set<String> data = new HashSet<>();
-  // Maps from value to name
-  private Map<String, String> stringTable = new HashMap<>();
-  private Map<String, String> floatTable = new HashMap<>();
+  private final TokenStream tokens;
+  private int cursor = -1;
+  private final Ir ir = new Ir();
+
+  public Parser(CharSequence text) {
+    this(new Lexer(text));
+  }
+
+  public Parser(Lexer lexer) {
+    this.lexer = lexer;
+    this.tokens = new TokenStream(TOKEN_BATCH_SIZE);
+  }
 
-  public Parser(String text) {
-    this.lexer = new Lexer(text);
+  /** Creates a parser for an already complete token stream, such as from ParallelLexer. */
+  public Parser(TokenStream tokens) {
+    this.lexer = null;
+    this.tokens = tokens;
   }
 
   public ImmutableList<String> parse() {
-    emit0("; java");
-    emit0("global main");
-    emit0("section .text");
-    emit0("main:");
-    advance();
-    statements(ImmutableList.of());
-    emit("extern exit");
-    emit("call exit\n");
-    if (!data.isEmpty()) {
-      emit0("section .data");
-      data.forEach(entry -> {
-        emit(entry);
-      });
-    }
+    return parse(Optimization.ALL);
+  }
+
+  public ImmutableList<String> parse(Set<Optimization> optimizations) {
+    return parse(optimizations, new Peephole());
+  }
 
+  /** Compiles with the given peephole optimizer, if PEEPHOLE is on, so its stats can be read. */
+  public ImmutableList<String> parse(Set<Optimization> optimizations, Peephole peephole) {
+    List<String> code = new ArrayList<>();
+    parse(optimizations, peephole, code::add);
     return ImmutableList.copyOf(code);
   }
 
-  private static int counter = 0;
+  /** Compiles to the sink, which gets the code as it is generated, then finishes it. */
+  public void parse(Set<Optimization> optimizations, Peephole peephole, CodeSink sink) {
+    Ir ir = parseIr();
+    if (optimizations.contains(Optimization.CONSTANT_FOLDING)) {
+      ConstantFolder.fold(ir);
+    }
+    if (optimizations.contains(Optimization.COMMON_SUBEXPRESSIONS)) {
+      CommonSubexpressionEliminator.eliminate(ir);
+    }
+    if (optimizations.contains(Optimization.DEAD_STORE_ELIMINATION)) {
+      DeadStoreEliminator.eliminate(ir);
+    }
+    if (optimizations.contains(Optimization.IF_CONVERSION)) {
+      IfConverter.convert(ir);
+    }
+    if (optimizations.contains(Optimization.PEEPHOLE)) {
+      sink = peephole.sink(sink);
+    }
+    new CodeGenerator(ir, optimizations).generate(sink);
+    sink.finish();
+  }
+
+  /** Parses the program into its intermediate representation. */
+  public Ir parseIr() {
+    advance();
+    statements(ImmutableList.of());
+    return ir;
+  }
+
+  // Per parser, so labels do not depend on what else was compiled, or on which thread.
+  private int counter = 0;
+  // How many FORs enclose the current statement
+  private int forDepth = 0;
 
   private int nextInt() {
     return counter++;
@@ -90,28 +97,35 @@ public class Parser {
     return String.format("%s_%d", prefix, nextInt());
   }
 
-  private Token advance() {
-    token = lexer.nextToken();
-    return token;
+  private void advance() {
+    if (cursor >= 0 && tokenType() == TokenType.EOF) {
+      return;
+    }
+    cursor++;
+    if (cursor == tokens.size() && lexer != null) {
+      tokens.clear();
+      lexer.tokenize(tokens, TOKEN_BATCH_SIZE);
+      cursor = 0;
+    }
   }
 
   private void statements(ImmutableList<Keyword> terminals) {
-    while (token.type != TokenType.EOF
+    while (tokenType() != TokenType.EOF
         && !matches(terminals)) {
       statement();
     }
   }
 
   private boolean matches(ImmutableList<Keyword> terminals) {
-    if (token.type != TokenType.KEYWORD || terminals.isEmpty()) {
+    if (tokenType() != TokenType.KEYWORD || terminals.isEmpty()) {
       return false;
     }
-    KeywordToken kt = (KeywordToken) token;
-    return terminals.stream().anyMatch(kw -> kt.keyword() == kw);
+    Keyword keyword = currentKeyword();
+    return terminals.stream().anyMatch(kw -> keyword == kw);
   }
 
   private void statement() {
-    if (token.type == TokenType.VAR) {
+    if (tokenType() == TokenType.VAR) {
       assignment();
       return;
     }
@@ -127,12 +141,12 @@ public class Parser {
       parseFor();
       return;
     }
-    fail("Cannot parse " + token.stringValue);
+    fail("Cannot parse " + tokenText());
   }
 
   private void parseFor() {
     expect(Keyword.FOR);
-    if (token.type != TokenType.VAR) {
+    if (tokenType() != TokenType.VAR) {
       fail("Expected VAR");
       return;
     }
@@ -140,61 +154,81 @@ public class Parser {
       fail("FOR variable must be integer");
       return;
     }
-    VarToken vt = (VarToken) token;
-    String varName = vt.name();
-    addData(String.format("_%s: dd 0", varName));
+    String varName = tokenText();
+    long var = ir.var(varName, VarType.INT);
     advance();
 
     expect(Symbol.EQ);
-    VarType startType = expr();
-    if (startType != VarType.INT) {
+    int size = ir.size();
+    long start = expr(var);
+    if (ir.typeOf(start) != VarType.INT) {
       fail("FOR start condition must be integer");
       return;
     }
-    emit("mov [_%s], EAX", varName);
+    if (ir.size() == size) {
+      // Not computed directly into the variable
+      ir.add(Opcode.COPY, VarType.INT, null, var, start, Operand.NONE);
+    }
     expect(Keyword.TO);
 
-    String startForLabel = nextLabel("startFor");
-    String endForLabel = nextLabel("endFor");
-    emitLabel(startForLabel);
-    VarType endType = expr();
-    if (endType != VarType.INT) {
+    // The loop is rotated: the condition is tested once before the loop, and again at the bottom.
+    int boundStart = ir.size();
+    long end = expr(Operand.NONE);
+    if (ir.typeOf(end) != VarType.INT) {
       fail("FOR end condition must be integer");
       return;
     }
-    emit("cmp [_%s], EAX", varName);
-    emit("jge %s", endForLabel);
-
+    long startForLabel = ir.newLabel(nextLabel("startFor"));
+    long endForLabel = ir.newLabel(nextLabel("endFor"));
+    int guard = ir.size();
+    ir.add(Opcode.BRANCH, VarType.INT, Symbol.GEQ, endForLabel, var, end);
+    int bodyStart = ir.size();
+    label(startForLabel);
+
+    forDepth++;
     statements(ImmutableList.of(Keyword.ENDFOR));
-    emit("inc DWORD [_%s]", varName);
-    emit("jmp %s", startForLabel);
-    emitLabel(endForLabel);
+    forDepth--;
+    ir.add(Opcode.INC, VarType.INT, null, var, Operand.NONE, Operand.NONE);
+    if (Operand.isTemp(end)) {
+      long left = ir.src1(boundStart);
+      long right = ir.src2(boundStart);
+      if (writesAny(bodyStart, left, right)) {
+        // Evaluate the bound again each time around.
+        end = ir.newTemp(VarType.INT);
+        ir.add(Opcode.BINARY, VarType.INT, ir.symbol(boundStart), end, left, right);
+      } else {
+        // Evaluate the bound once, into a hidden variable. Loops that are not nested never need
+        // theirs at the same time, so there is one per depth, not one per loop.
+        end = ir.var("forEnd_" + forDepth, VarType.INT);
+        ir.set(boundStart, Opcode.BINARY, VarType.INT, ir.symbol(boundStart), end, left, right);
+        ir.set(guard, Opcode.BRANCH, VarType.INT, Symbol.GEQ, endForLabel, var, end);
+      }
+    }
+    ir.add(Opcode.BRANCH, VarType.INT, Symbol.LT, startForLabel, var, end);
+    label(endForLabel);
     expect(Keyword.ENDFOR);
   }
 
   private void assignment() {
-    VarToken vt = (VarToken) token;
+    String varname = tokenText();
+    VarType varType = currentTokenType();
+    long var = ir.var(varname, varType);
     advance();
 
-    String varname = vt.name();
-    addData(String.format("_%s: %s 0", varname, vt.varType().dataSize));
-
     expect(Symbol.EQ);
 
-    VarType exprType = expr();
-    checkTypes(vt.varType(), exprType);
+    int size = ir.size();
+    long value = expr(var);
+    checkTypes(varType, ir.typeOf(value));
 
-    switch (vt.varType()) {
+    switch (varType) {
       case INT:
-        emit("mov [_%s], EAX", varname);
-        return;
-
       case STR:
-        emit("mov [_%s], RAX", varname);
-        return;
-
       case FLOAT:
-        emit("movq [_%s], XMM0", varname);
+        if (ir.size() == size) {
+          // Not computed directly into the variable
+          ir.add(Opcode.COPY, varType, null, var, value, Operand.NONE);
+        }
         return;
 
       default:
@@ -203,228 +237,162 @@ public class Parser {
     fail("Cannot parse assignment");
   }
 
+  /** Returns true if any instruction from the index on writes one of the operands. */
+  private boolean writesAny(int from, long... operands) {
+    for (int i = from; i < ir.size(); ++i) {
+      long def = Liveness.def(ir, i);
+      for (long operand : operands) {
+        if (def != Operand.NONE && def == operand) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
   private void parsePrint() {
     var isPrintln = isKeyword(Keyword.PRINTLN);
     advance();
-    var exprType = expr();
+    long value = expr(Operand.NONE);
+    var exprType = ir.typeOf(value);
     switch (exprType) {
       case INT:
-        addData("INT_FMT: db '%d', 0");
-        emit("mov RCX, INT_FMT");
-        emit("mov EDX, EAX");
-        break;
-
       case STR:
-        emit("mov RCX, RAX");
-        break;
-
       case BOOL:
-        addData("TRUE: db 'true', 0");
-        addData("FALSE: db 'false', 0");
-        emit("cmp AL, 1");
-        emit("mov RCX, FALSE");
-        emit("mov RDX, TRUE");
-        emit("cmovz RCX, RDX");
-        break;
-
       case FLOAT:
-        addData("FLOAT_FMT: db '%.16g', 0");
-        emit("mov RCX, FLOAT_FMT");
-        emit("movq RDX, XMM0");
         break;
 
       default:
         fail("Cannot print " + exprType);
         break;
     }
-    emit("sub RSP, 0x20");
-    emit("extern printf");
-    emit("call printf");
-    if (isPrintln) {
-      emit("extern putchar");
-      emit("mov rcx, 10");
-      emit("call putchar");
-    }
-    emit("add RSP, 0x20");
+    ir.add(isPrintln ? Opcode.PRINTLN : Opcode.PRINT, exprType, null, Operand.NONE, value,
+        Operand.NONE);
   }
 
   private void parseIf() {
     expect(Keyword.IF);
-    VarType exprType = expr();
-    checkTypes(exprType, VarType.BOOL);
+    long condition = expr(Operand.NONE);
+    checkTypes(ir.typeOf(condition), VarType.BOOL);
     expect(Keyword.THEN);
-    String elseLabel = nextLabel("else");
-    String endIfLabel = nextLabel("endIf");
-    emit("cmp AL, 0");
-    emit("jz " + elseLabel);
+    long elseLabel = ir.newLabel(nextLabel("else"));
+    long endIfLabel = ir.newLabel(nextLabel("endIf"));
+    int last = ir.size() - 1;
+    if (last >= 0 && ir.op(last) == Opcode.BINARY && ir.dst(last) == condition) {
+      // Branch on the comparison itself, instead of materializing it and testing that.
+      ir.set(last, Opcode.BRANCH, ir.type(last), ir.symbol(last).negated(),
+          elseLabel, ir.src1(last), ir.src2(last));
+    } else {
+      ir.add(Opcode.JUMP_IF_FALSE, VarType.BOOL, null, elseLabel, condition, Operand.NONE);
+    }
     statements(ImmutableList.of(Keyword.ELSE, Keyword.ENDIF));
     boolean hasElse = isKeyword(Keyword.ELSE);
     if (hasElse) {
-      emit("jmp " + endIfLabel);
+      jump(endIfLabel);
     }
-    emitLabel(elseLabel);
+    label(elseLabel);
     if (hasElse) {
       advance();
       statements(ImmutableList.of(Keyword.ENDIF));
     }
     expect(Keyword.ENDIF);
     if (hasElse) {
-      emitLabel(endIfLabel);
+      label(endIfLabel);
     }
   }
 
-  private VarType expr() {
-    VarType leftType = atom();
-    if (token.type == TokenType.SYMBOL) {
-      switch (leftType) {
-        case INT:
-          emit("push RAX");
-          break;
-
-        case FLOAT:
-          // push XMM0
-          emit("sub RSP, 0x08");
-          emit("movq [RSP], XMM0");
-          break;
-
-        default:
-          fail("Cannot combine yet");
-          break;
+  /**
+   * Parses an expression and returns the operand holding its value. A binary operation is
+   * computed into target if it is given, or else into a new temp.
+   */
+  private long expr(long target) {
+    long left = atom();
+    if (tokenType() == TokenType.SYMBOL) {
+      VarType leftType = ir.typeOf(left);
+      if (leftType != VarType.INT && leftType != VarType.FLOAT) {
+        fail("Cannot combine yet");
       }
       Symbol symbol = currentSymbol();
       advance();
-      VarType rightType = atom();
-      checkTypes(leftType, rightType);
-      switch (leftType) {
-        case INT:
-          emit("pop RBX");
-          break;
-
-        case FLOAT:
-          // pop XMM1
-          emit("movq XMM1, [RSP]");
-          emit("add RSP, 0x08");
-
-          break;
-
-        default:
-          fail("Cannot combine yet");
-          break;
+      long right = atom();
+      checkTypes(leftType, ir.typeOf(right));
+      VarType resultType = VarType.NONE;
+      if (ARITH_SYMBOLS.contains(symbol)) {
+        resultType = leftType;
+      } else if (CMP_SYMBOLS.contains(symbol)) {
+        resultType = VarType.BOOL;
+      } else {
+        fail("Cannot emit opcode for " + symbol.toString());
+      }
+      long dst = target;
+      if (dst == Operand.NONE || ir.typeOf(dst) != resultType) {
+        dst = ir.newTemp(resultType);
       }
-      return emitOpCodeCode(symbol, leftType);
+      ir.add(Opcode.BINARY, leftType, symbol, dst, left, right);
+      return dst;
     }
 
-    return leftType;
+    return left;
   }
 
-  private VarType emitOpCodeCode(Symbol symbol, VarType type) {
-    String arith = ARITH_OPCODES.get(type).getOrDefault(symbol, null);
-    if (arith != null) {
-      emit(arith);
-      return type;
-    }
-    String cmp = CMP_OPCODES.get(type).getOrDefault(symbol, null);
-    if (cmp != null) {
-      emit(cmp);
-      return VarType.BOOL;
-    }
-    fail("Cannot emit opcode for " + symbol.toString());
-    return VarType.NONE;
-  }
-
-  private VarType atom() {
+  private long atom() {
     var tokenType = currentTokenType();
-    if (token.type == TokenType.CONST) {
+    if (tokenType() == TokenType.CONST) {
       switch (tokenType) {
         case INT:
-          emit("mov EAX, " + token.stringValue);
+          long intConstant = Operand.intConstant((int) tokens.payload(cursor));
           advance();
-          return tokenType;
+          return intConstant;
 
         case STR:
-          var value = token.stringValue;
-          var name = addStringConstant(value);
-          emit("mov RAX, " + name);
+          long stringConstant = ir.stringConstant(stringConstant());
           advance();
-          return tokenType;
+          return stringConstant;
 
         case FLOAT:
-          var floatName = addFloatConstant(token.stringValue);
-          emit("movq XMM0, [" + floatName + "]");
+          long floatConstant = ir.floatConstant(tokens.payload(cursor));
           advance();
-          return tokenType;
+          return floatConstant;
 
         default:
           break;
       }
     }
-    if (token.type == TokenType.VAR) {
+    if (tokenType() == TokenType.VAR) {
       switch (tokenType) {
         case INT:
-          emit("mov EAX, [_%s]", token.stringValue);
-          advance();
-          return tokenType;
-
         case STR:
-          emit("mov RAX, [_%s]", token.stringValue);
-          advance();
-          return tokenType;
-
         case FLOAT:
-          emit("movq XMM0, [_%s]", token.stringValue);
+          long var = ir.var(tokenText(), tokenType);
           advance();
-          return tokenType;
+          return var;
 
         default:
           break;
       }
     }
-    fail("Cannot parse " + token.stringValue);
-    return VarType.NONE;
-  }
-
-  private Object addFloatConstant(String value) {
-    String name = floatTable.get(value);
-    if (name != null) {
-      return name;
-    }
-    name = nextLabel("FLOAT");
-    floatTable.put(value, name);
-    addData(String.format("%s: dq %s", name, value));
-    return name;
-  }
-
-  private Object addStringConstant(String value) {
-    String name = stringTable.get(value);
-    if (name != null) {
-      return name;
-    }
-    name = nextLabel("CONST");
-    stringTable.put(value, name);
-    addData(String.format("%s: db \"%s\", 0", name, value));
-    return name;
+    fail("Cannot parse " + tokenText());
+    return Operand.NONE;
   }
 
   private void expect(Symbol expected) {
-    if (token.type != TokenType.SYMBOL) {
-      fail("Expected " + expected + ", was " + token.stringValue);
+    if (tokenType() != TokenType.SYMBOL) {
+      fail("Expected " + expected + ", was " + tokenText());
       return;
     }
-    SymbolToken st = (SymbolToken) token;
-    if (st.symbol() != expected) {
-      fail("Expected " + expected + ", was " + token.stringValue);
+    if (currentSymbol() != expected) {
+      fail("Expected " + expected + ", was " + tokenText());
     }
     advance();
   }
 
   private void expect(Keyword expected) {
-    if (token.type != TokenType.KEYWORD) {
-      fail("Expected " + expected + ", was " + token.stringValue);
+    if (tokenType() != TokenType.KEYWORD) {
+      fail("Expected " + expected + ", was " + tokenText());
       return;
     }
-    KeywordToken kw = (KeywordToken) token;
-    if (kw.keyword() != expected) {
-      fail("Expected " + expected + ", was " + token.stringValue);
+    if (currentKeyword() != expected) {
+      fail("Expected " + expected + ", was " + tokenText());
     }
     advance();
   }
@@ -435,45 +403,72 @@ public class Parser {
     }
   }
 
-  private void addData(String entry) {
-    data.add(entry);
+  private void label(long label) {
+    ir.add(Opcode.LABEL, VarType.NONE, null, label, Operand.NONE, Operand.NONE);
   }
 
-  private void emit(String format, Object... params) {
-    emit(String.format(format, params));
+  private void jump(long label) {
+    ir.add(Opcode.JUMP, VarType.NONE, null, label, Operand.NONE, Operand.NONE);
   }
 
-  private void emit(String line) {
-    emit0("  " + line);
+  private void fail(String message) {
+    throw new IllegalStateException(message);
   }
 
-  private void emitLabel(String label) {
-    emit0(label + ":");
+  private TokenType tokenType() {
+    return tokens.type(cursor);
   }
 
-  private void emit0(String line) {
-    code.add(line);
+  /** Returns the text of the current token, for names and messages. */
+  private String tokenText() {
+    long payload = tokens.payload(cursor);
+    switch (tokenType()) {
+      case KEYWORD:
+        return currentKeyword().toString();
+
+      case SYMBOL:
+        return currentSymbol().value;
+
+      case VAR:
+        return String.valueOf((char) payload);
+
+      case CONST:
+        switch (currentTokenType()) {
+          case INT:
+            return String.valueOf((int) payload);
+
+          case FLOAT:
+            return String.valueOf(Double.longBitsToDouble(payload));
+
+          default:
+            return stringConstant();
+        }
+
+      default:
+        return "";
+    }
   }
 
-  private void fail(String message) {
-    throw new IllegalStateException(message);
+  private String stringConstant() {
+    return tokens.string(tokens.payload(cursor));
   }
 
   private Symbol currentSymbol() {
-    SymbolToken st = (SymbolToken) token;
-    return st.symbol();
+    return SYMBOLS[(int) tokens.payload(cursor)];
+  }
+
+  private Keyword currentKeyword() {
+    return KEYWORDS[(int) tokens.payload(cursor)];
   }
 
   private VarType currentTokenType() {
-    TypedToken tt = (TypedToken) token;
-    return tt.varType();
+    return tokens.varType(cursor);
   }
 
   private boolean isKeyword(Keyword kw) {
-    if (token.type != TokenType.KEYWORD) {
+    if (tokenType() != TokenType.KEYWORD) {
       return false;
     }
-    KeywordToken kt = (KeywordToken) token;
-    return kt.keyword() == kw;
+    return currentKeyword() == kw;
   }
 }
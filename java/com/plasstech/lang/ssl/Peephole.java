@@ -0,0 +1,398 @@
+package com.plasstech.lang.ssl;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Rewrites short sequences of generated instructions into cheaper ones. The rules look at the
+ * last few lines of the output so far, as each line is added, so one rewrite can expose another
+ * on the lines before it. Only the text section is rewritten.
+ *
+ * <p>No rule looks back past a label or a call, or removes one, so once one of those is added the
+ * lines before it are final. The optimizer holds only the lines since the last of them, and passes
+ * the rest on, so it can stream code.
+ */
+public class Peephole {
+  /** A rewrite, triggered by the last line of the output. */
+  public enum Rule {
+    /** Drops "mov B, A" right after "mov A, B". */
+    REDUNDANT_LOAD,
+    /** Drops a move to a register that the next move overwrites without reading it. */
+    DEAD_MOVE,
+    /** Drops a jump to the label right after it. */
+    JUMP_TO_NEXT,
+    /** Replaces "setCC AL; cmp AL, 0; jz L" with a jump on the opposite condition. */
+    BRANCH_ON_SETCC,
+    /** Replaces "setCC AL; cmp AL, 1; ...; cmovz" with a cmov on the same condition. */
+    CMOV_ON_SETCC,
+    /** Drops an "add RSP" and the "sub RSP" that follows it, when nothing in between needs RSP. */
+    STACK_ADJUST;
+  }
+
+  // How far back STACK_ADJUST looks for the add
+  private static final int WINDOW = 8;
+  // Compiled once: String.split compiles its pattern on every call unless it is one character.
+  private static final Pattern NOT_WORD = Pattern.compile("[^\\w]+");
+
+  private static final Map<String, String> INVERSE_CONDITIONS =
+      ImmutableMap.<String, String>builder()
+          .put("z", "nz")
+          .put("nz", "z")
+          .put("l", "ge")
+          .put("ge", "l")
+          .put("g", "le")
+          .put("le", "g")
+          .put("b", "ae")
+          .put("ae", "b")
+          .put("a", "be")
+          .put("be", "a")
+          .build();
+
+  private static final ImmutableList<String> REGISTERS = ImmutableList.of(
+      "RAX", "RCX", "RDX", "RBX", "RSP", "RBP", "RSI", "RDI",
+      "R8", "R9", "R10", "R11", "R12", "R13", "R14", "R15");
+  private static final ImmutableList<String> REGISTERS_32 = ImmutableList.of(
+      "EAX", "ECX", "EDX", "EBX", "ESP", "EBP", "ESI", "EDI",
+      "R8D", "R9D", "R10D", "R11D", "R12D", "R13D", "R14D", "R15D");
+  private static final ImmutableList<String> REGISTERS_8 = ImmutableList.of(
+      "AL", "CL", "DL", "BL", "SPL", "BPL", "SIL", "DIL",
+      "R8B", "R9B", "R10B", "R11B", "R12B", "R13B", "R14B", "R15B");
+
+  private final Set<Rule> rules;
+  private final int[] counts = new int[Rule.values().length];
+
+  public Peephole() {
+    this(EnumSet.allOf(Rule.class));
+  }
+
+  public Peephole(Set<Rule> rules) {
+    this.rules = Sets.immutableEnumSet(rules);
+  }
+
+  /** Returns how many times each rule has rewritten code, over all calls to optimize. */
+  public ImmutableMap<Rule, Integer> stats() {
+    Map<Rule, Integer> stats = Maps.newEnumMap(Rule.class);
+    for (Rule rule : Rule.values()) {
+      stats.put(rule, counts[rule.ordinal()]);
+    }
+    return ImmutableMap.copyOf(stats);
+  }
+
+  public ImmutableList<String> optimize(List<String> code) {
+    ImmutableList.Builder<String> out = ImmutableList.builderWithExpectedSize(code.size());
+    CodeSink sink = sink(out::add);
+    code.forEach(sink::add);
+    sink.finish();
+    return out.build();
+  }
+
+  /** Returns a sink that optimizes the code added to it, and adds the result to next. */
+  public CodeSink sink(CodeSink next) {
+    return new CodeSink() {
+      private final List<String> out = new ArrayList<>();
+      private boolean text = false;
+
+      @Override
+      public void add(String line) {
+        out.add(line);
+        if (line.startsWith("section ")) {
+          text = line.equals("section .text");
+        } else if (text) {
+          while (rewrite(out)) {
+            // Keep going; the rewrite may have exposed another one.
+          }
+        }
+        if (!text) {
+          pass(out.size());
+        } else if (isBarrier(out.get(out.size() - 1))) {
+          pass(out.size() - 1);
+        }
+      }
+
+      @Override
+      public void finish() {
+        pass(out.size());
+        next.finish();
+      }
+
+      /** Adds the first lines to next. */
+      private void pass(int count) {
+        for (int i = 0; i < count; ++i) {
+          next.add(out.get(i));
+        }
+        out.subList(0, count).clear();
+      }
+    };
+  }
+
+  private boolean rewrite(List<String> out) {
+    for (Rule rule : rules) {
+      if (apply(rule, out)) {
+        counts[rule.ordinal()]++;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean apply(Rule rule, List<String> out) {
+    switch (rule) {
+      case REDUNDANT_LOAD:
+        return redundantLoad(out);
+
+      case DEAD_MOVE:
+        return deadMove(out);
+
+      case JUMP_TO_NEXT:
+        return jumpToNext(out);
+
+      case BRANCH_ON_SETCC:
+        return branchOnSetcc(out);
+
+      case CMOV_ON_SETCC:
+        return cmovOnSetcc(out);
+
+      case STACK_ADJUST:
+        return stackAdjust(out);
+
+      default:
+        throw new IllegalStateException("Unknown rule " + rule);
+    }
+  }
+
+  private static boolean redundantLoad(List<String> out) {
+    String[] second = instruction(out, 1);
+    if (!isMove(second)) {
+      return false;
+    }
+    String[] first = instruction(out, 2);
+    if (!isMove(first) || !first[0].equals(second[0])) {
+      return false;
+    }
+    if (first[1].equals(second[2]) && first[2].equals(second[1])) {
+      remove(out, 1);
+      return true;
+    }
+    return false;
+  }
+
+  private static boolean deadMove(List<String> out) {
+    String[] second = instruction(out, 1);
+    if (!isMove(second)) {
+      return false;
+    }
+    String[] first = instruction(out, 2);
+    if (!isMove(first) || !first[1].equals(second[1])) {
+      return false;
+    }
+    // Only whole registers: a move to memory may alias, and a partial register keeps the rest.
+    String family = family(first[1]);
+    if (family == null || REGISTERS_8.contains(first[1].toUpperCase())) {
+      return false;
+    }
+    for (String token : NOT_WORD.split(second[2])) {
+      if (family.equals(family(token))) {
+        return false;
+      }
+    }
+    remove(out, 2);
+    return true;
+  }
+
+  private static boolean jumpToNext(List<String> out) {
+    String last = out.get(out.size() - 1);
+    if (!last.endsWith(":") || last.startsWith(" ")) {
+      return false;
+    }
+    String label = last.substring(0, last.length() - 1);
+    // An alignment directive may be between the jump and its label.
+    int back = 2;
+    while (out.size() >= back && out.get(out.size() - back).trim().startsWith("align ")) {
+      back++;
+    }
+    String[] jump = instruction(out, back);
+    if (jump == null || !jump[0].startsWith("j") || jump.length != 2 || !jump[1].equals(label)) {
+      return false;
+    }
+    remove(out, back);
+    return true;
+  }
+
+  private static boolean branchOnSetcc(List<String> out) {
+    String[] jump = instruction(out, 1);
+    if (jump == null || !jump[0].equals("jz")) {
+      return false;
+    }
+    String[] cmp = instruction(out, 2);
+    String[] set = instruction(out, 3);
+    if (cmp == null
+        || !String.join(" ", cmp).equals("cmp AL 0") || !isSetcc(set)) {
+      return false;
+    }
+    // The temp in AL is only read by the jump.
+    String inverse = INVERSE_CONDITIONS.get(set[0].substring(3));
+    String label = jump[1];
+    remove(out, 1);
+    remove(out, 1);
+    remove(out, 1);
+    out.add("  j" + inverse + " " + label);
+    return true;
+  }
+
+  private static boolean cmovOnSetcc(List<String> out) {
+    String[] cmov = instruction(out, 1);
+    if (cmov == null || !cmov[0].equals("cmovz")) {
+      return false;
+    }
+    String[] loadTrue = instruction(out, 2);
+    String[] loadFalse = instruction(out, 3);
+    String[] cmp = instruction(out, 4);
+    String[] set = instruction(out, 5);
+    if (!isMove(loadTrue) || !isMove(loadFalse)
+        || cmp == null || !String.join(" ", cmp).equals("cmp AL 1") || !isSetcc(set)) {
+      return false;
+    }
+    // The moves between do not change the flags, and the temp in AL is only read by the cmov.
+    String condition = set[0].substring(3);
+    List<String> tail = new ArrayList<>(out.subList(out.size() - 3, out.size() - 1));
+    for (int i = 0; i < 5; ++i) {
+      remove(out, 1);
+    }
+    out.addAll(tail);
+    out.add(String.format("  cmov%s %s, %s", condition, cmov[1], cmov[2]));
+    return true;
+  }
+
+  private static boolean stackAdjust(List<String> out) {
+    String[] sub = instruction(out, 1);
+    if (sub == null || !sub[0].equals("sub") || !sub[1].equals("RSP")) {
+      return false;
+    }
+    for (int back = 2; back <= WINDOW && back <= out.size(); ++back) {
+      String line = out.get(out.size() - back);
+      if (line.trim().startsWith("extern ")) {
+        continue;
+      }
+      String[] instruction = instruction(out, back);
+      if (instruction == null) {
+        // A label: the stack may be different on another path to it.
+        return false;
+      }
+      if (instruction[0].equals("add") && instruction[1].equals("RSP")
+          && instruction[2].equals(sub[2])) {
+        if (!flagsReadBetween(out, back)) {
+          remove(out, 1);
+          remove(out, back - 1);
+          return true;
+        }
+        return false;
+      }
+      if (line.toUpperCase().contains("RSP") || instruction[0].startsWith("j")
+          || instruction[0].equals("call") || instruction[0].equals("ret")) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /** Returns whether an instruction after the given line reads the flags it had left. */
+  private static boolean flagsReadBetween(List<String> out, int back) {
+    for (int i = back - 1; i >= 2; --i) {
+      String[] instruction = instruction(out, i);
+      if (instruction == null) {
+        continue;
+      }
+      String op = instruction[0];
+      if (op.equals("cmp") || op.equals("test") || op.equals("comisd")) {
+        return false;
+      }
+      if (op.startsWith("set") || op.startsWith("cmov") || op.startsWith("j")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns whether the line is a label or a call, which the rules do not look back past. */
+  private static boolean isBarrier(String line) {
+    return (!line.startsWith(" ") && line.endsWith(":")) || line.startsWith("  call ");
+  }
+
+  private static boolean isMove(String[] instruction) {
+    return instruction != null && instruction.length == 3
+        && (instruction[0].equals("mov") || instruction[0].equals("movq"));
+  }
+
+  private static boolean isSetcc(String[] instruction) {
+    return instruction != null && instruction.length == 2 && instruction[0].startsWith("set")
+        && instruction[1].equals("AL")
+        && INVERSE_CONDITIONS.containsKey(instruction[0].substring(3));
+  }
+
+  /** Returns the 64-bit or XMM register that the register name is part of, or null. */
+  private static String family(String name) {
+    String upper = name.toUpperCase();
+    if (upper.startsWith("XMM")) {
+      return upper;
+    }
+    int index = REGISTERS.indexOf(upper);
+    if (index < 0) {
+      index = REGISTERS_32.indexOf(upper);
+    }
+    if (index < 0) {
+      index = REGISTERS_8.indexOf(upper);
+    }
+    return index < 0 ? null : REGISTERS.get(index);
+  }
+
+  /**
+   * Returns the opcode and operands of the instruction the given number of lines from the end,
+   * counting from 1, or null if that line is not an instruction.
+   */
+  private static String[] instruction(List<String> out, int back) {
+    if (out.size() < back) {
+      return null;
+    }
+    String line = out.get(out.size() - back);
+    if (!line.startsWith("  ") || line.endsWith(":")) {
+      return null;
+    }
+    line = line.trim();
+    int space = line.indexOf(' ');
+    if (space < 0) {
+      return new String[] {line};
+    }
+    String op = line.substring(0, space);
+    if (op.equals("extern") || op.equals("align") || op.equals("global")) {
+      return null;
+    }
+    // Every line is parsed several times, so this splits without a regex.
+    int count = 2;
+    for (int comma = line.indexOf(", ", space); comma >= 0; comma = line.indexOf(", ", comma + 2)) {
+      count++;
+    }
+    String[] instruction = new String[count];
+    instruction[0] = op;
+    int start = space + 1;
+    for (int i = 1; i < count - 1; ++i) {
+      int comma = line.indexOf(", ", start);
+      instruction[i] = line.substring(start, comma);
+      start = comma + 2;
+    }
+    instruction[count - 1] = line.substring(start);
+    return instruction;
+  }
+
+  private static void remove(List<String> out, int back) {
+    out.remove(out.size() - back);
+  }
+}
@@ -0,0 +1,73 @@
+package com.plasstech.lang.ssl;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * A fixed-size window onto text that is read incrementally from a Reader. Offsets are absolute
+ * from the start of the input, but only characters between the last {@code keepFrom} passed to
+ * {@link #fill} and {@link #length} can be accessed.
+ */
+class ReaderWindow implements CharSequence {
+  private final Reader reader;
+  private char[] buffer;
+  private int bufferStart; // absolute offset of buffer[0]
+  private int end; // absolute offset just past the last character read
+  private boolean eof;
+
+  ReaderWindow(Reader reader, int bufferSize) {
+    this.reader = reader;
+    this.buffer = new char[bufferSize];
+  }
+
+  /**
+   * Reads more text, discarding everything before keepFrom. The buffer only grows if a single
+   * token is longer than it. Returns the new end of the window, which is unchanged at EOF.
+   */
+  int fill(int keepFrom) {
+    if (eof) {
+      return end;
+    }
+    int keep = end - keepFrom;
+    if (keepFrom > bufferStart) {
+      System.arraycopy(buffer, keepFrom - bufferStart, buffer, 0, keep);
+      bufferStart = keepFrom;
+    }
+    if (keep == buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+    try {
+      int read = reader.read(buffer, keep, buffer.length - keep);
+      if (read < 0) {
+        eof = true;
+      } else {
+        end += read;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return end;
+  }
+
+  @Override
+  public int length() {
+    return end;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return buffer[index - bufferStart];
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return new String(buffer, start - bufferStart, end - start);
+  }
+
+  @Override
+  public String toString() {
+    return new String(buffer, 0, end - bufferStart);
+  }
+}
@@ -0,0 +1,50 @@
+package com.plasstech.lang.ssl;
+
+/**
+ * Registers that can hold variables. They are all callee-saved in the Windows x64 calling
+ * convention, so they survive calls to printf and friends. RAX, RCX, RDX, XMM0 and XMM1 are
+ * scratch registers of the code generator and are never allocated.
+ */
+public enum Register {
+  RBX("RBX", "EBX"),
+  RSI("RSI", "ESI"),
+  RDI("RDI", "EDI"),
+  R12("R12", "R12D"),
+  R13("R13", "R13D"),
+  R14("R14", "R14D"),
+  R15("R15", "R15D"),
+  RBP("RBP", "EBP"),
+  XMM6("XMM6"),
+  XMM7("XMM7"),
+  XMM8("XMM8"),
+  XMM9("XMM9"),
+  XMM10("XMM10"),
+  XMM11("XMM11"),
+  XMM12("XMM12"),
+  XMM13("XMM13"),
+  XMM14("XMM14"),
+  XMM15("XMM15");
+
+  /** The name of the whole register. */
+  public final String name64;
+  /** The name of the low 32 bits, for INT values. */
+  public final String name32;
+
+  private Register(String name64, String name32) {
+    this.name64 = name64;
+    this.name32 = name32;
+  }
+
+  private Register(String name) {
+    this(name, name);
+  }
+
+  public boolean isXmm() {
+    return name64.startsWith("XMM");
+  }
+
+  /** Returns the name of the register as used for a value of the given type. */
+  public String name(VarType type) {
+    return type == VarType.INT ? name32 : name64;
+  }
+}
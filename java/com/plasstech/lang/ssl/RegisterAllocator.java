@@ -0,0 +1,192 @@
+package com.plasstech.lang.ssl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Assigns registers to variables by linear scan over their live ranges. A live range spans from
+ * the first to the last instruction where the variable is live or written, in program order, so a
+ * variable that is live around a loop keeps its register for the whole loop. When there are more
+ * overlapping ranges than registers, the variable that is used least stays in memory; each use
+ * inside a loop counts eight times as much as one outside it, so loop counters are kept in
+ * registers first.
+ */
+public class RegisterAllocator {
+  private static final ImmutableList<Register> GPRS =
+      ImmutableList.of(
+          Register.RBX, Register.RSI, Register.RDI, Register.R12, Register.R13, Register.R14,
+          Register.R15, Register.RBP);
+  private static final ImmutableList<Register> XMMS =
+      ImmutableList.of(
+          Register.XMM6, Register.XMM7, Register.XMM8, Register.XMM9, Register.XMM10,
+          Register.XMM11, Register.XMM12, Register.XMM13, Register.XMM14, Register.XMM15);
+
+  private final Ir ir;
+  private final Register[] registers;
+  private final BitSet liveOnEntry;
+  private final int[] starts;
+  private final int[] ends;
+  private final long[] weights;
+
+  private RegisterAllocator(Ir ir) {
+    this.ir = ir;
+    int vars = ir.varCount();
+    registers = new Register[vars];
+    starts = new int[vars];
+    ends = new int[vars];
+    weights = new long[vars];
+    Arrays.fill(starts, Integer.MAX_VALUE);
+    Arrays.fill(ends, -1);
+
+    if (ir.size() == 0) {
+      liveOnEntry = new BitSet();
+      return;
+    }
+    ControlFlowGraph cfg = ControlFlowGraph.of(ir);
+    Liveness liveness = Liveness.of(ir, cfg);
+    liveOnEntry = liveness.liveIn(0);
+    buildRanges(cfg, liveness);
+    buildWeights();
+
+    List<Integer> gprVars = new ArrayList<>();
+    List<Integer> xmmVars = new ArrayList<>();
+    for (int var = 0; var < vars; ++var) {
+      if (ends[var] < 0) {
+        // Never live nor written
+        continue;
+      }
+      switch (ir.typeOf(Operand.of(Operand.Kind.VAR, var))) {
+        case INT:
+        case STR:
+          gprVars.add(var);
+          break;
+
+        case FLOAT:
+          xmmVars.add(var);
+          break;
+
+        default:
+          break;
+      }
+    }
+    scan(gprVars, GPRS);
+    scan(xmmVars, XMMS);
+  }
+
+  public static RegisterAllocator allocate(Ir ir) {
+    return new RegisterAllocator(ir);
+  }
+
+  /** Returns the register holding the variable, or null if it lives in memory. */
+  public Register register(long var) {
+    return registers[Operand.value(var)];
+  }
+
+  /** Returns true if the variable may be read before it is written. */
+  public boolean isLiveOnEntry(long var) {
+    return liveOnEntry.get(Operand.value(var));
+  }
+
+  private void buildRanges(ControlFlowGraph cfg, Liveness liveness) {
+    BitSet uses = new BitSet();
+    for (int b = 0; b < cfg.size(); ++b) {
+      int start = cfg.start(b);
+      int last = cfg.end(b) - 1;
+      liveness.liveIn(b).stream().forEach(var -> extend(var, start));
+      liveness.liveOut(b).stream().forEach(var -> extend(var, last));
+      for (int i = start; i <= last; ++i) {
+        long def = Liveness.def(ir, i);
+        if (def != Operand.NONE) {
+          extend(Operand.value(def), i);
+        }
+        uses.clear();
+        Liveness.addUses(ir, i, uses);
+        final int position = i;
+        uses.stream().forEach(var -> extend(var, position));
+      }
+    }
+  }
+
+  private void buildWeights() {
+    // A jump back to a label closes a loop around everything in between.
+    int[] labelIndex = new int[ir.labelCount()];
+    for (int i = 0; i < ir.size(); ++i) {
+      if (ir.op(i) == Opcode.LABEL) {
+        labelIndex[Operand.value(ir.dst(i))] = i;
+      }
+    }
+    int[] depthChange = new int[ir.size() + 1];
+    for (int i = 0; i < ir.size(); ++i) {
+      if (ir.op(i).isJump()) {
+        int target = labelIndex[Operand.value(ir.dst(i))];
+        if (target < i) {
+          depthChange[target]++;
+          depthChange[i + 1]--;
+        }
+      }
+    }
+    BitSet uses = new BitSet();
+    int depth = 0;
+    for (int i = 0; i < ir.size(); ++i) {
+      depth += depthChange[i];
+      long weight = 1L << (3 * Math.min(depth, 20));
+      long def = Liveness.def(ir, i);
+      if (def != Operand.NONE) {
+        weights[Operand.value(def)] += weight;
+      }
+      uses.clear();
+      Liveness.addUses(ir, i, uses);
+      uses.stream().forEach(var -> weights[var] += weight);
+    }
+  }
+
+  private void extend(int var, int position) {
+    starts[var] = Math.min(starts[var], position);
+    ends[var] = Math.max(ends[var], position);
+  }
+
+  private void scan(List<Integer> vars, ImmutableList<Register> pool) {
+    vars.sort(Comparator.comparingInt(var -> starts[var]));
+    Deque<Register> free = new ArrayDeque<>(pool);
+    // Ordered by end of range
+    List<Integer> active = new ArrayList<>();
+    for (int var : vars) {
+      // A range that ends where this one starts cannot share its register: the instruction
+      // reads the old variable after it starts writing the new one.
+      while (!active.isEmpty() && ends[active.get(0)] < starts[var]) {
+        free.push(registers[active.remove(0)]);
+      }
+      if (free.isEmpty()) {
+        int cheapest = active.get(0);
+        for (int other : active) {
+          if (weights[other] < weights[cheapest]
+              || (weights[other] == weights[cheapest] && ends[other] > ends[cheapest])) {
+            cheapest = other;
+          }
+        }
+        if (weights[var] < weights[cheapest]
+            || (weights[var] == weights[cheapest] && ends[var] >= ends[cheapest])) {
+          // This one stays in memory.
+          continue;
+        }
+        // Move the cheapest one to memory and take its register.
+        active.remove(Integer.valueOf(cheapest));
+        free.push(registers[cheapest]);
+        registers[cheapest] = null;
+      }
+      registers[var] = free.pop();
+      int index = 0;
+      while (index < active.size() && ends[active.get(index)] <= ends[var]) {
+        index++;
+      }
+      active.add(index, var);
+    }
+  }
+}
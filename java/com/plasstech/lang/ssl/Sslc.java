@@ -1,22 +1,166 @@
 package com.plasstech.lang.ssl;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.util.stream.Collectors;
-
-import com.google.common.collect.ImmutableList;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class Sslc {
-  public static void main(String args[]) {
-    // read from stdin
-    BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
-    String text = reader.lines().collect(Collectors.joining("\n"));
+  // Connections a server accepts beyond those it is compiling, for each thread.
+  private static final int QUEUED_PER_THREAD = 16;
+  private static final long DEFAULT_CACHE_MEGABYTES = 256;
+
+  public static void main(String args[]) throws IOException {
+    // -O0 turns off all optimizations, -fno-<name> turns off one, e.g. -fno-peephole.
+    // With several files or a directory, compiles each foo.ssl to foo.asm, on -j<n> threads.
+    // --server=<socket> compiles what clients send to the socket, on -j<n> threads, and
+    // --client=<socket> sends stdin to such a server and writes the code to stdout.
+    // --cache=<dir> reuses code compiled before from the source, keeping at most
+    // --cache-size=<megabytes> of it.
+    Set<Optimization> optimizations = EnumSet.copyOf(Optimization.ALL);
+    List<String> flags = new ArrayList<>();
+    boolean peepholeStats = false;
+    int threads = Runtime.getRuntime().availableProcessors();
+    String server = null;
+    String client = null;
+    String cacheDirectory = null;
+    long cacheMegabytes = DEFAULT_CACHE_MEGABYTES;
+    List<String> files = new ArrayList<>();
+    for (String arg : args) {
+      if (parseFlag(arg, optimizations)) {
+        flags.add(arg);
+      } else if (arg.equals("--peephole-stats")) {
+        peepholeStats = true;
+      } else if (arg.startsWith("-j")) {
+        threads = Integer.parseInt(arg.substring(2));
+      } else if (arg.startsWith("--server=")) {
+        server = arg.substring(9);
+      } else if (arg.startsWith("--client=")) {
+        client = arg.substring(9);
+      } else if (arg.startsWith("--cache=")) {
+        cacheDirectory = arg.substring(8);
+      } else if (arg.startsWith("--cache-size=")) {
+        cacheMegabytes = Long.parseLong(arg.substring(13));
+      } else {
+        files.add(arg);
+      }
+    }
+
+    if (server != null) {
+      CompileServer compileServer =
+          new CompileServer(Path.of(server), threads, threads * QUEUED_PER_THREAD);
+      // Closing stops serve(), so a signal also ends the server cleanly.
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          compileServer.close();
+        } catch (IOException e) {
+          // Exiting anyway.
+        }
+      }));
+      try {
+        compileServer.serve();
+      } finally {
+        compileServer.close();
+      }
+      return;
+    }
+    if (client != null) {
+      boolean ok = CompileClient.compile(
+          Path.of(client), flags, System.in, System.out, System.err);
+      System.out.flush();
+      System.exit(ok ? 0 : 1);
+    }
+    CompileCache cache = null;
+    if (cacheDirectory != null) {
+      cache = new CompileCache(Path.of(cacheDirectory), cacheMegabytes << 20);
+    }
+
+    if (files.size() > 1 || (files.size() == 1 && Files.isDirectory(Path.of(files.get(0))))) {
+      List<Path> paths = new ArrayList<>();
+      files.forEach(file -> paths.add(Path.of(file)));
+      BatchCompiler compiler = new BatchCompiler(optimizations, threads, cache);
+      Map<Path, String> failures = compiler.compile(paths);
+      if (peepholeStats) {
+        printStats(compiler.stats());
+      }
+      failures.forEach((path, message) -> System.err.printf("%s: %s%n", path, message));
+      System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    if (cache != null) {
+      // The whole source is needed for the key, so read it instead of streaming it.
+      byte[] source = files.isEmpty()
+          ? System.in.readAllBytes() : Files.readAllBytes(Path.of(files.get(0)));
+      String key = CompileCache.key(source, optimizations);
+      byte[] asm = cache.get(key);
+      if (asm == null) {
+        Peephole peephole = new Peephole();
+        asm = CompileCache.text(new Parser(
+            ParallelLexer.tokenize(new ByteCharSequence(ByteBuffer.wrap(source))))
+            .parse(optimizations, peephole));
+        if (peepholeStats) {
+          printStats(peephole.stats());
+        }
+        cache.put(key, asm);
+      }
+      System.out.write(asm);
+      System.out.flush();
+      return;
+    }
+
+    // lex the file named on the command line, or stream from stdin
+    Parser parser;
+    if (!files.isEmpty()) {
+      parser = new Parser(ParallelLexer.tokenize(map(Path.of(files.get(0)))));
+    } else {
+      parser = new Parser(new Lexer(Channels.newChannel(System.in)));
+    }
 
-    // compile
-    Parser parser = new Parser(text);
-    ImmutableList<String> code = parser.parse();
+    // compile, writing to stdout as the code is generated
+    Peephole peephole = new Peephole();
+    FileChannel out = new FileOutputStream(FileDescriptor.out).getChannel();
+    try {
+      parser.parse(optimizations, peephole, new ChannelSink(out));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    if (peepholeStats) {
+      printStats(peephole.stats());
+    }
+  }
+
+  private static boolean parseFlag(String arg, Set<Optimization> optimizations) {
+    try {
+      return Optimization.parseFlag(arg, optimizations);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+      return false;
+    }
+  }
+
+  private static void printStats(Map<Peephole.Rule, Integer> stats) {
+    stats.forEach((rule, count) -> System.err.printf("%s: %d%n", rule, count));
+  }
 
-    // write to stdout
-    code.forEach(line -> System.out.println(line));
+  private static CharSequence map(Path path) throws IOException {
+    // The mapping stays valid after the channel is closed.
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      return new ByteCharSequence(buffer);
+    }
   }
 }
@@ -0,0 +1,11 @@
+package com.plasstech.lang.ssl;
+
+public class StringConstToken extends ConstToken {
+  public StringConstToken(String value) {
+    super(value, VarType.STR);
+  }
+
+  public String value() {
+    return stringValue;
+  }
+}
@@ -18,4 +18,60 @@ public enum Symbol {
   Symbol(String s) {
     this.value = s;
   }
+
+  // Indexed by the (first) character. Two-character symbols must all start with different
+  // characters, so a single slot per character is enough.
+  private static final Symbol[] ONE_CHAR = new Symbol[128];
+  private static final Symbol[] TWO_CHAR = new Symbol[128];
+
+  static {
+    for (Symbol symbol : values()) {
+      Symbol[] table = symbol.value.length() == 1 ? ONE_CHAR : TWO_CHAR;
+      char first = symbol.value.charAt(0);
+      if (table[first] != null) {
+        throw new IllegalStateException("Symbol table collision for " + symbol.value);
+      }
+      table[first] = symbol;
+    }
+  }
+
+  /** Returns the one-character symbol for c, or null if there is none. */
+  public static Symbol of(char c) {
+    return c < 128 ? ONE_CHAR[c] : null;
+  }
+
+  /** Returns the two-character symbol spelled by first and second, or null if there is none. */
+  public static Symbol of(char first, char second) {
+    if (first >= 128) {
+      return null;
+    }
+    Symbol symbol = TWO_CHAR[first];
+    if (symbol != null && symbol.value.charAt(1) == second) {
+      return symbol;
+    }
+    return null;
+  }
+
+  /**
+   * Returns the comparison that is true exactly when this one is false, or null if this is not a
+   * comparison. For floats too: each pair is compiled to complementary comisd flag conditions.
+   */
+  public Symbol negated() {
+    switch (this) {
+      case EQEQ:
+        return NEQ;
+      case NEQ:
+        return EQEQ;
+      case LT:
+        return GEQ;
+      case GEQ:
+        return LT;
+      case GT:
+        return LEQ;
+      case LEQ:
+        return GT;
+      default:
+        return null;
+    }
+  }
 }
@@ -0,0 +1,110 @@
+package com.plasstech.lang.ssl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A packed sequence of tokens, stored in parallel primitive arrays instead of Token objects.
+ * Offsets refer to the lexer's source text, but tokens carry their own values so the text is not
+ * needed to read them back. The payload depends on the token type:
+ *
+ * <ul>
+ * <li>KEYWORD: the Keyword ordinal
+ * <li>SYMBOL: the Symbol ordinal
+ * <li>VAR: the variable name character
+ * <li>CONST: the int value for INT, the double bits for FLOAT, the {@link #string} index for STR
+ * <li>EOF: unused
+ * </ul>
+ */
+public class TokenStream {
+  private static final TokenType[] TOKEN_TYPES = TokenType.values();
+  private static final VarType[] VAR_TYPES = VarType.values();
+
+  private byte[] types;
+  private byte[] varTypes;
+  private int[] starts;
+  private int[] lengths;
+  private long[] payloads;
+  private int size;
+  private final List<String> strings = new ArrayList<>();
+
+  public TokenStream() {
+    this(256);
+  }
+
+  public TokenStream(int capacity) {
+    types = new byte[capacity];
+    varTypes = new byte[capacity];
+    starts = new int[capacity];
+    lengths = new int[capacity];
+    payloads = new long[capacity];
+  }
+
+  /** Empties the stream, keeping its arrays for reuse. */
+  public void clear() {
+    size = 0;
+    strings.clear();
+  }
+
+  int addString(String value) {
+    strings.add(value);
+    return strings.size() - 1;
+  }
+
+  void add(TokenType type, VarType varType, int start, int length, long payload) {
+    if (size == types.length) {
+      int capacity = Math.max(16, size * 2);
+      types = Arrays.copyOf(types, capacity);
+      varTypes = Arrays.copyOf(varTypes, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+      payloads = Arrays.copyOf(payloads, capacity);
+    }
+    types[size] = (byte) type.ordinal();
+    varTypes[size] = (byte) varType.ordinal();
+    starts[size] = start;
+    lengths[size] = length;
+    payloads[size] = payload;
+    size++;
+  }
+
+  /** Appends a copy of the token at the given index of another stream. */
+  void add(TokenStream other, int index) {
+    long payload = other.payload(index);
+    if (other.type(index) == TokenType.CONST && other.varType(index) == VarType.STR) {
+      payload = addString(other.string(payload));
+    }
+    add(other.type(index), other.varType(index), other.start(index), other.length(index),
+        payload);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public TokenType type(int index) {
+    return TOKEN_TYPES[types[index]];
+  }
+
+  public VarType varType(int index) {
+    return VAR_TYPES[varTypes[index]];
+  }
+
+  public int start(int index) {
+    return starts[index];
+  }
+
+  public int length(int index) {
+    return lengths[index];
+  }
+
+  public long payload(int index) {
+    return payloads[index];
+  }
+
+  /** Returns the string constant with the given payload. */
+  public String string(long payload) {
+    return strings.get((int) payload);
+  }
+}
@@ -0,0 +1,109 @@
+package com.plasstech.lang.ssl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchCompilerTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void compilesEachFileAsIfAlone() throws IOException {
+    Path root = folder.getRoot().toPath();
+    Files.createDirectories(root.resolve("sub"));
+    for (int i = 0; i < 20; ++i) {
+      write(root.resolve((i % 2 == 0 ? "" : "sub/") + "p" + i + ".ssl"), program(i));
+    }
+    Files.writeString(root.resolve("notes.txt"), "not a program");
+
+    Map<Path, String> failures =
+        new BatchCompiler(Optimization.ALL, 4).compile(List.of(root));
+
+    assertThat(failures).isEmpty();
+    for (int i = 0; i < 20; ++i) {
+      Path output = root.resolve((i % 2 == 0 ? "" : "sub/") + "p" + i + ".asm");
+      String expected = String.join("\n", new Parser(program(i)).parse(Optimization.ALL)) + "\n";
+      assertThat(Files.readString(output, StandardCharsets.ISO_8859_1)).isEqualTo(expected);
+    }
+    assertThat(Files.exists(root.resolve("notes.asm"))).isFalse();
+  }
+
+  @Test
+  public void reportsFailuresAndCompilesTheRest() throws IOException {
+    Path good = folder.getRoot().toPath().resolve("good.ssl");
+    Path bad = folder.getRoot().toPath().resolve("bad.ssl");
+    write(good, program(1));
+    write(bad, "for i = 1.5 to 3 endfor");
+
+    Map<Path, String> failures =
+        new BatchCompiler(Optimization.ALL, 2).compile(List.of(good, bad));
+
+    assertThat(failures).containsExactly(bad, "FOR start condition must be integer");
+    assertThat(Files.exists(BatchCompiler.output(good))).isTrue();
+    assertThat(Files.exists(BatchCompiler.output(bad))).isFalse();
+  }
+
+  @Test
+  public void reportsUnreadableFilesAndCompilesTheRest() throws IOException {
+    Path first = folder.getRoot().toPath().resolve("first.ssl");
+    Path missing = folder.getRoot().toPath().resolve("missing.ssl");
+    Path last = folder.getRoot().toPath().resolve("last.ssl");
+    write(first, program(1));
+    write(last, program(2));
+
+    Map<Path, String> failures =
+        new BatchCompiler(Optimization.ALL, 1).compile(List.of(first, missing, last));
+
+    assertThat(failures.keySet()).containsExactly(missing);
+    assertThat(failures.get(missing)).contains("NoSuchFileException");
+    assertThat(Files.exists(BatchCompiler.output(first))).isTrue();
+    assertThat(Files.exists(BatchCompiler.output(last))).isTrue();
+  }
+
+  @Test
+  public void replacesOutputFromTheCacheByRenaming() throws IOException {
+    Path root = folder.getRoot().toPath();
+    Path file = root.resolve("p.ssl");
+    write(file, program(1));
+    CompileCache cache = new CompileCache(root.resolve("cache"), 1 << 20);
+    new BatchCompiler(Optimization.ALL, 1, cache).compile(List.of(file));
+    Path output = BatchCompiler.output(file);
+    String expected = Files.readString(output, StandardCharsets.ISO_8859_1);
+    write(output, "stale");
+    // A link to the old file still sees it, unless the new code was written in place.
+    Path link = Files.createLink(root.resolve("link.asm"), output);
+
+    Map<Path, String> failures =
+        new BatchCompiler(Optimization.ALL, 1, cache).compile(List.of(file));
+
+    assertThat(failures).isEmpty();
+    assertThat(Files.readString(output, StandardCharsets.ISO_8859_1)).isEqualTo(expected);
+    assertThat(Files.readString(link, StandardCharsets.ISO_8859_1)).isEqualTo("stale");
+    assertThat(Files.exists(root.resolve("p.asm.tmp"))).isFalse();
+  }
+
+  @Test
+  public void output() {
+    assertThat(BatchCompiler.output(Path.of("a", "b.ssl")).toString())
+        .isEqualTo(Path.of("a", "b.asm").toString());
+    assertThat(BatchCompiler.output(Path.of("b")).toString()).isEqualTo("b.asm");
+  }
+
+  private static String program(int i) {
+    return String.format("j = %d for i = 0 to %d if i > 2 then j = j * i else j = j + 1 endif "
+        + "endfor println j", i, i + 3);
+  }
+
+  private static void write(Path path, String text) throws IOException {
+    Files.writeString(path, text, StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,51 @@
+package com.plasstech.lang.ssl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class BufferedOutputTest {
+  private static final String PROGRAM = "j = 0 - 2147483647 j = j - 1 println j k = 2147483647 "
+      + "println k println 0 o = \"oh\" a = 0.1 for i = 0 to 40 j = j + 715827 "
+      + "print j print \" \" print i print \" \" print a print \" \" print o print i < 20 "
+      + "print \" \" println 2.5 a = a * 1.5 endfor";
+
+  @Test
+  public void printsTheSame() {
+    String expected = X64Emulator.run(new Parser(PROGRAM).parse(Optimization.NONE));
+    ImmutableList<String> code = compile(PROGRAM);
+    assertThat(code).doesNotContain("  call printf");
+    assertThat(X64Emulator.run(code)).isEqualTo(expected);
+  }
+
+  @Test
+  public void printsTheSameUnbuffered() {
+    String expected = X64Emulator.run(new Parser(PROGRAM).parse(Optimization.NONE));
+    assertThat(X64Emulator.run(compile(PROGRAM), ImmutableMap.of("SSL_UNBUFFERED", "1")))
+        .isEqualTo(expected);
+  }
+
+  @Test
+  public void writesOutWhenFull() {
+    String program = "for i = 0 to 20000 println \"a line of text\" endfor";
+    String output = X64Emulator.run(compile(program));
+    assertThat(output.length()).isGreaterThan(OutputRuntime.BUFFER_SIZE);
+    assertThat(output).isEqualTo("a line of text\n".repeat(20000));
+  }
+
+  @Test
+  public void onlyWhenPrinting() {
+    assertThat(compile("i = 1")).doesNotContain("section .bss");
+    ImmutableList<String> code = compile("println \"hi\"");
+    assertThat(code).contains("ssl_append_string:");
+    assertThat(code).doesNotContain("ssl_append_int:");
+    assertThat(code).doesNotContain("ssl_append_float:");
+  }
+
+  private static ImmutableList<String> compile(String program) {
+    return new Parser(program).parse(Optimization.ALL);
+  }
+}
@@ -0,0 +1,71 @@
+package com.plasstech.lang.ssl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class ChannelSinkTest {
+  @Test
+  public void writesEachLineThenSeparator() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ChannelSink sink = new ChannelSink(Channels.newChannel(out), "\n");
+    sink.add("main:");
+    sink.add("  mov EAX, 1");
+    assertThat(out.size()).isEqualTo(0);
+    sink.finish();
+    assertThat(out.toString(StandardCharsets.ISO_8859_1)).isEqualTo("main:\n  mov EAX, 1\n");
+  }
+
+  @Test
+  public void writesLinesLargerThanItsBuffer() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ChannelSink sink = new ChannelSink(Channels.newChannel(out), "\r\n");
+    List<String> lines = new ArrayList<>();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 5; ++i) {
+      String line = String.valueOf((char) ('a' + i)).repeat(700_000);
+      lines.add(line);
+      expected.append(line).append("\r\n");
+    }
+    lines.forEach(sink::add);
+    sink.finish();
+    assertThat(out.toString(StandardCharsets.ISO_8859_1)).isEqualTo(expected.toString());
+  }
+
+  @Test
+  public void parserStreamsTheSameCode() {
+    String program = "j = 1 for i = 1 to 10 j = j * i if j > 100 then println j endif endfor "
+        + "a = 1.5 println a s = \"hi\" println s";
+    for (Set<Optimization> optimizations : ImmutableList.of(Optimization.ALL, Optimization.NONE)) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new Parser(program)
+          .parse(optimizations, new Peephole(), new ChannelSink(Channels.newChannel(out)));
+      assertThat(out.toByteArray())
+          .isEqualTo(CompileCache.text(new Parser(program).parse(optimizations)));
+    }
+  }
+
+  @Test
+  public void keepsTheBytesOfStringConstants() {
+    // Sources are read as ISO-8859-1, so any byte in a string is written back as it was.
+    byte[] source = "s = \"caf\u00e9\" println s".getBytes(StandardCharsets.ISO_8859_1);
+    for (Parser parser : ImmutableList.of(
+        new Parser(ParallelLexer.tokenize(new ByteCharSequence(ByteBuffer.wrap(source)))),
+        new Parser(new Lexer(Channels.newChannel(new ByteArrayInputStream(source)))))) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      parser.parse(Optimization.ALL, new Peephole(), new ChannelSink(Channels.newChannel(out)));
+      assertThat(out.toString(StandardCharsets.ISO_8859_1)).contains("\"caf\u00e9\"");
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package com.plasstech.lang.ssl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class CommonSubexpressionEliminatorTest {
+
+  @Test
+  public void reusesComputedValues() {
+    assertThat(eliminate("k = i + j m = j + i println i + j"))
+        .isEqualTo("k = i + j\nm = k\nPRINTLN k\n");
+  }
+
+  @Test
+  public void reusesFloatValues() {
+    assertThat(eliminate("c = a * b d = a * b println d"))
+        .isEqualTo("c = a * b\nd = c\nPRINTLN c\n");
+  }
+
+  @Test
+  public void propagatesCopies() {
+    assertThat(eliminate("j = k m = j + 1 println j"))
+        .isEqualTo("j = k\nm = k + 1\nPRINTLN k\n");
+  }
+
+  @Test
+  public void dropsCopiesOfTheSameValue() {
+    assertThat(eliminate("j = k k = j println k")).isEqualTo("j = k\nPRINTLN k\n");
+  }
+
+  @Test
+  public void assignmentsKillValues() {
+    assertThat(eliminate("k = i + j i = 1 m = i + j println m"))
+        .isEqualTo("k = i + j\ni = 1\nm = i + j\nPRINTLN m\n");
+    assertThat(eliminate("j = k k = 2 println j")).isEqualTo("j = k\nk = 2\nPRINTLN j\n");
+  }
+
+  @Test
+  public void startsOverAfterLabels() {
+    assertThat(eliminate("k = i + j if k > 1 then i = 2 endif m = i + j println m"))
+        .endsWith("else_N:\nm = i + j\nPRINTLN m\n");
+    assertThat(eliminate("k = i + j for n = 1 to 3 m = i + j println m endfor"))
+        .contains("startFor_N:\nm = i + j\n");
+  }
+
+  @Test
+  public void generatedCodeMatches() {
+    String program = "i = 3 j = 4 a = 0.0 / 0.0 for n = 0 to 20 "
+        + "k = i + j m = j + i print k * m print \" \" println i + j "
+        + "b = a * 2.5 c = a * 2.5 print b print \" \" println c "
+        + "j = k i = j + n l = j println l a = a + 1.0 endfor";
+    String expected = X64Emulator.run(new Parser(program).parse(Optimization.NONE));
+    assertThat(X64Emulator.run(new Parser(program).parse(Optimization.ALL)))
+        .isEqualTo(expected);
+  }
+
+  private static String eliminate(String program) {
+    Ir ir = new Parser(program).parseIr();
+    CommonSubexpressionEliminator.eliminate(ir);
+    return ir.toString().replaceAll("(startFor|endFor|else|endIf)_\\d+", "$1_N");
+  }
+}
@@ -0,0 +1,68 @@
+package com.plasstech.lang.ssl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompileCacheTest {
+  private static final byte[] SOURCE = "println 1.5 println \"hi\" println 3".getBytes(
+      StandardCharsets.ISO_8859_1);
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void getReturnsWhatWasPut() throws IOException {
+    CompileCache cache = new CompileCache(folder.getRoot().toPath(), 1 << 20);
+    String key = CompileCache.key(SOURCE, Optimization.ALL);
+    assertThat(cache.get(key)).isNull();
+
+    byte[] code = CompileCache.text(new Parser(new String(SOURCE, StandardCharsets.ISO_8859_1))
+        .parse(Optimization.ALL));
+    cache.put(key, code);
+
+    assertThat(cache.get(key)).isEqualTo(code);
+    // Another compiler sharing the directory sees it too.
+    assertThat(new CompileCache(folder.getRoot().toPath(), 1 << 20).get(key)).isEqualTo(code);
+  }
+
+  @Test
+  public void keyDependsOnSourceAndOptimizations() {
+    Set<Optimization> noPeephole = EnumSet.copyOf(Optimization.ALL);
+    noPeephole.remove(Optimization.PEEPHOLE);
+
+    String key = CompileCache.key(SOURCE, Optimization.ALL);
+    assertThat(CompileCache.key(SOURCE.clone(), EnumSet.copyOf(Optimization.ALL)))
+        .isEqualTo(key);
+    assertThat(CompileCache.key(SOURCE, noPeephole)).isNotEqualTo(key);
+    assertThat(CompileCache.key("println 2".getBytes(StandardCharsets.ISO_8859_1),
+        Optimization.ALL)).isNotEqualTo(key);
+  }
+
+  @Test
+  public void removesLeastRecentlyUsed() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    CompileCache cache = new CompileCache(directory, 100);
+    cache.put("a", new byte[40]);
+    cache.put("b", new byte[40]);
+    Files.setLastModifiedTime(directory.resolve("a.asm"), FileTime.fromMillis(2000));
+    Files.setLastModifiedTime(directory.resolve("b.asm"), FileTime.fromMillis(1000));
+    // Using b makes a the least recently used.
+    assertThat(cache.get("b")).isNotNull();
+
+    cache.put("c", new byte[40]);
+
+    assertThat(cache.get("a")).isNull();
+    assertThat(cache.get("b")).isNotNull();
+    assertThat(cache.get("c")).isNotNull();
+  }
+}
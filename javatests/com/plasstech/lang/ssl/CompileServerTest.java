@@ -0,0 +1,149 @@
+package com.plasstech.lang.ssl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class CompileServerTest {
+  private static final String PROGRAM = "j = 1 for i = 1 to 10 j = j * i endfor println j";
+
+  @Test
+  public void compilesLikeParser() throws Exception {
+    try (Server server = new Server(2, 2)) {
+      assertThat(server.compile(PROGRAM, ImmutableList.of())).isEqualTo(expected(PROGRAM));
+      assertThat(server.compile(PROGRAM, ImmutableList.of("-O0", "-fno-peephole")))
+          .isEqualTo(String.join("\n", new Parser(PROGRAM).parse(Optimization.NONE)) + "\n");
+    }
+  }
+
+  @Test
+  public void reportsErrors() throws Exception {
+    try (Server server = new Server(1, 1)) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ByteArrayOutputStream err = new ByteArrayOutputStream();
+      assertThat(CompileClient.compile(server.socket, ImmutableList.of(),
+          input("for i = 1.5 to 3 endfor"), out, err)).isFalse();
+      assertThat(out.size()).isEqualTo(0);
+      assertThat(err.toString(StandardCharsets.ISO_8859_1))
+          .isEqualTo("FOR start condition must be integer\n");
+
+      err.reset();
+      assertThat(CompileClient.compile(server.socket, ImmutableList.of("-fno-such-thing"),
+          input(PROGRAM), out, err)).isFalse();
+      assertThat(err.toString(StandardCharsets.ISO_8859_1))
+          .isEqualTo("Unknown optimization such-thing\n");
+
+      // Still serving.
+      assertThat(server.compile(PROGRAM, ImmutableList.of())).isEqualTo(expected(PROGRAM));
+    }
+  }
+
+  @Test
+  public void rejectsLargeRequests() throws Exception {
+    String program = "println 1\n".repeat(10_000);
+    try (Server server = new Server(1, 1, 1000)) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ByteArrayOutputStream err = new ByteArrayOutputStream();
+      assertThat(CompileClient.compile(server.socket, ImmutableList.of(), input(program), out, err))
+          .isFalse();
+      assertThat(err.toString(StandardCharsets.ISO_8859_1))
+          .isEqualTo("Request larger than 1000 bytes\n");
+
+      // A request of exactly the limit is fine.
+      String small = "println 1\n".repeat(99) + "println 1";
+      assertThat(small.length() + 1).isEqualTo(1000);
+      assertThat(server.compile(small, ImmutableList.of())).isEqualTo(expected(small));
+    }
+  }
+
+  @Test
+  public void moreClientsThanTheQueueHolds() throws Exception {
+    ExecutorService clients = Executors.newFixedThreadPool(16);
+    try (Server server = new Server(2, 1)) {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 64; ++i) {
+        String program = "println " + i;
+        results.add(clients.submit(() -> server.compile(program, ImmutableList.of())));
+      }
+      for (int i = 0; i < results.size(); ++i) {
+        assertThat(results.get(i).get()).isEqualTo(expected("println " + i));
+      }
+    } finally {
+      clients.shutdown();
+    }
+  }
+
+  @Test
+  public void largeProgram() throws Exception {
+    String program = "j = 0 for i = 1 to 10 j = j + i endfor println j\n".repeat(2000);
+    try (Server server = new Server(1, 1)) {
+      assertThat(server.compile(program, ImmutableList.of())).isEqualTo(expected(program));
+    }
+  }
+
+  private static String expected(String program) {
+    return String.join("\n", new Parser(program).parse(Optimization.ALL)) + "\n";
+  }
+
+  private static ByteArrayInputStream input(String program) {
+    return new ByteArrayInputStream(program.getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  /** A server on a new socket, serving on another thread. */
+  private static class Server implements AutoCloseable {
+    final Path directory;
+    final Path socket;
+    final CompileServer server;
+    final Thread thread;
+
+    Server(int threads, int queueSize) throws IOException {
+      this(threads, queueSize, 64 << 20);
+    }
+
+    Server(int threads, int queueSize, int maxRequestSize) throws IOException {
+      directory = Files.createTempDirectory("sslc");
+      socket = directory.resolve("socket");
+      server = new CompileServer(socket, threads, queueSize, maxRequestSize);
+      thread = new Thread(() -> {
+        try {
+          server.serve();
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+      thread.start();
+    }
+
+    String compile(String program, List<String> flags) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ByteArrayOutputStream err = new ByteArrayOutputStream();
+      if (!CompileClient.compile(socket, flags, input(program), out, err)) {
+        throw new IllegalStateException(err.toString(StandardCharsets.ISO_8859_1));
+      }
+      return out.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public void close() throws IOException {
+      server.close();
+      Uninterruptibles.joinUninterruptibly(thread);
+      assertThat(Files.exists(socket)).isFalse();
+      Files.delete(directory);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package com.plasstech.lang.ssl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class ConstantFolderTest {
+
+  @Test
+  public void foldsArithmetic() {
+    assertThat(fold("i = 1 + 1 println i")).isEqualTo("i = 2\nPRINTLN 2\n");
+  }
+
+  @Test
+  public void variablesStartAtZero() {
+    assertThat(fold("m = m + 1 println m")).isEqualTo("m = 1\nPRINTLN 1\n");
+  }
+
+  @Test
+  public void wrapsAround() {
+    assertThat(fold("n = 2147483647 + 1 println n"))
+        .isEqualTo("n = -2147483648\nPRINTLN -2147483648\n");
+  }
+
+  @Test
+  public void truncatesTowardZero() {
+    assertThat(fold("i = 0 - 7 j = i / 2 println j"))
+        .isEqualTo("i = -7\nj = -3\nPRINTLN -3\n");
+  }
+
+  @Test
+  public void leavesFaultingDivisionForRunTime() {
+    assertThat(fold("i = 1 / 0")).isEqualTo("i = 1 / 0\n");
+    assertThat(fold("i = 0 - 2147483647 i = i - 1 l = 0 - 1 j = i / l"))
+        .endsWith("j = -2147483648 / -1\n");
+  }
+
+  @Test
+  public void leavesNaNForRunTime() {
+    assertThat(fold("h = 0.0 / 0.0 println h")).isEqualTo("h = 0.0 / 0.0\nPRINTLN h\n");
+  }
+
+  @Test
+  public void foldsFloats() {
+    assertThat(fold("a = 1.5 b = a * 2.0 println b")).isEqualTo("a = 1.5\nb = 3.0\nPRINTLN 3.0\n");
+  }
+
+  @Test
+  public void foldsComparison() {
+    assertThat(fold("println 1.5 < 2.0")).isEqualTo("PRINTLN true\n");
+  }
+
+  @Test
+  public void dropsBranchesKnownToBeFalse() {
+    assertThat(fold("if 3 >= 4 then println 1 else println 2 endif")).isEqualTo("PRINTLN 2\n");
+  }
+
+  @Test
+  public void dropsBranchesKnownToBeTrue() {
+    assertThat(fold("i = 3 if i < 4 then println 1 else println 2 endif"))
+        .isEqualTo("i = 3\nPRINTLN 1\n");
+  }
+
+  @Test
+  public void dropsLoopsThatNeverRun() {
+    assertThat(fold("for k = 10 to 0 n = n + 1 endfor println n"))
+        .isEqualTo("k = 10\nPRINTLN 0\n");
+  }
+
+  @Test
+  public void keepsLoopVariables() {
+    String ir = fold(LexerTest.FACT);
+    // The guard before the loop is known to be false; the test at the bottom is not.
+    assertThat(ir).doesNotContain("BRANCH i >=");
+    assertThat(ir).contains("BRANCH i < 11");
+    assertThat(ir).contains("j = j * i");
+    assertThat(ir).endsWith("PRINTLN j\n");
+  }
+
+  @Test
+  public void propagatesOnlyWhatHoldsOnEveryPath() {
+    String ir = fold("for j = 0 to 3 "
+        + "i = 1 if j < 2 then i = 2 endif println i "
+        + "k = 5 if j < 3 then k = 5 endif println k "
+        + "endfor");
+    assertThat(ir).contains("PRINTLN i");
+    assertThat(ir).contains("PRINTLN 5");
+  }
+
+  private static String fold(String program) {
+    Ir ir = new Parser(program).parseIr();
+    ConstantFolder.fold(ir);
+    return ir.toString();
+  }
+}
@@ -0,0 +1,66 @@
+package com.plasstech.lang.ssl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class DeadStoreEliminatorTest {
+
+  @Test
+  public void removesStoresThatAreNotRead() {
+    assertThat(eliminate("i = 1 j = 2 i = 3 println i")).isEqualTo("i = 3\nPRINTLN i\n");
+  }
+
+  @Test
+  public void removesChainsOfDeadStores() {
+    assertThat(eliminate("i = 1 j = i + 1 k = j * 2 println i")).isEqualTo("i = 1\nPRINTLN i\n");
+  }
+
+  @Test
+  public void keepsStoresReadOnSomePath() {
+    assertThat(eliminate("i = 1 if j > 0 then i = 2 endif println i"))
+        .startsWith("i = 1\nBRANCH j <= 0");
+  }
+
+  @Test
+  public void keepsStoresReadByTheNextIteration() {
+    assertThat(eliminate("for i = 0 to 3 j = k k = k + 1 endfor println j"))
+        .contains("k = k + 1\n");
+  }
+
+  @Test
+  public void keepsDivisionsThatMayFault() {
+    assertThat(eliminate("j = 0 i = 1 / j")).isEqualTo("j = 0\ni = 1 / j\n");
+    assertThat(eliminate("i = j / 2 k = j / 0")).isEqualTo("k = j / 0\n");
+  }
+
+  @Test
+  public void dataHasOnlyWhatIsUsed() {
+    ImmutableList<String> code = new Parser(
+        "a = 2.5 b = 3.5 o = \"unused\" p = \"used\" i = 1 if i > 2 then println a endif "
+            + "println b println p").parse(Optimization.ALL);
+    // Less the tables of the output runtime.
+    ImmutableList<String> data =
+        code.subList(code.indexOf("section .data") + 1, code.indexOf("section .bss")).stream()
+            .filter(line -> !line.startsWith("  ssl_"))
+            .collect(ImmutableList.toImmutableList());
+    assertThat(data).containsExactly(
+        "  TEXT_0: db 10, \"used\", 10, 0", "  FLOAT_1: dq 3.5", "  FLOAT_FMT: db '%.16g', 0",
+        "  UNBUFFERED_NAME: db \"SSL_UNBUFFERED\", 0");
+  }
+
+  @Test
+  public void unoptimizedDataHasOnlyVariablesThatAreUsed() {
+    ImmutableList<String> code = new Parser("j = 2 println j").parse(Optimization.NONE);
+    ImmutableList<String> data = code.subList(code.indexOf("section .data") + 1, code.size());
+    assertThat(data).containsExactly("  INT_FMT: db '%d', 0", "  _j: dd 0");
+  }
+
+  private static String eliminate(String program) {
+    Ir ir = new Parser(program).parseIr();
+    DeadStoreEliminator.eliminate(ir);
+    return ir.toString().replaceAll("(startFor|endFor|else|endIf)_\\d+", "$1_N");
+  }
+}
@@ -0,0 +1,77 @@
+package com.plasstech.lang.ssl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class IfConverterTest {
+
+  @Test
+  public void convertsIfElse() {
+    assertThat(convert("if k < l then m = k else m = l endif println m"))
+        .isEqualTo("COMPARE k, l\nm = < ? k : l\nPRINTLN m\n");
+  }
+
+  @Test
+  public void convertsIfWithoutElse() {
+    assertThat(convert("if k > 100 then k = 100 endif println k"))
+        .isEqualTo("COMPARE k, 100\nk = > ? 100 : k\nPRINTLN k\n");
+  }
+
+  @Test
+  public void keepsLongerArms() {
+    assertThat(convert("if k < l then m = k n = l endif println m"))
+        .startsWith("BRANCH k >= l");
+    assertThat(convert("if k < l then m = k + 1 endif println m")).startsWith("BRANCH k >= l");
+    assertThat(convert("if k < l then println k endif")).startsWith("BRANCH k >= l");
+    assertThat(convert("if k < l then m = k else n = l endif println m println n"))
+        .startsWith("BRANCH k >= l");
+    assertThat(convert("if k < l then o = \"a\" else o = \"b\" endif println o"))
+        .startsWith("BRANCH k >= l");
+  }
+
+  @Test
+  public void usesCmov() {
+    ImmutableList<String> code = compile(
+        "for i = 0 to 10 if i < 5 then m = i else m = 5 endif println m endfor");
+    ImmutableList<String> main = code.subList(0, code.indexOf("  extern exit"));
+    assertThat(main.stream().filter(line -> line.startsWith("  j")).count()).isEqualTo(1);
+    assertThat(code).contains("  cmovl ESI, EBX");
+  }
+
+  @Test
+  public void usesMinAndMaxForFloats() {
+    assertThat(compile("a = 0.0 / 0.0 if a > 2.5 then b = a else b = 2.5 endif println b"))
+        .contains("  maxsd XMM7, [FLOAT_1]");
+    assertThat(compile("a = 0.0 / 0.0 if 2.5 > a then b = a else b = 2.5 endif println b"))
+        .contains("  minsd XMM7, [FLOAT_1]");
+  }
+
+  @Test
+  public void generatedCodeMatchesBranches() {
+    String program = "a = 0.0 / 0.0 b = 2.5 j = 1 for i = 0 to 50 "
+        + "j = j * 1103515245 j = j + 12345 k = j / 65536 "
+        + "if k < i then m = k else m = i endif print m print \" \" "
+        + "if k >= 100 then m = 100 endif print m print \" \" "
+        + "if i > 25 then a = b endif "
+        + "if a > b then c = a else c = b endif print c print \" \" "
+        + "if b > a then d = a else d = b endif print d print \" \" "
+        + "if a < b then e = a else e = 1.5 endif print e print \" \" "
+        + "if a == b then f = 1.5 endif println f "
+        + "b = b + 0.25 endfor";
+    String expected = X64Emulator.run(new Parser(program).parse(Optimization.NONE));
+    assertThat(X64Emulator.run(compile(program))).isEqualTo(expected);
+  }
+
+  private static String convert(String program) {
+    Ir ir = new Parser(program).parseIr();
+    IfConverter.convert(ir);
+    return ir.toString().replaceAll("(else|endIf)_\\d+", "$1_N");
+  }
+
+  private static ImmutableList<String> compile(String program) {
+    return new Parser(program).parse(Optimization.ALL);
+  }
+}
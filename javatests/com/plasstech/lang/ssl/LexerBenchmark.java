@@ -0,0 +1,69 @@
+package com.plasstech.lang.ssl;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the word-at-a-time (SWAR) whitespace, comment and string scanning of ByteCharSequence
+ * with the scalar character loop, on source shaped like our generated programs.
+ *
+ * <p>Run with {@code bazel run //javatests/com/plasstech/lang/ssl:LexerBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+  @Param({"4", "32", "256"})
+  public int width;
+
+  private ByteCharSequence bytes;
+  private CharSequence scalar;
+  private final TokenStream tokens = new TokenStream();
+
+  @Setup
+  public void setup() {
+    String indent = " ".repeat(width);
+    String comment = "#" + "-".repeat(width) + "\n";
+    String string = "x".repeat(width);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; ++i) {
+      sb.append(comment);
+      sb.append(indent).append("s = \"").append(string).append("\"\n");
+      sb.append(indent).append("i = i + 1\n");
+      sb.append(indent).append("println s\n");
+    }
+    byte[] source = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    bytes = new ByteCharSequence(ByteBuffer.wrap(source));
+    // Hides the ByteCharSequence from the lexer, so it uses the scalar loops.
+    scalar = CharBuffer.wrap(bytes);
+  }
+
+  @Benchmark
+  public TokenStream swar() {
+    tokens.clear();
+    return new Lexer(bytes).tokenize(tokens);
+  }
+
+  @Benchmark
+  public TokenStream scalar() {
+    tokens.clear();
+    return new Lexer(scalar).tokenize(tokens);
+  }
+}
@@ -1,8 +1,13 @@
 package com.plasstech.lang.ssl;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
 
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -29,7 +34,7 @@ public class LexerTest {
     Lexer lexer = new Lexer("1");
     Token token = lexer.nextToken();
     assertThat(token.type).isEqualTo(TokenType.CONST);
-    ConstToken<Integer> constToken = (ConstToken<Integer>) token;
+    IntConstToken constToken = (IntConstToken) token;
     assertThat(constToken.value()).isEqualTo(1);
     assertThat(constToken.varType()).isEqualTo(VarType.INT);
   }
@@ -39,7 +44,7 @@ public class LexerTest {
     Lexer lexer = new Lexer("1\n");
     Token token = lexer.nextToken();
     assertThat(token.type).isEqualTo(TokenType.CONST);
-    ConstToken<Integer> constToken = (ConstToken<Integer>) token;
+    IntConstToken constToken = (IntConstToken) token;
     assertThat(constToken.value()).isEqualTo(1);
     assertThat(constToken.varType()).isEqualTo(VarType.INT);
   }
@@ -49,17 +54,48 @@ public class LexerTest {
     Lexer lexer = new Lexer("1.123");
     Token token = lexer.nextToken();
     assertThat(token.type).isEqualTo(TokenType.CONST);
-    ConstToken<Float> constToken = (ConstToken<Float>) token;
-    assertThat(constToken.value()).isEqualTo(1.123F);
+    FloatConstToken constToken = (FloatConstToken) token;
+    assertThat(constToken.value()).isEqualTo(1.123);
     assertThat(constToken.varType()).isEqualTo(VarType.FLOAT);
   }
 
+  @Test
+  public void nextTokenFloatConstantKeepsDoublePrecision() {
+    String[] constants = {
+        "3.141592653589793", "0.1", "1.", "0.000000000000000000000001", "123456789.123456789",
+        "9007199254740993.0", "1.7976931348623157", "2.2250738585072014", "00001.50000"};
+    for (String constant : constants) {
+      FloatConstToken token = (FloatConstToken) new Lexer(constant).nextToken();
+      assertThat(token.value()).isEqualTo(Double.parseDouble(constant));
+    }
+  }
+
+  @Test
+  public void nextTokenFloatConstantMatchesParseDouble() {
+    Random random = new Random(1234);
+    for (int i = 0; i < 10000; ++i) {
+      String constant = random.nextInt(100000) + "." + Math.abs(random.nextLong());
+      FloatConstToken token = (FloatConstToken) new Lexer(constant).nextToken();
+      assertThat(token.value()).isEqualTo(Double.parseDouble(constant));
+    }
+  }
+
+  @Test
+  public void nextTokenIntConstantLimits() {
+    IntConstToken token = (IntConstToken) new Lexer("2147483647").nextToken();
+    assertThat(token.value()).isEqualTo(Integer.MAX_VALUE);
+    Lexer lexer = new Lexer("2147483648");
+    assertThrows(IllegalStateException.class, () -> lexer.nextToken());
+    Lexer huge = new Lexer("123456789012345678901234567890");
+    assertThrows(IllegalStateException.class, () -> huge.nextToken());
+  }
+
   @Test
   public void nextTokenStringConstant() {
     Lexer lexer = new Lexer("\"hi\"");
     Token token = lexer.nextToken();
     assertThat(token.type).isEqualTo(TokenType.CONST);
-    ConstToken<String> constToken = (ConstToken<String>) token;
+    StringConstToken constToken = (StringConstToken) token;
     assertThat(constToken.value()).isEqualTo("hi");
     assertThat(constToken.varType()).isEqualTo(VarType.STR);
   }
@@ -94,6 +130,52 @@ public class LexerTest {
     }
   }
 
+  @Test
+  public void nextTokenKeywordsIgnoreCase() {
+    Lexer lexer = new Lexer("If ThEn PRINTLN endFor");
+    assertThat(((KeywordToken) lexer.nextToken()).keyword()).isEqualTo(Keyword.IF);
+    assertThat(((KeywordToken) lexer.nextToken()).keyword()).isEqualTo(Keyword.THEN);
+    assertThat(((KeywordToken) lexer.nextToken()).keyword()).isEqualTo(Keyword.PRINTLN);
+    assertThat(((KeywordToken) lexer.nextToken()).keyword()).isEqualTo(Keyword.ENDFOR);
+  }
+
+  @Test
+  public void nextTokenUnknownKeyword() {
+    Lexer lexer = new Lexer("iff");
+    assertThrows(IllegalStateException.class, () -> lexer.nextToken());
+  }
+
+  @Test
+  public void nextTokenUnknownSymbol() {
+    Lexer lexer = new Lexer("!");
+    assertThrows(IllegalStateException.class, () -> lexer.nextToken());
+  }
+
+  @Test
+  public void keywordLookup() {
+    for (Keyword kw : Keyword.values()) {
+      String text = "(" + kw.name().toLowerCase() + ")";
+      assertThat(Keyword.lookup(text, 1, text.length() - 1)).isEqualTo(kw);
+    }
+    assertThat(Keyword.lookup("printx", 0, 6)).isNull();
+    assertThat(Keyword.lookup("tox", 0, 3)).isNull();
+    assertThat(Keyword.lookup("endforever", 0, 10)).isNull();
+  }
+
+  @Test
+  public void symbolLookup() {
+    for (Symbol symbol : Symbol.values()) {
+      if (symbol.value.length() == 1) {
+        assertThat(Symbol.of(symbol.value.charAt(0))).isEqualTo(symbol);
+      } else {
+        assertThat(Symbol.of(symbol.value.charAt(0), symbol.value.charAt(1))).isEqualTo(symbol);
+      }
+    }
+    assertThat(Symbol.of('!')).isNull();
+    assertThat(Symbol.of('<', '>')).isNull();
+    assertThat(Symbol.of('\u00e9')).isNull();
+  }
+
   @Test
   public void nextTokenSkipsComments() {
     Lexer lexer = new Lexer("\"hi\" #comment\n1");
@@ -107,6 +189,142 @@ public class LexerTest {
     assertThat(token.type).isEqualTo(TokenType.EOF);
   }
 
+  @Test
+  public void nextTokenByteBuffer() {
+    ByteBuffer buffer = ByteBuffer.wrap("i=\"hi\"".getBytes(StandardCharsets.US_ASCII));
+    Lexer lexer = new Lexer(new ByteCharSequence(buffer));
+    assertThat(lexer.nextToken().type).isEqualTo(TokenType.VAR);
+    assertThat(lexer.nextToken().type).isEqualTo(TokenType.SYMBOL);
+    Token token = lexer.nextToken();
+    assertThat(token.type).isEqualTo(TokenType.CONST);
+    assertThat(token.stringValue).isEqualTo("hi");
+    assertThat(lexer.nextToken().type).isEqualTo(TokenType.EOF);
+  }
+
+  @Test
+  public void tokenize() {
+    String text = "for i=1 to 2.5 println \"hi\" endfor";
+    TokenStream tokens = new Lexer(text).tokenize(new TokenStream(1));
+    assertThat(tokens.size()).isEqualTo(10);
+
+    assertThat(tokens.type(0)).isEqualTo(TokenType.KEYWORD);
+    assertThat(tokens.payload(0)).isEqualTo(Keyword.FOR.ordinal());
+
+    assertThat(tokens.type(1)).isEqualTo(TokenType.VAR);
+    assertThat(tokens.varType(1)).isEqualTo(VarType.INT);
+    assertThat(tokens.start(1)).isEqualTo(4);
+    assertThat(tokens.length(1)).isEqualTo(1);
+
+    assertThat(tokens.type(2)).isEqualTo(TokenType.SYMBOL);
+    assertThat(tokens.payload(2)).isEqualTo(Symbol.EQ.ordinal());
+
+    assertThat(tokens.type(3)).isEqualTo(TokenType.CONST);
+    assertThat(tokens.varType(3)).isEqualTo(VarType.INT);
+    assertThat(tokens.payload(3)).isEqualTo(1);
+
+    assertThat(tokens.varType(5)).isEqualTo(VarType.FLOAT);
+    assertThat(Double.longBitsToDouble(tokens.payload(5))).isEqualTo(2.5);
+
+    assertThat(tokens.varType(7)).isEqualTo(VarType.STR);
+    assertThat(text.substring(tokens.start(7), tokens.start(7) + tokens.length(7)))
+        .isEqualTo("\"hi\"");
+
+    assertThat(tokens.type(9)).isEqualTo(TokenType.EOF);
+  }
+
+  @Test
+  public void tokenizeReusesStream() {
+    TokenStream tokens = new TokenStream();
+    new Lexer(FACT).tokenize(tokens);
+    int size = tokens.size();
+    tokens.clear();
+    new Lexer(FACT).tokenize(tokens);
+    assertThat(tokens.size()).isEqualTo(size);
+  }
+
+  @Test
+  public void streamingMatchesInMemory() {
+    String text = FACT + "# a comment that is longer than the buffer\n"
+        + "s=\"a string\nthat is also longer than the buffer\"\n"
+        + "println s  # trailing comment";
+    TokenStream expected = new Lexer(text).tokenize(new TokenStream());
+    for (int bufferSize = 1; bufferSize < 20; ++bufferSize) {
+      Lexer lexer = new Lexer(new StringReader(text), bufferSize);
+      TokenStream actual = lexer.tokenize(new TokenStream());
+      assertThat(actual.size()).isEqualTo(expected.size());
+      for (int i = 0; i < expected.size(); ++i) {
+        assertThat(actual.type(i)).isEqualTo(expected.type(i));
+        assertThat(actual.start(i)).isEqualTo(expected.start(i));
+        assertThat(actual.length(i)).isEqualTo(expected.length(i));
+        if (expected.varType(i) == VarType.STR && expected.type(i) == TokenType.CONST) {
+          assertThat(actual.string(actual.payload(i)))
+              .isEqualTo(expected.string(expected.payload(i)));
+        } else {
+          assertThat(actual.payload(i)).isEqualTo(expected.payload(i));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void streamingStringAcrossBuffers() {
+    Lexer lexer = new Lexer(new StringReader("  \"hello there\" 123"), 4);
+    Token token = lexer.nextToken();
+    assertThat(token.stringValue).isEqualTo("hello there");
+    token = lexer.nextToken();
+    assertThat(token.stringValue).isEqualTo("123");
+    assertThat(lexer.nextToken().type).isEqualTo(TokenType.EOF);
+  }
+
+  @Test
+  public void streamingUnterminatedString() {
+    Lexer lexer = new Lexer(new StringReader("\"hello there"), 4);
+    assertThrows(IllegalStateException.class, () -> lexer.nextToken());
+  }
+
+  @Test
+  public void bytesMatchScalar() {
+    String body = "i=1\n\t\t        # comment \"quoted\"\r\n"
+        + "s = \"a long string literal with a # inside\"\n"
+        + "                                println s\n"
+        + "#\n##\ns=\"\"\n# comment\u0000 after nul\n";
+    // Shift the text so that every alignment of the 8-byte words is exercised.
+    for (int pad = 0; pad < 8; ++pad) {
+      String text = " ".repeat(pad) + body;
+      TokenStream expected = new Lexer(text).tokenize(new TokenStream());
+      ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+      TokenStream actual = new Lexer(new ByteCharSequence(buffer)).tokenize(new TokenStream());
+      assertThat(actual.size()).isEqualTo(expected.size());
+      for (int i = 0; i < expected.size(); ++i) {
+        assertThat(actual.type(i)).isEqualTo(expected.type(i));
+        assertThat(actual.start(i)).isEqualTo(expected.start(i));
+        assertThat(actual.length(i)).isEqualTo(expected.length(i));
+      }
+    }
+  }
+
+  @Test
+  public void byteCharSequenceScans() {
+    String text = "        \t\r\n  x  # comment here\n\"string with spaces\"";
+    ByteCharSequence bytes = new ByteCharSequence(
+        ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1)));
+    for (int i = 0; i < text.length(); ++i) {
+      int expectedNonBlank = i;
+      while (expectedNonBlank < text.length()
+          && " \t\r\n".indexOf(text.charAt(expectedNonBlank)) >= 0) {
+        expectedNonBlank++;
+      }
+      assertThat(bytes.skipWhitespace(i)).isEqualTo(expectedNonBlank);
+      int expectedLineEnd = i;
+      while (expectedLineEnd < text.length() && "\r\n".indexOf(text.charAt(expectedLineEnd)) < 0) {
+        expectedLineEnd++;
+      }
+      assertThat(bytes.indexOfLineEnd(i)).isEqualTo(expectedLineEnd);
+      int expectedQuote = text.indexOf('"', i);
+      assertThat(bytes.indexOfQuote(i)).isEqualTo(expectedQuote < 0 ? text.length() : expectedQuote);
+    }
+  }
+
   private static final List<Symbol> EXPECTED_SYMBOLS = ImmutableList.of(
       Symbol.LT,
       Symbol.GT,
@@ -0,0 +1,96 @@
+package com.plasstech.lang.ssl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Checks the number routines against printf, over edge cases and random values. */
+public class OutputRuntimeTest {
+  private static final int RANDOM_VALUES = 3000;
+
+  @Test
+  public void intsMatchPrintf() {
+    List<Long> values = new ArrayList<>();
+    for (long edge : new long[] {0, 1, 9, 10, 99, 100, 101, 999, 1000, 12345, 999999999,
+        1000000000, Integer.MAX_VALUE}) {
+      values.add(edge);
+      values.add(-edge);
+    }
+    values.add((long) Integer.MIN_VALUE);
+    Random random = new Random(20);
+    for (int i = 0; i < RANDOM_VALUES; ++i) {
+      values.add((long) (random.nextInt() >> random.nextInt(32)));
+    }
+    assertMatchesPrintf(values, "'%d'", OutputRuntime.APPEND_INT, "ECX");
+  }
+
+  @Test
+  public void floatsMatchPrintf() {
+    List<Double> doubles = new ArrayList<>(List.of(0.0, -0.0, 1.0, -1.0, 0.1, 0.5, 1.5, 2.5,
+        1.0 / 3, 2.0 / 3, -2.0 / 3, Math.PI, Math.E, 0.0001, 0.00012345, 0.00001, 1.2345e-5,
+        1e-12, 9.9999999999999995e-13, 1e15, 1e16, 9999999999999998.0, 9.999999999999999e15,
+        0x1p52, 0x1p53, 0x1p53 + 2, 123456789012345680.0, 1125899906842624.5,
+        1125899906842625.5, 0.30000000000000004, Double.MIN_VALUE, Double.MIN_NORMAL,
+        Double.MAX_VALUE, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN));
+    for (int exponent = -20; exponent <= 20; ++exponent) {
+      double power = Double.parseDouble("1e" + exponent);
+      doubles.add(power);
+      doubles.add(Math.nextUp(power));
+      doubles.add(Math.nextDown(power));
+      doubles.add(-power * 7);
+    }
+    Random random = new Random(20);
+    for (int i = 0; i < RANDOM_VALUES; ++i) {
+      doubles.add(random.nextDouble() * Math.pow(10, random.nextInt(34) - 16));
+      doubles.add(Double.longBitsToDouble(random.nextLong()));
+    }
+    List<Long> values = new ArrayList<>();
+    for (double value : doubles) {
+      values.add(Double.doubleToRawLongBits(value));
+    }
+    assertMatchesPrintf(values, "'%.16g'", OutputRuntime.APPEND_FLOAT, "RCX");
+  }
+
+  private static void assertMatchesPrintf(
+      List<Long> values, String format, String routine, String register) {
+    List<String> printf = new ArrayList<>(List.of("global main", "section .text", "main:"));
+    List<String> runtime = new ArrayList<>(printf);
+    runtime.addAll(OutputRuntime.startup());
+    for (long value : values) {
+      printf.add("mov RCX, FORMAT");
+      printf.add(String.format("mov RDX, 0x%x", value));
+      printf.add("sub RSP, 0x28");
+      printf.add("call printf");
+      printf.add("add RSP, 0x28");
+      runtime.add(String.format("mov %s, 0x%x", register, register.startsWith("E")
+          ? value & 0xffffffffL : value));
+      runtime.add("call " + routine);
+      runtime.add("mov RCX, NEWLINE");
+      runtime.add("call " + OutputRuntime.APPEND_STRING);
+    }
+    runtime.add("call " + OutputRuntime.FLUSH);
+    printf.add("call exit");
+    runtime.add("call exit");
+    runtime.addAll(OutputRuntime.text(true, true));
+    printf.add("section .data");
+    printf.add("FORMAT: db " + format + ", 10, 0");
+    runtime.add("section .data");
+    runtime.add("FLOAT_FMT: db '%.16g', 0");
+    runtime.add("NEWLINE: db 10, 0");
+    runtime.addAll(OutputRuntime.data(true, true));
+    runtime.add("section .bss");
+    runtime.addAll(OutputRuntime.bss());
+
+    String[] expected = X64Emulator.run(printf).split("\n");
+    String[] actual = X64Emulator.run(runtime).split("\n");
+    assertThat(actual).hasLength(values.size());
+    for (int i = 0; i < values.size(); ++i) {
+      assertThat(String.format("0x%x: %s", values.get(i), actual[i]))
+          .isEqualTo(String.format("0x%x: %s", values.get(i), expected[i]));
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package com.plasstech.lang.ssl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class ParallelLexerTest {
+  private static final String PROGRAM = LexerTest.FACT
+      + "# a comment with a \" quote\n"
+      + "s=\"a string\nwith\n\nseveral lines\n\"\n"
+      + "println s\n"
+      + "t=\"\n\"\n"
+      + "if 3 >= 4 then println 1.5 else println \"#not a comment\" endif\n"
+      + "u=\"one\ntwo\" v=\"three\nfour\"\n"
+      + "println 2\n";
+
+  private final ForkJoinPool pool = new ForkJoinPool(4);
+
+  @Test
+  public void matchesSequentialForAllChunkLengths() {
+    TokenStream expected = new Lexer(PROGRAM).tokenize(new TokenStream());
+    for (int chunkLength = 1; chunkLength <= PROGRAM.length(); ++chunkLength) {
+      TokenStream actual = ParallelLexer.tokenize(PROGRAM, pool, chunkLength);
+      assertSameTokens(actual, expected);
+    }
+  }
+
+  @Test
+  public void byteCharSequence() {
+    ByteCharSequence bytes = new ByteCharSequence(
+        ByteBuffer.wrap(PROGRAM.getBytes(StandardCharsets.ISO_8859_1)));
+    TokenStream expected = new Lexer(PROGRAM).tokenize(new TokenStream());
+    assertSameTokens(ParallelLexer.tokenize(bytes, pool, 10), expected);
+  }
+
+  @Test
+  public void empty() {
+    TokenStream tokens = ParallelLexer.tokenize("", pool, 10);
+    assertThat(tokens.size()).isEqualTo(1);
+    assertThat(tokens.type(0)).isEqualTo(TokenType.EOF);
+  }
+
+  @Test
+  public void unterminatedString() {
+    assertThrows(IllegalStateException.class,
+        () -> ParallelLexer.tokenize("i=1\ns=\"abc\ndef\n\n", pool, 4));
+  }
+
+  @Test
+  public void unknownSymbolInLaterChunk() {
+    assertThrows(IllegalStateException.class,
+        () -> ParallelLexer.tokenize("i=1\nj=2\nk=3 ! 4\nl=5\n", pool, 4));
+  }
+
+  @Test
+  public void parses() {
+    TokenStream tokens = ParallelLexer.tokenize(LexerTest.FACT, pool, 8);
+    assertThat(new Parser(tokens).parse().stream().anyMatch(line -> line.startsWith("  imul")))
+        .isTrue();
+  }
+
+  private static void assertSameTokens(TokenStream actual, TokenStream expected) {
+    assertThat(actual.size()).isEqualTo(expected.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      assertThat(actual.type(i)).isEqualTo(expected.type(i));
+      assertThat(actual.varType(i)).isEqualTo(expected.varType(i));
+      assertThat(actual.start(i)).isEqualTo(expected.start(i));
+      assertThat(actual.length(i)).isEqualTo(expected.length(i));
+      if (expected.type(i) == TokenType.CONST && expected.varType(i) == VarType.STR) {
+        assertThat(actual.string(actual.payload(i)))
+            .isEqualTo(expected.string(expected.payload(i)));
+      } else {
+        assertThat(actual.payload(i)).isEqualTo(expected.payload(i));
+      }
+    }
+  }
+}
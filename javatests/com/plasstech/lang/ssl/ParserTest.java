@@ -2,6 +2,9 @@ package com.plasstech.lang.ssl;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import java.io.StringReader;
+import java.util.EnumSet;
+
 import org.junit.Test;
 
 import com.google.common.base.Joiner;
@@ -18,6 +21,9 @@ public class ParserTest {
   @Test
   public void println() {
     ImmutableList<String> code = compile("println 3");
+    assertThat(code).contains("  call ssl_append_string");
+    assertThat(code).contains("  TEXT_0: db \"3\", 10, 0");
+    code = new Parser("println 3").parse(Optimization.NONE);
     assertThat(code).contains("  extern printf");
     assertThat(code).contains("  extern putchar");
   }
@@ -25,8 +31,235 @@ public class ParserTest {
   @Test
   public void fact() {
     ImmutableList<String> code = compile(LexerTest.FACT);
-    assertThat(code).contains("  extern printf");
-    assertThat(code).contains("  extern putchar");
+    assertThat(code).contains("  call ssl_append_int");
+    assertThat(code).contains("  TEXT_0: db 10, 0");
+  }
+
+  @Test
+  public void labelsDoNotDependOnEarlierCompilations() {
+    String program = "for i = 0 to 3 if i > 1 then println i endif endfor";
+    ImmutableList<String> first = compile(program);
+    assertThat(compile(program)).isEqualTo(first);
+    assertThat(first).contains("startFor_0:");
+  }
+
+  @Test
+  public void floatConstantsSharedByValue() {
+    ImmutableList<String> code = compile("a=1.0 b=1.00 c=1.000 println a println b println c");
+    assertThat(code.stream().filter(line -> line.contains(": dq 1.0")).count()).isEqualTo(1);
+  }
+
+  @Test
+  public void floatConstantsKeepDoublePrecision() {
+    ImmutableList<String> code = compile("a=3.141592653589793 println a");
+    assertThat(code.stream().anyMatch(line -> line.endsWith(": dq 3.141592653589793"))).isTrue();
+  }
+
+  @Test
+  public void streaming() {
+    ImmutableList<String> code = new Parser(new Lexer(new StringReader(LexerTest.FACT), 8)).parse();
+    assertThat(code).hasSize(compile(LexerTest.FACT).size());
+    assertThat(code.stream().anyMatch(line -> line.startsWith("  imul"))).isTrue();
+  }
+
+  @Test
+  public void factIr() {
+    Ir ir = new Parser(LexerTest.FACT).parseIr();
+    assertThat(normalizeLabels(ir.toString())).isEqualTo(
+        "j = 1\n"
+            + "n = 10\n"
+            + "i = 1\n"
+            + "forEnd_N = n + 1\n"
+            + "BRANCH i >= forEnd_N, endFor_N\n"
+            + "startFor_N:\n"
+            + "j = j * i\n"
+            + "INC i\n"
+            + "BRANCH i < forEnd_N, startFor_N\n"
+            + "endFor_N:\n"
+            + "PRINTLN j\n");
+  }
+
+  @Test
+  public void forBoundWrittenInBodyIsReevaluated() {
+    Ir ir = new Parser("for k = 0 to l + 1 l = l - 2 endfor").parseIr();
+    assertThat(normalizeLabels(ir.toString())).isEqualTo(
+        "k = 0\n"
+            + "t0 = l + 1\n"
+            + "BRANCH k >= t0, endFor_N\n"
+            + "startFor_N:\n"
+            + "l = l - 2\n"
+            + "INC k\n"
+            + "t1 = l + 1\n"
+            + "BRANCH k < t1, startFor_N\n"
+            + "endFor_N:\n");
+  }
+
+  @Test
+  public void forBoundThatIsAVariableIsReadEachTime() {
+    Ir ir = new Parser("for k = 0 to l l = l - 2 endfor").parseIr();
+    assertThat(normalizeLabels(ir.toString())).endsWith("BRANCH k < l, startFor_N\nendFor_N:\n");
+  }
+
+  @Test
+  public void loopsThatAreNotNestedShareHiddenBounds() {
+    Ir ir = new Parser(
+        "for i = 0 to j + 1 for k = 0 to j + 2 endfor endfor for m = 0 to j + 3 endfor").parseIr();
+    assertThat(ir.toString()).contains("forEnd_0 = j + 1\n");
+    assertThat(ir.toString()).contains("forEnd_1 = j + 2\n");
+    assertThat(ir.toString()).contains("forEnd_0 = j + 3\n");
+    assertThat(ir.varCount()).isEqualTo(6);
+  }
+
+  @Test
+  public void manyLoops() {
+    // Passes keep what they know about each variable per block, so with a hidden bound per loop
+    // this would take memory quadratic in the number of loops.
+    String program = "j = 5\n" + "for i = 0 to j + 1 k = k + i endfor\n".repeat(10000);
+    assertThat(new Parser(program).parseIr().varCount()).isEqualTo(4);
+    assertThat(compile(program)).isNotEmpty();
+  }
+
+  @Test
+  public void factControlFlowGraph() {
+    ControlFlowGraph cfg = ControlFlowGraph.of(new Parser(LexerTest.FACT).parseIr());
+    assertThat(cfg.size()).isEqualTo(3);
+    // straight-line prefix with the loop guard, loop body, after the loop
+    assertThat(cfg.successors(0)).asList().containsExactly(1, 2);
+    assertThat(cfg.successors(1)).asList().containsExactly(2, 1);
+    assertThat(cfg.successors(2)).isEmpty();
+    assertThat(cfg.predecessors(1)).asList().containsExactly(0, 1);
+    assertThat(cfg.start(1)).isEqualTo(5);
+    assertThat(cfg.end(1)).isEqualTo(9);
+  }
+
+  @Test
+  public void ifElseControlFlowGraph() {
+    ControlFlowGraph cfg = ControlFlowGraph.of(
+        new Parser("if 1 < 2 then println 1 else println 2 endif println 3").parseIr());
+    assertThat(cfg.size()).isEqualTo(4);
+    assertThat(cfg.successors(0)).asList().containsExactly(1, 2);
+    assertThat(cfg.successors(1)).asList().containsExactly(3);
+    assertThat(cfg.successors(2)).asList().containsExactly(3);
+    assertThat(cfg.predecessors(3)).asList().containsExactly(1, 2);
+  }
+
+  @Test
+  public void ifBranchesOnTheComparison() {
+    Ir ir = new Parser("a = 1.5 if a < 2.0 then println 1 endif").parseIr();
+    assertThat(normalizeLabels(ir.toString())).isEqualTo(
+        "a = 1.5\n"
+            + "BRANCH a >= 2.0, else_N\n"
+            + "PRINTLN 1\n"
+            + "else_N:\n");
+    ImmutableList<String> code = new Parser("i = 1 if i == 2 then println 1 endif")
+        .parse(EnumSet.of(Optimization.REGISTER_ALLOCATION));
+    assertThat(normalizeLabels(Joiner.on("\n").join(code))).contains("  cmp EBX, 2\n  jnz else_N");
+    assertThat(code.stream().noneMatch(line -> line.startsWith("  set"))).isTrue();
+  }
+
+  @Test
+  public void printedComparisonIsMaterialized() {
+    ImmutableList<String> code =
+        new Parser("i = 1 println i < 2").parse(EnumSet.of(Optimization.REGISTER_ALLOCATION));
+    assertThat(code).contains("  setl AL");
+  }
+
+  @Test
+  public void factCode() {
+    ImmutableList<String> code = new Parser(LexerTest.FACT).parse(Optimization.NONE);
+    ImmutableList<String> text = code.subList(0, code.indexOf("section .data"));
+    assertThat(normalizeLabels(Joiner.on("\n").join(text))).isEqualTo(
+        Joiner.on("\n").join(
+            "; java",
+            "global main",
+            "section .text",
+            "main:",
+            "  mov DWORD [_j], 1",
+            "  mov DWORD [_n], 10",
+            "  mov DWORD [_i], 1",
+            "  mov EAX, [_n]",
+            "  add EAX, 1",
+            "  mov [_forEnd_N], EAX",
+            "  mov ECX, [_i]",
+            "  cmp ECX, [_forEnd_N]",
+            "  jge endFor_N",
+            "  align 16",
+            "startFor_N:",
+            "  mov EAX, [_j]",
+            "  imul EAX, [_i]",
+            "  mov [_j], EAX",
+            "  inc DWORD [_i]",
+            "  mov ECX, [_i]",
+            "  cmp ECX, [_forEnd_N]",
+            "  jl startFor_N",
+            "endFor_N:",
+            "  mov RCX, INT_FMT",
+            "  mov EDX, [_j]",
+            "  sub RSP, 0x20",
+            "  extern printf",
+            "  call printf",
+            "  extern putchar",
+            "  mov rcx, 10",
+            "  call putchar",
+            "  add RSP, 0x20",
+            "  extern exit",
+            "  call exit\n"));
+    assertThat(normalizeLabels(Joiner.on("\n").join(
+            code.subList(code.indexOf("section .data") + 1, code.size()))).split("\n"))
+        .asList()
+        .containsExactly(
+            "  _i: dd 0", "  _j: dd 0", "  _n: dd 0", "  _forEnd_N: dd 0", "  INT_FMT: db '%d', 0");
+  }
+
+  @Test
+  public void factCodeInRegisters() {
+    ImmutableList<String> code =
+        new Parser(LexerTest.FACT).parse(EnumSet.of(Optimization.REGISTER_ALLOCATION));
+    ImmutableList<String> text = code.subList(0, code.indexOf("section .data"));
+    assertThat(normalizeLabels(Joiner.on("\n").join(text))).isEqualTo(
+        Joiner.on("\n").join(
+            "; java",
+            "global main",
+            "section .text",
+            "main:",
+            "  mov EBX, 1",
+            "  mov ESI, 10",
+            "  mov EDI, 1",
+            "  mov R12D, ESI",
+            "  add R12D, 1",
+            "  cmp EDI, R12D",
+            "  jge endFor_N",
+            "  align 16",
+            "startFor_N:",
+            "  imul EBX, EDI",
+            "  inc EDI",
+            "  cmp EDI, R12D",
+            "  jl startFor_N",
+            "endFor_N:",
+            "  mov RCX, INT_FMT",
+            "  mov EDX, EBX",
+            "  sub RSP, 0x20",
+            "  extern printf",
+            "  call printf",
+            "  extern putchar",
+            "  mov rcx, 10",
+            "  call putchar",
+            "  add RSP, 0x20",
+            "  extern exit",
+            "  call exit\n"));
+    assertThat(code.subList(code.indexOf("section .data") + 1, code.size()))
+        .containsExactly("  INT_FMT: db '%d', 0");
+  }
+
+  @Test
+  public void registersReadBeforeWrittenStartAtZero() {
+    ImmutableList<String> code = compile("for i = 0 to 3 a = a + 1.5 m = m + i endfor println a");
+    assertThat(code).contains("  xorpd XMM6, XMM6");
+    assertThat(code).contains("  xor ESI, ESI");
+  }
+
+  private static String normalizeLabels(String code) {
+    return code.replaceAll("(startFor|endFor|forEnd|else|endIf|FLOAT|CONST)_\\d+", "$1_N");
   }
 
   private ImmutableList<String> compile(String program) {
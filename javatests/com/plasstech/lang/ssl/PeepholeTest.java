@@ -0,0 +1,219 @@
+package com.plasstech.lang.ssl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.plasstech.lang.ssl.Peephole.Rule;
+
+public class PeepholeTest {
+
+  @Test
+  public void redundantLoad() {
+    Peephole peephole = new Peephole();
+    ImmutableList<String> code = peephole.optimize(text(
+        "  mov [_i], EAX",
+        "  mov EAX, [_i]",
+        "  inc EAX"));
+    assertThat(code).containsExactlyElementsIn(text(
+        "  mov [_i], EAX",
+        "  inc EAX")).inOrder();
+    assertThat(peephole.stats()).containsEntry(Rule.REDUNDANT_LOAD, 1);
+  }
+
+  @Test
+  public void deadMove() {
+    Peephole peephole = new Peephole();
+    ImmutableList<String> code = peephole.optimize(text(
+        "  movq XMM7, [FLOAT_0]",
+        "  movq XMM7, [FLOAT_1]",
+        "  mov ESI, 1",
+        "  mov ESI, 3"));
+    assertThat(code).containsExactlyElementsIn(text(
+        "  movq XMM7, [FLOAT_1]",
+        "  mov ESI, 3")).inOrder();
+    assertThat(peephole.stats()).containsEntry(Rule.DEAD_MOVE, 2);
+  }
+
+  @Test
+  public void deadMoveKeepsMovesThatAreRead() {
+    ImmutableList<String> code = text(
+        "  mov EAX, ESI",
+        "  mov EAX, [RAX]",
+        "  mov [_i], EAX",
+        "  mov [_i], ECX",
+        "  mov AL, 1",
+        "  mov AL, 2");
+    assertThat(new Peephole().optimize(code)).isEqualTo(code);
+  }
+
+  @Test
+  public void jumpToNext() {
+    Peephole peephole = new Peephole();
+    ImmutableList<String> code = peephole.optimize(text(
+        "  jmp endIf_1",
+        "endIf_1:",
+        "  jge startFor_2",
+        "  align 16",
+        "startFor_2:",
+        "  jmp else_3",
+        "endIf_4:",
+        "else_3:"));
+    assertThat(code).containsExactlyElementsIn(text(
+        "endIf_1:",
+        "  align 16",
+        "startFor_2:",
+        "  jmp else_3",
+        "endIf_4:",
+        "else_3:")).inOrder();
+    assertThat(peephole.stats()).containsEntry(Rule.JUMP_TO_NEXT, 2);
+  }
+
+  @Test
+  public void branchOnSetcc() {
+    Peephole peephole = new Peephole();
+    ImmutableList<String> code = peephole.optimize(text(
+        "  comisd XMM6, XMM7",
+        "  setb AL",
+        "  cmp AL, 0",
+        "  jz else_0"));
+    assertThat(code).containsExactlyElementsIn(text(
+        "  comisd XMM6, XMM7",
+        "  jae else_0")).inOrder();
+    assertThat(peephole.stats()).containsEntry(Rule.BRANCH_ON_SETCC, 1);
+  }
+
+  @Test
+  public void cmovOnSetcc() {
+    Peephole peephole = new Peephole();
+    ImmutableList<String> code = peephole.optimize(text(
+        "  cmp ESI, EDI",
+        "  setle AL",
+        "  cmp AL, 1",
+        "  mov RCX, FALSE",
+        "  mov RDX, TRUE",
+        "  cmovz RCX, RDX"));
+    assertThat(code).containsExactlyElementsIn(text(
+        "  cmp ESI, EDI",
+        "  mov RCX, FALSE",
+        "  mov RDX, TRUE",
+        "  cmovle RCX, RDX")).inOrder();
+    assertThat(peephole.stats()).containsEntry(Rule.CMOV_ON_SETCC, 1);
+  }
+
+  @Test
+  public void stackAdjust() {
+    Peephole peephole = new Peephole();
+    ImmutableList<String> code = peephole.optimize(text(
+        "  sub RSP, 0x20",
+        "  extern printf",
+        "  call printf",
+        "  add RSP, 0x20",
+        "  mov RCX, INT_FMT",
+        "  mov EDX, ESI",
+        "  sub RSP, 0x20",
+        "  extern printf",
+        "  call printf",
+        "  add RSP, 0x20"));
+    assertThat(code).containsExactlyElementsIn(text(
+        "  sub RSP, 0x20",
+        "  extern printf",
+        "  call printf",
+        "  mov RCX, INT_FMT",
+        "  mov EDX, ESI",
+        "  extern printf",
+        "  call printf",
+        "  add RSP, 0x20")).inOrder();
+    assertThat(peephole.stats()).containsEntry(Rule.STACK_ADJUST, 1);
+  }
+
+  @Test
+  public void stackAdjustStopsAtLabels() {
+    ImmutableList<String> code = text(
+        "  add RSP, 0x20",
+        "else_1:",
+        "  sub RSP, 0x20");
+    assertThat(new Peephole().optimize(code)).isEqualTo(code);
+  }
+
+  @Test
+  public void onlyEnabledRulesRun() {
+    ImmutableList<String> code = text(
+        "  mov ESI, 1",
+        "  mov ESI, 3",
+        "  jmp endIf_1",
+        "endIf_1:");
+    Peephole peephole = new Peephole(EnumSet.of(Rule.JUMP_TO_NEXT));
+    assertThat(peephole.optimize(code)).containsExactlyElementsIn(text(
+        "  mov ESI, 1",
+        "  mov ESI, 3",
+        "endIf_1:")).inOrder();
+    assertThat(peephole.stats()).containsEntry(Rule.DEAD_MOVE, 0);
+    assertThat(new Peephole(EnumSet.noneOf(Rule.class)).optimize(code)).isEqualTo(code);
+  }
+
+  @Test
+  public void dataIsUntouched() {
+    ImmutableList<String> code = ImmutableList.of(
+        "section .data",
+        "  mov EAX, 1",
+        "  mov EAX, 2");
+    assertThat(new Peephole().optimize(code)).isEqualTo(code);
+  }
+
+  @Test
+  public void sinkHoldsOnlyLinesSinceLabelOrCall() {
+    List<String> out = new ArrayList<>();
+    CodeSink sink = new Peephole().sink(out::add);
+    sink.add("section .text");
+    sink.add("  mov EAX, 1");
+    sink.add("  call printf");
+    assertThat(out).containsExactly("section .text", "  mov EAX, 1").inOrder();
+    sink.add("  jmp endIf_1");
+    sink.add("endIf_1:");
+    assertThat(out).containsExactly("section .text", "  mov EAX, 1", "  call printf").inOrder();
+    sink.add("  mov ECX, 2");
+    sink.finish();
+    assertThat(out).containsExactly(
+        "section .text", "  mov EAX, 1", "  call printf", "endIf_1:", "  mov ECX, 2").inOrder();
+  }
+
+  @Test
+  public void samplesPrintTheSame() throws IOException {
+    int rewrites = 0;
+    try (DirectoryStream<Path> samples = Files.newDirectoryStream(Path.of("samples"), "*.ssl")) {
+      for (Path sample : samples) {
+        String program = Files.readString(sample);
+        String expected = X64Emulator.run(new Parser(program).parse(Optimization.NONE));
+        Set<Optimization> withoutPeephole =
+            Sets.difference(Optimization.ALL, EnumSet.of(Optimization.PEEPHOLE));
+        for (Set<Optimization> others : ImmutableList.of(Optimization.NONE, withoutPeephole)) {
+          Peephole peephole = new Peephole();
+          ImmutableList<String> code = new Parser(program)
+              .parse(Sets.union(others, EnumSet.of(Optimization.PEEPHOLE)), peephole);
+          assertWithMessage("%s with %s", sample, others)
+              .that(X64Emulator.run(code)).isEqualTo(expected);
+          assertThat(code.size()).isAtMost(new Parser(program).parse(others).size());
+          rewrites += peephole.stats().values().stream().mapToInt(Integer::intValue).sum();
+        }
+      }
+    }
+    assertThat(rewrites).isGreaterThan(0);
+  }
+
+  private static ImmutableList<String> text(String... lines) {
+    return ImmutableList.<String>builder().add("section .text").add(lines).build();
+  }
+}
@@ -0,0 +1,60 @@
+package com.plasstech.lang.ssl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+public class PrintCoalescingTest {
+
+  @Test
+  public void oneCallForARun() {
+    ImmutableList<String> code =
+        compile("for i = 0 to 3 print \"i=\" print i print \" \" println 2.5 endfor");
+    assertThat(code.stream().filter(line -> line.equals("  call printf")).count()).isEqualTo(1);
+    assertThat(code).doesNotContain("  call putchar");
+    assertThat(code).contains("  FMT_0: db \"i=%d %.16g\", 10, 0");
+  }
+
+  @Test
+  public void constantsAreInTheFormat() {
+    ImmutableList<String> code = compile("print 12 print 1 < 2 println \"50%\"");
+    assertThat(code).contains("  FMT_0: db \"12true50%%\", 10, 0");
+  }
+
+  @Test
+  public void passesTheRestOfTheArgumentsOnTheStack() {
+    ImmutableList<String> code = compile(
+        "for i = 0 to 3 j = i * 3 print i print j print i print j print i println j endfor");
+    assertThat(code).containsAtLeast(
+        "  mov RCX, FMT_0", "  mov EDX, EBX", "  mov R8D, ESI", "  mov R9D, EBX",
+        "  sub RSP, 0x40", "  mov EAX, ESI", "  mov [RSP+0x20], RAX").inOrder();
+  }
+
+  @Test
+  public void boolTempsArePrintedAlone() {
+    ImmutableList<String> code = compile("for i = 0 to 3 println i < 2 endfor");
+    assertThat(code).contains("  call putchar");
+  }
+
+  @Test
+  public void generatedCodeMatches() {
+    String program = "a = 1.5 o = \"oh\" for i = 0 to 5 j = i * 7 p = o "
+        + "print \"i=\" print i print \" j=\" print j print \" a=\" print a print p println 2.25 "
+        + "println i * 3 print \" \" print j print \" \" println a "
+        + "println i < 2 print a print a print a print a print i print j print i println j "
+        + "a = a / 3.0 endfor println \"\"";
+    String expected = X64Emulator.run(new Parser(program).parse(Optimization.NONE));
+    assertThat(X64Emulator.run(compile(program))).isEqualTo(expected);
+  }
+
+  private static ImmutableList<String> compile(String program) {
+    // Buffered output does not call printf at all.
+    return new Parser(program).parse(
+        Sets.difference(Optimization.ALL, EnumSet.of(Optimization.BUFFERED_OUTPUT)));
+  }
+}
@@ -0,0 +1,94 @@
+package com.plasstech.lang.ssl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class RegisterAllocatorTest {
+
+  @Test
+  public void factKeepsEveryVariableInARegister() {
+    Ir ir = new Parser(LexerTest.FACT).parseIr();
+    RegisterAllocator allocator = RegisterAllocator.allocate(ir);
+    Register i = allocator.register(ir.var("i", VarType.INT));
+    Register j = allocator.register(ir.var("j", VarType.INT));
+    Register n = allocator.register(ir.var("n", VarType.INT));
+    assertThat(i).isNotNull();
+    assertThat(j).isNotNull();
+    assertThat(n).isNotNull();
+    // All three are live through the loop
+    assertThat(i).isNotEqualTo(j);
+    assertThat(i).isNotEqualTo(n);
+    assertThat(j).isNotEqualTo(n);
+    assertThat(allocator.isLiveOnEntry(ir.var("j", VarType.INT))).isFalse();
+  }
+
+  @Test
+  public void floatsGoToXmmRegisters() {
+    Ir ir = new Parser("a = 1.0 b = a * 2.0 println b").parseIr();
+    RegisterAllocator allocator = RegisterAllocator.allocate(ir);
+    assertThat(allocator.register(ir.var("a", VarType.FLOAT)).isXmm()).isTrue();
+    assertThat(allocator.register(ir.var("b", VarType.FLOAT)).isXmm()).isTrue();
+  }
+
+  @Test
+  public void disjointRangesShareARegister() {
+    Ir ir = new Parser("i = 1 println i j = 2 println j").parseIr();
+    RegisterAllocator allocator = RegisterAllocator.allocate(ir);
+    assertThat(allocator.register(ir.var("i", VarType.INT)))
+        .isEqualTo(allocator.register(ir.var("j", VarType.INT)));
+  }
+
+  @Test
+  public void rangeEndingWhereAnotherStartsDoesNotShare() {
+    Ir ir = new Parser("i = 1 j = i + 1 println j").parseIr();
+    RegisterAllocator allocator = RegisterAllocator.allocate(ir);
+    assertThat(allocator.register(ir.var("i", VarType.INT)))
+        .isNotEqualTo(allocator.register(ir.var("j", VarType.INT)));
+  }
+
+  @Test
+  public void readBeforeWrittenIsLiveOnEntry() {
+    Ir ir = new Parser("for i = 0 to 3 m = m + i endfor println m").parseIr();
+    RegisterAllocator allocator = RegisterAllocator.allocate(ir);
+    assertThat(allocator.isLiveOnEntry(ir.var("m", VarType.INT))).isTrue();
+    assertThat(allocator.isLiveOnEntry(ir.var("i", VarType.INT))).isFalse();
+  }
+
+  @Test
+  public void tooManyVariablesSpillToMemory() {
+    StringBuilder program = new StringBuilder();
+    String names = "ijklmnstuvwxyz";
+    for (char name : names.toCharArray()) {
+      program.append(String.format("%c = %s ", name, name <= 'n' ? "1" : "\"x\""));
+    }
+    for (char name : names.toCharArray()) {
+      program.append(String.format("println %c ", name));
+    }
+    Ir ir = new Parser(program.toString()).parseIr();
+    RegisterAllocator allocator = RegisterAllocator.allocate(ir);
+    int inRegisters = 0;
+    for (int var = 0; var < ir.varCount(); ++var) {
+      if (allocator.register(Operand.of(Operand.Kind.VAR, var)) != null) {
+        inRegisters++;
+      }
+    }
+    assertThat(inRegisters).isEqualTo(8);
+  }
+
+  @Test
+  public void loopCounterKeepsItsRegister() {
+    StringBuilder program = new StringBuilder("for k = 0 to 3 ");
+    String names = "stuvwxyz";
+    for (char name : names.toCharArray()) {
+      program.append(String.format("%c = \"x\" ", name));
+    }
+    for (char name : names.toCharArray()) {
+      program.append(String.format("println %c ", name));
+    }
+    program.append("endfor");
+    Ir ir = new Parser(program.toString()).parseIr();
+    RegisterAllocator allocator = RegisterAllocator.allocate(ir);
+    assertThat(allocator.register(ir.var("k", VarType.INT))).isNotNull();
+  }
+}
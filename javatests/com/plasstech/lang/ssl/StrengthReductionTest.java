@@ -0,0 +1,140 @@
+package com.plasstech.lang.ssl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class StrengthReductionTest {
+  private static final int[] DIVISORS = {
+    2, 3, 5, 6, 7, 10, 16, 100, 641, 1000000007, 1073741824, 2147483647,
+    -2, -3, -7, -8, -1000, -2147483647, Integer.MIN_VALUE
+  };
+
+  @Test
+  public void magicNumbers() {
+    // From Hacker's Delight, table 10-1
+    assertThat(DivisionMagic.of(3).multiplier).isEqualTo(0x55555556L);
+    assertThat(DivisionMagic.of(3).shift).isEqualTo(0);
+    assertThat(DivisionMagic.of(7).multiplier).isEqualTo(0x92492493L);
+    assertThat(DivisionMagic.of(7).shift).isEqualTo(2);
+    assertThat(DivisionMagic.of(10).multiplier).isEqualTo(0x66666667L);
+    assertThat(DivisionMagic.of(10).shift).isEqualTo(2);
+  }
+
+  @Test
+  public void divisionMatchesIdivOverTheIntRange() {
+    Random random = new Random(1234);
+    List<Integer> divisors = new ArrayList<>();
+    for (int d = 2; d <= 3000; ++d) {
+      divisors.add(d);
+      divisors.add(-d);
+    }
+    for (int i = 0; i < 3000; ++i) {
+      int d = random.nextInt();
+      if (d != 0 && d != -1) {
+        divisors.add(d);
+      }
+    }
+    divisors.add(Integer.MAX_VALUE);
+    divisors.add(Integer.MIN_VALUE);
+    divisors.add(Integer.MIN_VALUE + 1);
+    for (int d : divisors) {
+      List<Integer> dividends = new ArrayList<>(ImmutableList.of(
+          0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE + 1,
+          Integer.MAX_VALUE - 1, d, d + 1, d - 1, -d));
+      // Around multiples of the divisor at both ends of the range
+      int top = Integer.MAX_VALUE / d * d;
+      int bottom = Integer.MIN_VALUE / d * d;
+      for (int delta = -2; delta <= 2; ++delta) {
+        dividends.add(top + delta);
+        dividends.add(bottom + delta);
+      }
+      for (int i = 0; i < 300; ++i) {
+        dividends.add(random.nextInt());
+      }
+      for (int x : dividends) {
+        assertWithMessage("%s / %s", x, d).that(divide(x, d)).isEqualTo(x / d);
+      }
+    }
+  }
+
+  @Test
+  public void noIdivForConstantDivisors() {
+    ImmutableList<String> code =
+        compile("j=1 for i = 0 to 10 j = j * 3 k = j / 7 m = j / 8 println k println m endfor");
+    assertThat(code.stream().noneMatch(line -> line.contains("idiv"))).isTrue();
+    assertThat(code).contains("  sar EAX, 3");
+    assertThat(code).contains("  mov ECX, " + 0x92492493L);
+    assertThat(code).contains("  lea EBX, [RBX+RBX*2]");
+  }
+
+  @Test
+  public void divisionByZeroAndMinusOneStillFaults() {
+    ImmutableList<String> code = compile("j=1 k=0-1 for i = 0 to 10 j = j * 3 m = j / k endfor");
+    assertThat(code).contains("  idiv ECX");
+  }
+
+  @Test
+  public void multiplications() {
+    assertThat(compile("j=1 for i = 0 to 10 j = j * 8 endfor")).contains("  shl EBX, 3");
+    assertThat(compile("j=1 for i = 0 to 10 j = j * 40 endfor"))
+        .containsAtLeast("  lea EBX, [RBX+RBX*4]", "  shl EBX, 3").inOrder();
+    assertThat(compile("j=1 for i = 0 to 10 j = 2 * j endfor")).contains("  shl EBX, 1");
+    assertThat(compile("j=1 k=0-4 for i = 0 to 10 j = j * k endfor"))
+        .containsAtLeast("  shl EBX, 2", "  neg EBX").inOrder();
+    assertThat(compile("j=1 for i = 0 to 10 j = j * 7 endfor")).contains("  imul EBX, 7");
+  }
+
+  @Test
+  public void generatedCodeMatchesIdiv() {
+    StringBuilder program =
+        new StringBuilder("j = 1 for i = 0 to 200 j = j * 1103515245 j = j + 12345 ");
+    for (int d : DIVISORS) {
+      // Negative literals are written as differences, which fold back into constants.
+      if (d == Integer.MIN_VALUE) {
+        program.append("l = 0 - 2147483647 l = l - 1 ");
+      } else if (d < 0) {
+        program.append(String.format("l = 0 - %d ", -d));
+      } else {
+        program.append(String.format("l = %d ", d));
+      }
+      program.append("k = j / l print k print \" \" k = j * l print k print \" \" ");
+    }
+    program.append("println \"\" endfor");
+    String expected = X64Emulator.run(compile(program.toString(), Optimization.NONE));
+    assertThat(X64Emulator.run(compile(program.toString(), Optimization.ALL)))
+        .isEqualTo(expected);
+  }
+
+  /** Divides the way the generated code does. */
+  private static int divide(int x, int d) {
+    int magnitude = Math.abs(d);
+    int q;
+    if (Integer.bitCount(magnitude) == 1) {
+      int k = Integer.numberOfTrailingZeros(magnitude);
+      q = (x + ((x >> 31) >>> (32 - k))) >> k;
+    } else {
+      DivisionMagic magic = DivisionMagic.of(magnitude);
+      q = (int) (((long) x * magic.multiplier) >> (32 + magic.shift));
+      q += q >>> 31;
+    }
+    return d < 0 ? -q : q;
+  }
+
+  private static ImmutableList<String> compile(String program) {
+    return compile(program, Optimization.ALL);
+  }
+
+  private static ImmutableList<String> compile(
+      String program, Set<Optimization> optimizations) {
+    return new Parser(program).parse(optimizations);
+  }
+}
@@ -0,0 +1,1362 @@
+package com.plasstech.lang.ssl;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Runs the NASM the compiler generates, so tests can check that optimized code prints the same as
+ * unoptimized code. Supports the instructions and directives the code generator emits, and calls
+ * to printf, putchar, exit and a few other C library functions under the Windows x64 calling
+ * convention. Caller-saved registers are trashed by every library call.
+ */
+public class X64Emulator {
+  private static final int MEMORY_SIZE = 16 << 20;
+  private static final int DATA_BASE = 0x1000;
+  private static final long STEP_LIMIT = 200_000_000L;
+  private static final long RETURN_FROM_MAIN = -1;
+  private static final long TRASH = 0xdeadbeefdeadbeefL;
+
+  private static final ImmutableList<String> REGISTERS_64 = ImmutableList.of("RAX", "RCX", "RDX",
+      "RBX", "RSP", "RBP", "RSI", "RDI", "R8", "R9", "R10", "R11", "R12", "R13", "R14", "R15");
+  private static final ImmutableList<String> REGISTERS_32 = ImmutableList.of("EAX", "ECX", "EDX",
+      "EBX", "ESP", "EBP", "ESI", "EDI", "R8D", "R9D", "R10D", "R11D", "R12D", "R13D", "R14D",
+      "R15D");
+  private static final ImmutableList<String> REGISTERS_16 = ImmutableList.of("AX", "CX", "DX",
+      "BX", "SP", "BP", "SI", "DI", "R8W", "R9W", "R10W", "R11W", "R12W", "R13W", "R14W", "R15W");
+  private static final ImmutableList<String> REGISTERS_8 = ImmutableList.of("AL", "CL", "DL",
+      "BL", "SPL", "BPL", "SIL", "DIL", "R8B", "R9B", "R10B", "R11B", "R12B", "R13B", "R14B",
+      "R15B");
+  private static final ImmutableMap<String, Integer> SIZES =
+      ImmutableMap.of("BYTE", 1, "WORD", 2, "DWORD", 4, "QWORD", 8);
+  private static final int[] CALLER_SAVED = {0, 1, 2, 8, 9, 10, 11};
+  private static final int RSP = 4;
+
+  private static final Pattern LABEL = Pattern.compile("^([A-Za-z_.$?][\\w.$?@#~]*):(.*)$");
+  private static final Pattern FLOAT = Pattern.compile("-?\\d+\\.\\d*([eE][-+]?\\d+)?");
+
+  /** A decoded operand. */
+  private static class Arg {
+    static final int REGISTER = 0;
+    static final int XMM = 1;
+    static final int MEMORY = 2;
+    static final int IMMEDIATE = 3;
+
+    int kind;
+    int register;
+    int size;
+    int base = -1;
+    int index = -1;
+    int scale = 1;
+    long value;
+  }
+
+  private static class Instruction {
+    final String text;
+    final String op;
+    final Arg[] args;
+    String symbol;
+    int target = -1;
+
+    Instruction(String text, String op, Arg[] args) {
+      this.text = text;
+      this.op = op;
+      this.args = args;
+    }
+  }
+
+  private final ByteBuffer memory =
+      ByteBuffer.allocate(MEMORY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  private final Map<String, Long> symbols = new HashMap<>();
+  private final Map<String, Integer> labels = new HashMap<>();
+  private final List<Instruction> code = new ArrayList<>();
+  private final Map<String, String> environment;
+  private final StringBuilder output = new StringBuilder();
+  private final long[] registers = new long[16];
+  private final long[] xmms = new long[16];
+  private boolean zf;
+  private boolean sf;
+  private boolean cf;
+  private boolean of;
+  private boolean pf;
+  private int heap;
+  private boolean exited;
+
+  private X64Emulator(List<String> lines, Map<String, String> environment) {
+    this.environment = environment;
+    assemble(lines);
+  }
+
+  /** Runs the program and returns what it printed. */
+  public static String run(List<String> lines) {
+    return run(lines, ImmutableMap.of());
+  }
+
+  /** Runs the program with the given environment variables and returns what it printed. */
+  public static String run(List<String> lines, Map<String, String> environment) {
+    return new X64Emulator(lines, environment).execute();
+  }
+
+  private void assemble(List<String> input) {
+    List<String> lines = new ArrayList<>();
+    for (String line : input) {
+      for (String part : line.split("\n")) {
+        String stripped = stripComment(part).trim();
+        if (!stripped.isEmpty()) {
+          lines.add(stripped);
+        }
+      }
+    }
+
+    // Lay out the data first, so the text can refer to labels defined after it.
+    int address = DATA_BASE;
+    String section = ".text";
+    List<String> text = new ArrayList<>();
+    Map<Integer, String> relocations = new HashMap<>();
+    for (String line : lines) {
+      if (line.startsWith("section ")) {
+        section = line.substring(8).trim();
+        continue;
+      }
+      if (section.equals(".text")) {
+        text.add(line);
+        continue;
+      }
+      Matcher label = LABEL.matcher(line);
+      if (label.matches()) {
+        symbols.put(label.group(1), (long) address);
+        line = label.group(2).trim();
+        if (line.isEmpty()) {
+          continue;
+        }
+      }
+      String directive = line.split("\\s+")[0];
+      String operands = line.substring(directive.length()).trim();
+      if (directive.equals("align")) {
+        int alignment = Integer.decode(operands);
+        address = (address + alignment - 1) / alignment * alignment;
+        continue;
+      }
+      address = define(address, directive, operands, relocations);
+    }
+    for (Map.Entry<Integer, String> relocation : relocations.entrySet()) {
+      memory.putLong(relocation.getKey(), symbol(relocation.getValue()));
+    }
+    heap = (address + 15) & ~15;
+
+    for (String line : text) {
+      Matcher label = LABEL.matcher(line);
+      if (label.matches()) {
+        labels.put(label.group(1), code.size());
+        line = label.group(2).trim();
+        if (line.isEmpty()) {
+          continue;
+        }
+      }
+      String op = line.split("\\s+")[0].toLowerCase();
+      switch (op) {
+        case "global":
+        case "extern":
+        case "align":
+        case "default":
+        case "bits":
+          continue;
+        default:
+          break;
+      }
+      List<String> operands = splitOperands(line.substring(op.length()).trim());
+      Instruction instruction = new Instruction(line, op, new Arg[operands.size()]);
+      if (op.equals("call") || op.startsWith("j")) {
+        instruction.symbol = operands.get(0);
+      } else {
+        for (int i = 0; i < operands.size(); ++i) {
+          instruction.args[i] = decode(operands.get(i));
+        }
+      }
+      code.add(instruction);
+    }
+    for (Instruction instruction : code) {
+      if (instruction.symbol != null) {
+        Integer target = labels.get(instruction.symbol);
+        if (target != null) {
+          instruction.target = target;
+        } else if (instruction.op.startsWith("j")) {
+          throw new IllegalStateException("Unknown label " + instruction.symbol);
+        }
+      }
+    }
+  }
+
+  private int define(int address, String directive, String operands,
+      Map<Integer, String> relocations) {
+    switch (directive) {
+      case "db":
+        for (String part : splitOperands(operands)) {
+          if (part.startsWith("\"") || part.startsWith("'")) {
+            for (char c : part.substring(1, part.length() - 1).toCharArray()) {
+              memory.put(address++, (byte) c);
+            }
+          } else {
+            memory.put(address++, (byte) constant(part));
+          }
+        }
+        return address;
+
+      case "dw":
+        for (String part : splitOperands(operands)) {
+          memory.putShort(address, (short) constant(part));
+          address += 2;
+        }
+        return address;
+
+      case "dd":
+        for (String part : splitOperands(operands)) {
+          memory.putInt(address, (int) constant(part));
+          address += 4;
+        }
+        return address;
+
+      case "dq":
+        for (String part : splitOperands(operands)) {
+          if (FLOAT.matcher(part).matches()) {
+            memory.putDouble(address, Double.parseDouble(part));
+          } else if (Character.isDigit(part.charAt(0)) || part.startsWith("-")) {
+            memory.putLong(address, constant(part));
+          } else {
+            relocations.put(address, part);
+          }
+          address += 8;
+        }
+        return address;
+
+      case "resb":
+      case "resw":
+      case "resd":
+      case "resq":
+        return address + ((int) constant(operands) << "bwdq".indexOf(directive.charAt(3)));
+
+      case "times": {
+        String count = operands.split("\\s+")[0];
+        String rest = operands.substring(count.length()).trim();
+        String inner = rest.split("\\s+")[0];
+        for (long i = constant(count); i > 0; --i) {
+          address = define(address, inner, rest.substring(inner.length()).trim(), relocations);
+        }
+        return address;
+      }
+
+      default:
+        throw new IllegalStateException("Unsupported directive " + directive);
+    }
+  }
+
+  private static String stripComment(String line) {
+    char quote = 0;
+    for (int i = 0; i < line.length(); ++i) {
+      char c = line.charAt(i);
+      if (quote != 0) {
+        if (c == quote) {
+          quote = 0;
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+      } else if (c == ';') {
+        return line.substring(0, i);
+      }
+    }
+    return line;
+  }
+
+  private static List<String> splitOperands(String operands) {
+    List<String> parts = new ArrayList<>();
+    char quote = 0;
+    int depth = 0;
+    int start = 0;
+    for (int i = 0; i < operands.length(); ++i) {
+      char c = operands.charAt(i);
+      if (quote != 0) {
+        if (c == quote) {
+          quote = 0;
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+      } else if (c == '[') {
+        depth++;
+      } else if (c == ']') {
+        depth--;
+      } else if (c == ',' && depth == 0) {
+        parts.add(operands.substring(start, i).trim());
+        start = i + 1;
+      }
+    }
+    if (start < operands.length()) {
+      parts.add(operands.substring(start).trim());
+    }
+    return parts;
+  }
+
+  private Arg decode(String operand) {
+    Arg arg = new Arg();
+    String upper = operand.toUpperCase();
+    int space = upper.indexOf(' ');
+    if (space > 0 && SIZES.containsKey(upper.substring(0, space))) {
+      arg.size = SIZES.get(upper.substring(0, space));
+      operand = operand.substring(space + 1).trim();
+      upper = operand.toUpperCase();
+    }
+    if (operand.startsWith("[")) {
+      arg.kind = Arg.MEMORY;
+      String inner = operand.substring(1, operand.length() - 1).replace(" ", "");
+      if (inner.toLowerCase().startsWith("rel")) {
+        inner = inner.substring(3);
+      }
+      int sign = 1;
+      int start = 0;
+      for (int i = 0; i <= inner.length(); ++i) {
+        if (i == inner.length() || ((inner.charAt(i) == '+' || inner.charAt(i) == '-') && i > 0)) {
+          addressTerm(arg, sign, inner.substring(start, i));
+          if (i < inner.length()) {
+            sign = inner.charAt(i) == '-' ? -1 : 1;
+          }
+          start = i + 1;
+        }
+      }
+      return arg;
+    }
+    if (upper.startsWith("XMM")) {
+      arg.kind = Arg.XMM;
+      arg.register = Integer.parseInt(upper.substring(3));
+      arg.size = 8;
+      return arg;
+    }
+    if (decodeRegister(arg, upper)) {
+      return arg;
+    }
+    arg.kind = Arg.IMMEDIATE;
+    arg.value = expression(operand);
+    return arg;
+  }
+
+  private static boolean decodeRegister(Arg arg, String upper) {
+    arg.kind = Arg.REGISTER;
+    if ((arg.register = REGISTERS_64.indexOf(upper)) >= 0) {
+      arg.size = 8;
+    } else if ((arg.register = REGISTERS_32.indexOf(upper)) >= 0) {
+      arg.size = 4;
+    } else if ((arg.register = REGISTERS_16.indexOf(upper)) >= 0) {
+      arg.size = 2;
+    } else if ((arg.register = REGISTERS_8.indexOf(upper)) >= 0) {
+      arg.size = 1;
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private void addressTerm(Arg arg, int sign, String term) {
+    String[] factors = term.split("\\*");
+    int register = REGISTERS_64.indexOf(factors[0].toUpperCase());
+    if (register >= 0) {
+      if (factors.length == 2 || arg.base >= 0) {
+        arg.index = register;
+        arg.scale = factors.length == 2 ? Integer.parseInt(factors[1]) : 1;
+      } else {
+        arg.base = register;
+      }
+      return;
+    }
+    arg.value += sign * expression(term);
+  }
+
+  /** Evaluates an immediate: a number, a character, a symbol, or sums and products of them. */
+  private long expression(String text) {
+    text = text.replace(" ", "");
+    long total = 0;
+    int sign = 1;
+    int start = 0;
+    for (int i = 0; i <= text.length(); ++i) {
+      if (i == text.length() || ((text.charAt(i) == '+' || text.charAt(i) == '-') && i > start)) {
+        long product = 1;
+        for (String factor : text.substring(start, i).split("\\*")) {
+          product *= Character.isLetter(factor.charAt(0)) || factor.charAt(0) == '_'
+              ? symbol(factor) : constant(factor);
+        }
+        total += sign * product;
+        if (i < text.length()) {
+          sign = text.charAt(i) == '-' ? -1 : 1;
+        }
+        start = i + 1;
+      } else if (text.charAt(i) == '-' && i == start) {
+        sign = -sign;
+        start = i + 1;
+      }
+    }
+    return total;
+  }
+
+  private long symbol(String name) {
+    Long address = symbols.get(name);
+    if (address == null) {
+      throw new IllegalStateException("Unknown symbol " + name);
+    }
+    return address;
+  }
+
+  private static long constant(String text) {
+    if (text.length() == 3 && text.charAt(0) == '\'' && text.charAt(2) == '\'') {
+      return text.charAt(1);
+    }
+    boolean negative = text.startsWith("-");
+    String digits = negative ? text.substring(1) : text;
+    long value;
+    if (digits.startsWith("0x") || digits.startsWith("0X")) {
+      value = Long.parseUnsignedLong(digits.substring(2), 16);
+    } else if (digits.endsWith("h") || digits.endsWith("H")) {
+      value = Long.parseUnsignedLong(digits.substring(0, digits.length() - 1), 16);
+    } else {
+      value = Long.parseUnsignedLong(digits);
+    }
+    return negative ? -value : value;
+  }
+
+  private String execute() {
+    Integer main = labels.get("main");
+    if (main == null) {
+      throw new IllegalStateException("No main");
+    }
+    registers[RSP] = MEMORY_SIZE - 64;
+    push(RETURN_FROM_MAIN);
+    int pc = main;
+    long steps = 0;
+    while (!exited) {
+      if (++steps > STEP_LIMIT) {
+        throw new IllegalStateException("Step limit reached");
+      }
+      if (pc >= code.size()) {
+        throw new IllegalStateException("Ran off the end of the code");
+      }
+      Instruction instruction = code.get(pc);
+      try {
+        pc = step(instruction, pc);
+      } catch (ArithmeticException e) {
+        throw e;
+      } catch (RuntimeException e) {
+        throw new IllegalStateException("At " + instruction.text, e);
+      }
+    }
+    return output.toString();
+  }
+
+  /** Executes one instruction and returns the index of the next one. */
+  private int step(Instruction instruction, int pc) {
+    Arg[] args = instruction.args;
+    String op = instruction.op;
+    switch (op) {
+      case "mov":
+      case "movq":
+      case "movd":
+      case "movsd":
+      case "movapd":
+      case "movaps": {
+        int size = size(args, 0);
+        write(args[0], size, read(args[1], size));
+        return pc + 1;
+      }
+
+      case "movzx":
+        write(args[0], args[0].size, read(args[1], args[1].size));
+        return pc + 1;
+
+      case "movsx":
+      case "movsxd":
+        write(args[0], args[0].size, signed(read(args[1], args[1].size), args[1].size));
+        return pc + 1;
+
+      case "lea":
+        write(args[0], args[0].size, address(args[1]));
+        return pc + 1;
+
+      case "xorpd":
+      case "xorps":
+      case "pxor":
+        xmms[args[0].register] ^= read(args[1], 8);
+        return pc + 1;
+
+      case "cvtsi2sd":
+        xmms[args[0].register] = Double.doubleToRawLongBits(
+            signed(read(args[1], size(args, 1)), size(args, 1)));
+        return pc + 1;
+
+      case "cvttsd2si": {
+        double value = Double.longBitsToDouble(read(args[1], 8));
+        long result = args[0].size == 4 ? (int) value : (long) value;
+        if (Double.isNaN(value) || (args[0].size == 4 && result != (long) value)) {
+          result = args[0].size == 4 ? Integer.MIN_VALUE : Long.MIN_VALUE;
+        }
+        write(args[0], args[0].size, result);
+        return pc + 1;
+      }
+
+      case "addsd":
+      case "subsd":
+      case "mulsd":
+      case "divsd":
+      case "minsd":
+      case "maxsd":
+      case "sqrtsd":
+        floatArithmetic(op, args[0], read(args[1], 8));
+        return pc + 1;
+
+      case "comisd":
+      case "ucomisd": {
+        double left = Double.longBitsToDouble(read(args[0], 8));
+        double right = Double.longBitsToDouble(read(args[1], 8));
+        of = sf = false;
+        if (Double.isNaN(left) || Double.isNaN(right)) {
+          zf = pf = cf = true;
+        } else {
+          zf = left == right;
+          cf = left < right;
+          pf = false;
+        }
+        return pc + 1;
+      }
+
+      case "add":
+      case "sub":
+      case "cmp":
+      case "and":
+      case "or":
+      case "xor":
+      case "test":
+        arithmetic(op, args);
+        return pc + 1;
+
+      case "imul":
+        multiply(args);
+        return pc + 1;
+
+      case "mul": {
+        long value = read(args[0], args[0].size);
+        if (args[0].size == 4) {
+          long product = (registers[0] & 0xffffffffL) * value;
+          registers[0] = product & 0xffffffffL;
+          registers[2] = product >>> 32;
+        } else {
+          long left = registers[0];
+          registers[2] = Math.multiplyHigh(left, value) + ((left >> 63) & value)
+              + ((value >> 63) & left);
+          registers[0] *= value;
+        }
+        cf = of = registers[2] != 0;
+        return pc + 1;
+      }
+
+      case "idiv":
+      case "div":
+        divide(op.equals("idiv"), args[0]);
+        return pc + 1;
+
+      case "cdq":
+        registers[2] = (int) registers[0] < 0 ? 0xffffffffL : 0;
+        return pc + 1;
+
+      case "cqo":
+        registers[2] = registers[0] < 0 ? -1 : 0;
+        return pc + 1;
+
+      case "cdqe":
+        registers[0] = (int) registers[0];
+        return pc + 1;
+
+      case "inc":
+      case "dec":
+      case "neg":
+      case "not":
+        unary(op, args[0]);
+        return pc + 1;
+
+      case "shl":
+      case "sal":
+      case "shr":
+      case "sar":
+        shift(op, args[0], (int) read(args[1], 1));
+        return pc + 1;
+
+      case "shrd": {
+        int count = (int) read(args[2], 1) & 63;
+        if (count != 0) {
+          long value = read(args[0], 8);
+          cf = ((value >>> (count - 1)) & 1) != 0;
+          long result = (value >>> count) | (read(args[1], 8) << (64 - count));
+          flags(result, 64);
+          write(args[0], 8, result);
+        }
+        return pc + 1;
+      }
+
+      case "xchg": {
+        int size = size(args, 0);
+        long left = read(args[0], size);
+        write(args[0], size, read(args[1], size));
+        write(args[1], size, left);
+        return pc + 1;
+      }
+
+      case "push":
+        push(read(args[0], 8));
+        return pc + 1;
+
+      case "pop":
+        write(args[0], 8, pop());
+        return pc + 1;
+
+      case "jmp":
+        return instruction.target;
+
+      case "call":
+        if (instruction.target >= 0) {
+          push(pc + 1);
+          return instruction.target;
+        }
+        callLibrary(instruction.symbol);
+        return pc + 1;
+
+      case "ret": {
+        long address = pop();
+        if (address == RETURN_FROM_MAIN) {
+          exited = true;
+          return pc;
+        }
+        return (int) address;
+      }
+
+      case "nop":
+        return pc + 1;
+
+      default:
+        break;
+    }
+    if (op.startsWith("set")) {
+      write(args[0], 1, condition(op.substring(3)) ? 1 : 0);
+      return pc + 1;
+    }
+    if (op.startsWith("cmov")) {
+      int size = args[0].size;
+      // A 32-bit cmov zero-extends its destination even when it does not move.
+      write(args[0], size, condition(op.substring(4)) ? read(args[1], size) : read(args[0], size));
+      return pc + 1;
+    }
+    if (op.startsWith("j")) {
+      return condition(op.substring(1)) ? instruction.target : pc + 1;
+    }
+    throw new IllegalStateException("Unsupported instruction " + instruction.text);
+  }
+
+  private boolean condition(String cc) {
+    switch (cc) {
+      case "z":
+      case "e":
+        return zf;
+      case "nz":
+      case "ne":
+        return !zf;
+      case "l":
+      case "nge":
+        return sf != of;
+      case "ge":
+      case "nl":
+        return sf == of;
+      case "g":
+      case "nle":
+        return !zf && sf == of;
+      case "le":
+      case "ng":
+        return zf || sf != of;
+      case "b":
+      case "c":
+      case "nae":
+        return cf;
+      case "ae":
+      case "nc":
+      case "nb":
+        return !cf;
+      case "a":
+      case "nbe":
+        return !cf && !zf;
+      case "be":
+      case "na":
+        return cf || zf;
+      case "p":
+      case "pe":
+        return pf;
+      case "np":
+      case "po":
+        return !pf;
+      case "s":
+        return sf;
+      case "ns":
+        return !sf;
+      case "o":
+        return of;
+      case "no":
+        return !of;
+      default:
+        throw new IllegalStateException("Unknown condition " + cc);
+    }
+  }
+
+  private void arithmetic(String op, Arg[] args) {
+    int size = size(args, 0);
+    int bits = size * 8;
+    long mask = mask(size);
+    long left = read(args[0], size);
+    long right = read(args[1], size) & mask;
+    long result;
+    switch (op) {
+      case "add":
+        result = (left + right) & mask;
+        cf = Long.compareUnsigned(result, left) < 0;
+        of = sign(~(left ^ right) & (left ^ result), bits);
+        break;
+
+      case "sub":
+      case "cmp":
+        result = (left - right) & mask;
+        cf = Long.compareUnsigned(left, right) < 0;
+        of = sign((left ^ right) & (left ^ result), bits);
+        break;
+
+      case "and":
+      case "test":
+        result = left & right;
+        cf = of = false;
+        break;
+
+      case "or":
+        result = left | right;
+        cf = of = false;
+        break;
+
+      default:
+        result = left ^ right;
+        cf = of = false;
+        break;
+    }
+    flags(result, bits);
+    if (!op.equals("cmp") && !op.equals("test")) {
+      write(args[0], size, result);
+    }
+  }
+
+  private void multiply(Arg[] args) {
+    if (args.length == 1) {
+      int size = args[0].size;
+      long value = signed(read(args[0], size), size);
+      if (size == 4) {
+        long product = (int) registers[0] * value;
+        registers[0] = product & 0xffffffffL;
+        registers[2] = (product >>> 32) & 0xffffffffL;
+        cf = of = product != (int) product;
+      } else {
+        long high = Math.multiplyHigh(registers[0], value);
+        registers[0] *= value;
+        registers[2] = high;
+        cf = of = high != (registers[0] >> 63);
+      }
+      return;
+    }
+    int size = args[0].size;
+    Arg left = args.length == 3 ? args[1] : args[0];
+    Arg right = args.length == 3 ? args[2] : args[1];
+    long a = signed(read(left, size), size);
+    long b = signed(read(right, size), size);
+    long product = a * b;
+    cf = of = size == 4 ? product != (int) product : Math.multiplyHigh(a, b) != (product >> 63);
+    write(args[0], size, product);
+  }
+
+  private void divide(boolean signed, Arg arg) {
+    int size = arg.size;
+    long divisor = read(arg, size);
+    if (size == 4) {
+      long dividend = (registers[2] << 32) | (registers[0] & 0xffffffffL);
+      long quotient;
+      long remainder;
+      if ((int) divisor == 0) {
+        throw new ArithmeticException("Divide error");
+      }
+      if (signed) {
+        quotient = dividend / (int) divisor;
+        remainder = dividend % (int) divisor;
+        if (quotient != (int) quotient) {
+          throw new ArithmeticException("Divide error");
+        }
+      } else {
+        quotient = Long.divideUnsigned(dividend, divisor);
+        remainder = Long.remainderUnsigned(dividend, divisor);
+        if ((quotient >>> 32) != 0) {
+          throw new ArithmeticException("Divide error");
+        }
+      }
+      registers[0] = quotient & 0xffffffffL;
+      registers[2] = remainder & 0xffffffffL;
+      return;
+    }
+    if (divisor == 0) {
+      throw new ArithmeticException("Divide error");
+    }
+    if (signed) {
+      if (registers[2] != (registers[0] >> 63)) {
+        throw new IllegalStateException("Unsupported 128-bit dividend");
+      }
+      if (registers[0] == Long.MIN_VALUE && divisor == -1) {
+        throw new ArithmeticException("Divide error");
+      }
+      long quotient = registers[0] / divisor;
+      registers[2] = registers[0] % divisor;
+      registers[0] = quotient;
+    } else {
+      if (registers[2] != 0) {
+        throw new IllegalStateException("Unsupported 128-bit dividend");
+      }
+      long quotient = Long.divideUnsigned(registers[0], divisor);
+      registers[2] = Long.remainderUnsigned(registers[0], divisor);
+      registers[0] = quotient;
+    }
+  }
+
+  private void unary(String op, Arg arg) {
+    int size = arg.size;
+    int bits = size * 8;
+    long mask = mask(size);
+    long value = read(arg, size);
+    long result;
+    switch (op) {
+      case "inc":
+        result = (value + 1) & mask;
+        of = sign(~value & result, bits);
+        flags(result, bits);
+        break;
+
+      case "dec":
+        result = (value - 1) & mask;
+        of = sign(value & ~result, bits);
+        flags(result, bits);
+        break;
+
+      case "neg":
+        result = -value & mask;
+        cf = value != 0;
+        of = sign(value & result, bits);
+        flags(result, bits);
+        break;
+
+      default:
+        result = ~value & mask;
+        break;
+    }
+    write(arg, size, result);
+  }
+
+  private void shift(String op, Arg arg, int count) {
+    int size = arg.size;
+    int bits = size * 8;
+    count &= bits == 64 ? 63 : 31;
+    if (count == 0) {
+      return;
+    }
+    long value = read(arg, size);
+    long result;
+    switch (op) {
+      case "shl":
+      case "sal":
+        cf = count <= bits && ((value >>> (bits - count)) & 1) != 0;
+        result = (value << count) & mask(size);
+        break;
+
+      case "shr":
+        cf = ((value >>> (count - 1)) & 1) != 0;
+        result = value >>> count;
+        break;
+
+      default:
+        cf = ((signed(value, size) >> (count - 1)) & 1) != 0;
+        result = (signed(value, size) >> count) & mask(size);
+        break;
+    }
+    of = false;
+    flags(result, bits);
+    write(arg, size, result);
+  }
+
+  private void floatArithmetic(String op, Arg dst, long rightBits) {
+    long leftBits = xmms[dst.register];
+    double left = Double.longBitsToDouble(leftBits);
+    double right = Double.longBitsToDouble(rightBits);
+    double result;
+    switch (op) {
+      case "addsd":
+        result = left + right;
+        break;
+
+      case "subsd":
+        result = left - right;
+        break;
+
+      case "mulsd":
+        result = left * right;
+        break;
+
+      case "divsd":
+        result = left / right;
+        break;
+
+      case "minsd":
+        // Both return the second operand when the comparison is unordered.
+        xmms[dst.register] = left < right ? leftBits : rightBits;
+        return;
+
+      case "maxsd":
+        xmms[dst.register] = left > right ? leftBits : rightBits;
+        return;
+
+      default:
+        left = right;
+        leftBits = rightBits;
+        result = Math.sqrt(right);
+        break;
+    }
+    long bits = Double.doubleToRawLongBits(result);
+    if (Double.isNaN(left)) {
+      // SSE propagates the first NaN operand, quieted.
+      bits = leftBits | 0x0008000000000000L;
+    } else if (Double.isNaN(right)) {
+      bits = rightBits | 0x0008000000000000L;
+    } else if (Double.isNaN(result)) {
+      bits = 0xfff8000000000000L;
+    }
+    xmms[dst.register] = bits;
+  }
+
+  private void flags(long result, int bits) {
+    zf = result == 0;
+    sf = sign(result, bits);
+    pf = (Long.bitCount(result & 0xff) & 1) == 0;
+  }
+
+  private static boolean sign(long value, int bits) {
+    return ((value >>> (bits - 1)) & 1) != 0;
+  }
+
+  private static long mask(int size) {
+    return size == 8 ? -1L : (1L << (size * 8)) - 1;
+  }
+
+  private static long signed(long value, int size) {
+    switch (size) {
+      case 1:
+        return (byte) value;
+      case 2:
+        return (short) value;
+      case 4:
+        return (int) value;
+      default:
+        return value;
+    }
+  }
+
+  /** Returns the operation size from the first operand, starting at the given one, that has one. */
+  private static int size(Arg[] args, int first) {
+    for (int i = first; i < args.length; ++i) {
+      if (args[i].size != 0) {
+        return args[i].size;
+      }
+    }
+    return 8;
+  }
+
+  private long address(Arg arg) {
+    long address = arg.value;
+    if (arg.base >= 0) {
+      address += registers[arg.base];
+    }
+    if (arg.index >= 0) {
+      address += registers[arg.index] * arg.scale;
+    }
+    return address;
+  }
+
+  private long read(Arg arg, int size) {
+    switch (arg.kind) {
+      case Arg.REGISTER:
+        return registers[arg.register] & mask(size);
+
+      case Arg.XMM:
+        return xmms[arg.register];
+
+      case Arg.MEMORY: {
+        int address = (int) address(arg);
+        switch (size) {
+          case 1:
+            return memory.get(address) & 0xffL;
+          case 2:
+            return memory.getShort(address) & 0xffffL;
+          case 4:
+            return memory.getInt(address) & 0xffffffffL;
+          default:
+            return memory.getLong(address);
+        }
+      }
+
+      default:
+        return arg.value & mask(size);
+    }
+  }
+
+  private void write(Arg arg, int size, long value) {
+    switch (arg.kind) {
+      case Arg.REGISTER:
+        if (arg.size >= 4) {
+          // Writing 32 bits zero-extends into the whole register.
+          registers[arg.register] = value & mask(arg.size);
+        } else {
+          long mask = mask(arg.size);
+          registers[arg.register] = (registers[arg.register] & ~mask) | (value & mask);
+        }
+        return;
+
+      case Arg.XMM:
+        xmms[arg.register] = value;
+        return;
+
+      case Arg.MEMORY: {
+        int address = (int) address(arg);
+        switch (size) {
+          case 1:
+            memory.put(address, (byte) value);
+            return;
+          case 2:
+            memory.putShort(address, (short) value);
+            return;
+          case 4:
+            memory.putInt(address, (int) value);
+            return;
+          default:
+            memory.putLong(address, value);
+            return;
+        }
+      }
+
+      default:
+        throw new IllegalStateException("Cannot write to an immediate");
+    }
+  }
+
+  private void push(long value) {
+    registers[RSP] -= 8;
+    memory.putLong((int) registers[RSP], value);
+  }
+
+  private long pop() {
+    long value = memory.getLong((int) registers[RSP]);
+    registers[RSP] += 8;
+    return value;
+  }
+
+  private void callLibrary(String function) {
+    long result = 0;
+    switch (function) {
+      case "printf": {
+        String text = format(string(argument(0)), 1);
+        output.append(text);
+        result = text.length();
+        break;
+      }
+
+      case "puts":
+        output.append(string(argument(0))).append('\n');
+        break;
+
+      case "putchar":
+        output.append((char) (argument(0) & 0xff));
+        result = argument(0) & 0xff;
+        break;
+
+      case "exit":
+        exited = true;
+        return;
+
+      case "fflush":
+        break;
+
+      case "_write":
+      case "write":
+        result = argument(2) & 0xffffffffL;
+        append(argument(1), result);
+        break;
+
+      case "fwrite":
+        append(argument(0), argument(1) * argument(2));
+        result = argument(2);
+        break;
+
+      case "getenv": {
+        String value = environment.get(string(argument(0)));
+        result = value == null ? 0 : allocate(value);
+        break;
+      }
+
+      case "sprintf":
+      case "snprintf": {
+        boolean bounded = function.equals("snprintf");
+        String text = format(string(argument(bounded ? 2 : 1)), bounded ? 3 : 2);
+        long buffer = argument(0);
+        long limit = bounded ? argument(1) : Long.MAX_VALUE;
+        int written = 0;
+        for (; written < text.length() && written + 1 < limit; ++written) {
+          memory.put((int) (buffer + written), (byte) text.charAt(written));
+        }
+        if (limit > 0) {
+          memory.put((int) (buffer + written), (byte) 0);
+        }
+        result = text.length();
+        break;
+      }
+
+      default:
+        throw new IllegalStateException("Unknown function " + function);
+    }
+    for (int register : CALLER_SAVED) {
+      registers[register] = TRASH;
+    }
+    for (int register = 0; register < 6; ++register) {
+      xmms[register] = TRASH;
+    }
+    registers[0] = result;
+  }
+
+  /** Returns an argument by position, counting from 0, per the Windows x64 convention. */
+  private long argument(int position) {
+    switch (position) {
+      case 0:
+        return registers[1];
+      case 1:
+        return registers[2];
+      case 2:
+        return registers[8];
+      case 3:
+        return registers[9];
+      default:
+        // The caller stores the rest above its 32 byte home area.
+        return memory.getLong((int) (registers[RSP] + 8 * position));
+    }
+  }
+
+  private void append(long buffer, long count) {
+    for (long i = 0; i < count; ++i) {
+      output.append((char) (memory.get((int) (buffer + i)) & 0xff));
+    }
+  }
+
+  private long allocate(String value) {
+    int address = heap;
+    for (char c : value.toCharArray()) {
+      memory.put(heap++, (byte) c);
+    }
+    memory.put(heap++, (byte) 0);
+    return address;
+  }
+
+  private String string(long address) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = (int) address; memory.get(i) != 0; ++i) {
+      sb.append((char) (memory.get(i) & 0xff));
+    }
+    return sb.toString();
+  }
+
+  /** Formats like C's printf, for the conversions generated code uses. */
+  private String format(String format, int firstArgument) {
+    StringBuilder sb = new StringBuilder();
+    int argument = firstArgument;
+    for (int i = 0; i < format.length(); ++i) {
+      char c = format.charAt(i);
+      if (c != '%') {
+        sb.append(c);
+        continue;
+      }
+      int start = ++i;
+      while ("-+ #0".indexOf(format.charAt(i)) >= 0) {
+        i++;
+      }
+      String flags = format.substring(start, i);
+      int widthStart = i;
+      while (Character.isDigit(format.charAt(i))) {
+        i++;
+      }
+      int width = i > widthStart ? Integer.parseInt(format.substring(widthStart, i)) : 0;
+      int precision = -1;
+      if (format.charAt(i) == '.') {
+        int precisionStart = ++i;
+        while (Character.isDigit(format.charAt(i))) {
+          i++;
+        }
+        precision = i > precisionStart ? Integer.parseInt(format.substring(precisionStart, i)) : 0;
+      }
+      boolean wide = false;
+      while ("hlLqjzt".indexOf(format.charAt(i)) >= 0) {
+        wide |= format.charAt(i) == 'l' && format.charAt(i + 1) == 'l';
+        i++;
+      }
+      char conversion = format.charAt(i);
+      if (conversion == '%') {
+        sb.append('%');
+        continue;
+      }
+      long value = argument(argument++);
+      String text;
+      switch (conversion) {
+        case 'd':
+        case 'i':
+          text = String.valueOf(wide ? value : (int) value);
+          break;
+
+        case 'u':
+          text = wide ? Long.toUnsignedString(value) : Integer.toUnsignedString((int) value);
+          break;
+
+        case 'x':
+          text = wide ? Long.toHexString(value) : Integer.toHexString((int) value);
+          break;
+
+        case 'c':
+          text = String.valueOf((char) (value & 0xff));
+          break;
+
+        case 's':
+          text = string(value);
+          if (precision >= 0 && text.length() > precision) {
+            text = text.substring(0, precision);
+          }
+          break;
+
+        case 'g':
+          text = formatG(Double.longBitsToDouble(value), precision < 0 ? 6 : precision);
+          break;
+
+        case 'f':
+          text = formatF(Double.longBitsToDouble(value), precision < 0 ? 6 : precision);
+          break;
+
+        case 'e':
+          text = formatE(Double.longBitsToDouble(value), precision < 0 ? 6 : precision);
+          break;
+
+        default:
+          throw new IllegalStateException("Unsupported conversion " + conversion);
+      }
+      if (flags.contains("+") && "dief".indexOf(conversion) >= 0 && !text.startsWith("-")) {
+        text = "+" + text;
+      }
+      StringBuilder padded = new StringBuilder(text);
+      while (padded.length() < width) {
+        if (flags.contains("-")) {
+          padded.append(' ');
+        } else if (flags.contains("0") && conversion != 's') {
+          padded.insert(text.startsWith("-") || text.startsWith("+") ? 1 : 0, '0');
+        } else {
+          padded.insert(0, ' ');
+        }
+      }
+      sb.append(padded);
+    }
+    return sb.toString();
+  }
+
+  /** Formats like C's %.<precision>g. */
+  static String formatG(double value, int precision) {
+    String special = special(value);
+    if (special != null) {
+      return special;
+    }
+    precision = Math.max(precision, 1);
+    String sign = Double.doubleToRawLongBits(value) < 0 ? "-" : "";
+    if (value == 0) {
+      return sign + "0";
+    }
+    BigDecimal rounded = new BigDecimal(Math.abs(value))
+        .round(new MathContext(precision, RoundingMode.HALF_EVEN));
+    int exponent = rounded.precision() - rounded.scale() - 1;
+    if (exponent < -4 || exponent >= precision) {
+      String text = formatE(Math.abs(value), precision - 1);
+      int e = text.indexOf('e');
+      return sign + stripZeros(text.substring(0, e)) + text.substring(e);
+    }
+    return sign + stripZeros(
+        rounded.setScale(precision - 1 - exponent, RoundingMode.HALF_EVEN).toPlainString());
+  }
+
+  private static String formatF(double value, int precision) {
+    String special = special(value);
+    if (special != null) {
+      return special;
+    }
+    String sign = Double.doubleToRawLongBits(value) < 0 ? "-" : "";
+    return sign + new BigDecimal(Math.abs(value))
+        .setScale(precision, RoundingMode.HALF_EVEN).toPlainString();
+  }
+
+  private static String formatE(double value, int precision) {
+    String special = special(value);
+    if (special != null) {
+      return special;
+    }
+    String sign = Double.doubleToRawLongBits(value) < 0 ? "-" : "";
+    value = Math.abs(value);
+    String digits;
+    int exponent;
+    if (value == 0) {
+      digits = "0".repeat(precision + 1);
+      exponent = 0;
+    } else {
+      BigDecimal rounded =
+          new BigDecimal(value).round(new MathContext(precision + 1, RoundingMode.HALF_EVEN));
+      exponent = rounded.precision() - rounded.scale() - 1;
+      digits = rounded.unscaledValue().toString();
+      digits += "0".repeat(Math.max(0, precision + 1 - digits.length()));
+    }
+    String mantissa = digits.charAt(0) + (precision > 0 ? "." + digits.substring(1) : "");
+    return String.format("%s%se%s%02d", sign, mantissa, exponent < 0 ? "-" : "+",
+        Math.abs(exponent));
+  }
+
+  private static String special(double value) {
+    if (Double.isNaN(value)) {
+      return Double.doubleToRawLongBits(value) < 0 ? "-nan" : "nan";
+    }
+    if (Double.isInfinite(value)) {
+      return value < 0 ? "-inf" : "inf";
+    }
+    return null;
+  }
+
+  private static String stripZeros(String text) {
+    if (!text.contains(".")) {
+      return text;
+    }
+    text = text.replaceAll("0+$", "");
+    return text.endsWith(".") ? text.substring(0, text.length() - 1) : text;
+  }
+}